@@ -1,11 +1,17 @@
 // ChatClient.java
 package client;
 
+import common.FileOffer;
+import common.FriendSuggestion;
 import common.JsonUtil;
 import common.Message;
 import common.Message.MessageType;
+import common.RetransmitBuffer;
 
 import javax.swing.*;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
@@ -13,20 +19,44 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Properties;
-import java.util.Set;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.List;
 
 public class ChatClient extends JFrame {
-    private JTextArea chatArea;
+    private static final String SYSTEM_CONVERSATION = "系统";
+    private static final String SEARCH_CONVERSATION = "搜索结果";
+    private static final int CONVERSATION_WINDOW = 1000;
+    private static final int RETRANSMIT_BUFFER_SIZE = 1024;
+    private static final int ACK_INTERVAL = 32;
+    private static final int USER_SEARCH_DEBOUNCE_MS = 250;
+
+    private JTabbedPane conversationTabs;
+    private final Map<String, JList<String>> conversationViews = new HashMap<>();
+    private InboundDispatcher inboundDispatcher;
+    private OutboundBatcher outboundBatcher;
     private JTextField messageField;
     private JList<String> friendList;
     private JList<String> onlineClientList;
+    private JTextField userSearchField;
+    private JList<String> userSearchList;
+    private Timer userSearchTimer;
+    // 最近一次用户查找请求的 id，只显示与之对应的结果
+    private volatile String pendingUserSearchId;
     private Socket socket;
     private BufferedReader in;
     private PrintWriter out;
+    // 会话续传状态，均由 sendLock 保护
+    private final Object sendLock = new Object();
+    private RetransmitBuffer outbound = new RetransmitBuffer(RETRANSMIT_BUFFER_SIZE);
+    private volatile String sessionToken;
+    private long lastReceivedSeq;
+    private long lastAckSent;
+    private volatile boolean closing;
     private String username;
     private Properties config;
     private JPanel bottomPanel;
@@ -36,6 +66,10 @@ public class ChatClient extends JFrame {
         super("聊天客户端");
         initComponents();
         loadConfig();
+        outboundBatcher = new OutboundBatcher(this::sendFrame,
+                Long.parseLong(config.getProperty("sendLingerMillis", "5")),
+                Integer.parseInt(config.getProperty("sendBatchMax", "50")));
+        outboundBatcher.start();
         showLoginDialog();
         loadFriendList();
     }
@@ -43,13 +77,12 @@ public class ChatClient extends JFrame {
     private void initComponents() {
         setLayout(new BorderLayout(5, 5));
 
-        // 聊天区域
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setLineWrap(true);
-        chatArea.setWrapStyleWord(true);
-        JScrollPane chatScrollPane = new JScrollPane(chatArea);
-        chatScrollPane.setPreferredSize(new Dimension(400, 300));
+        // 聊天区域：每个会话一个有界的 JList 视图
+        conversationTabs = new JTabbedPane();
+        conversationTabs.setPreferredSize(new Dimension(400, 300));
+        conversationTabs.addChangeListener(e -> clearUnreadMark());
+        getConversationView(SYSTEM_CONVERSATION);
+        inboundDispatcher = new InboundDispatcher(this::renderBatch);
 
         // 好友列表
         DefaultListModel<String> friendListModel = new DefaultListModel<>();
@@ -81,12 +114,14 @@ public class ChatClient extends JFrame {
         onlineClientList.addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting()) {
                 friendList.clearSelection();
+                showConversation(onlineClientList.getSelectedValue());
             }
         });
 
         friendList.addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting()) {
                 onlineClientList.clearSelection();
+                showConversation(friendList.getSelectedValue());
             }
         });
 
@@ -102,18 +137,23 @@ public class ChatClient extends JFrame {
 
         JPanel chatAreaPanel = new JPanel(new BorderLayout());
         chatAreaPanel.add(chatAreaLabel, BorderLayout.NORTH);
-        chatAreaPanel.add(chatScrollPane, BorderLayout.CENTER);
+        chatAreaPanel.add(conversationTabs, BorderLayout.CENTER);
 
         JPanel onlineClientListPanel = new JPanel(new BorderLayout());
         onlineClientListPanel.add(onlineClientListLabel, BorderLayout.NORTH);
         onlineClientListPanel.add(onlineClientScrollPane, BorderLayout.CENTER);
+        onlineClientListPanel.add(createUserSearchPanel(), BorderLayout.SOUTH);
 
         // 底部面板
         bottomPanel = new JPanel(new BorderLayout(5, 5));
         messageField = new JTextField();
         JButton sendButton = new JButton("发送");
+        JButton searchButton = new JButton("搜索");
+        JButton fileButton = new JButton("文件");
 
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(searchButton);
+        buttonPanel.add(fileButton);
         buttonPanel.add(sendButton);
 
         bottomPanel.add(messageField, BorderLayout.CENTER);
@@ -127,6 +167,8 @@ public class ChatClient extends JFrame {
 
         // 添加事件处理
         sendButton.addActionListener(e -> sendChatMessage());
+        searchButton.addActionListener(e -> searchHistory());
+        fileButton.addActionListener(e -> sendFile());
         messageField.addActionListener(e -> sendChatMessage());
 
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -142,16 +184,110 @@ public class ChatClient extends JFrame {
         });
     }
 
+    /**
+     * 查找用户：输入停顿 USER_SEARCH_DEBOUNCE_MS 后才向服务器查询，支持用户名前缀和拼音首字母。
+     */
+    private JPanel createUserSearchPanel() {
+        userSearchField = new JTextField();
+        userSearchField.setToolTipText("输入用户名或拼音首字母查找用户");
+        userSearchList = new JList<>(new DefaultListModel<>());
+        userSearchList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        userSearchList.setVisibleRowCount(5);
+        userSearchList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (SwingUtilities.isRightMouseButton(e)) {
+                    int index = userSearchList.locationToIndex(e.getPoint());
+                    if (index != -1) {
+                        showContextMenu(userSearchList, e.getX(), e.getY(), userSearchList.getModel().getElementAt(index));
+                    }
+                }
+            }
+        });
+
+        userSearchTimer = new Timer(USER_SEARCH_DEBOUNCE_MS, e -> sendUserSearch());
+        userSearchTimer.setRepeats(false);
+        userSearchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                userSearchTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                userSearchTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                userSearchTimer.restart();
+            }
+        });
+
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(new JLabel("查找用户"), BorderLayout.NORTH);
+        panel.add(userSearchField, BorderLayout.CENTER);
+        panel.add(new JScrollPane(userSearchList), BorderLayout.SOUTH);
+        return panel;
+    }
+
+    private void sendUserSearch() {
+        String prefix = userSearchField.getText().trim();
+        if (prefix.isEmpty()) {
+            pendingUserSearchId = null;
+            ((DefaultListModel<String>) userSearchList.getModel()).clear();
+            return;
+        }
+        Message query = new Message(username, null, prefix, MessageType.USER_SEARCH);
+        pendingUserSearchId = query.getId();
+        sendMessage(query);
+    }
+
+    private String formatFriendSuggestions(String json) {
+        FriendSuggestion[] suggestions = JsonUtil.fromJson(json, FriendSuggestion[].class);
+        if (suggestions == null || suggestions.length == 0) {
+            return "暂无可能认识的人";
+        }
+        StringBuilder sb = new StringBuilder("可能认识的人:");
+        for (FriendSuggestion suggestion : suggestions) {
+            sb.append(' ').append(suggestion.getUsername())
+                    .append('(').append(suggestion.getMutualCount()).append(" 个共同好友)");
+        }
+        return sb.toString();
+    }
+
+    private void updateUserSearchResults(Message result) {
+        if (!result.getId().equals(pendingUserSearchId)) {
+            // 用户已经继续输入，旧查询的结果不再显示
+            return;
+        }
+        DefaultListModel<String> model = (DefaultListModel<String>) userSearchList.getModel();
+        model.clear();
+        for (String user : result.getContent().split(",")) {
+            if (!user.isEmpty() && !user.equals(username)) {
+                model.addElement(user);
+            }
+        }
+    }
+
     private void showContextMenu(Component component, int x, int y, String selectedUser) {
         JPopupMenu contextMenu = new JPopupMenu();
         if (!selectedUser.equals(username)) {
             JMenuItem addFriendItem = new JMenuItem("添加好友");
             addFriendItem.addActionListener(e -> addFriend(selectedUser));
             contextMenu.add(addFriendItem);
+            JMenuItem mutualFriendsItem = new JMenuItem("共同好友");
+            mutualFriendsItem.addActionListener(e ->
+                    sendMessage(new Message(username, selectedUser, "", MessageType.MUTUAL_FRIENDS)));
+            contextMenu.add(mutualFriendsItem);
         }
         JMenuItem removeFriendItem = new JMenuItem("删除好友");
         removeFriendItem.addActionListener(e -> removeFriend(selectedUser));
         contextMenu.add(removeFriendItem);
+        JMenuItem suggestionItem = new JMenuItem("可能认识的人");
+        suggestionItem.addActionListener(e ->
+                sendMessage(new Message(username, null, "", MessageType.FRIEND_SUGGESTION)));
+        contextMenu.add(suggestionItem);
         contextMenu.show(component, x, y);
     }
 
@@ -194,6 +330,11 @@ public class ChatClient extends JFrame {
     private void setDefaultConfig() {
         config.setProperty("serverHost", "localhost");
         config.setProperty("serverPort", "9000");
+        config.setProperty("resumeWindowSeconds", "30");
+        config.setProperty("readTimeoutSeconds", "45");
+        config.setProperty("fileTransferPort", "9001");
+        config.setProperty("sendLingerMillis", "5");
+        config.setProperty("sendBatchMax", "50");
         saveConfig();
     }
 
@@ -300,6 +441,7 @@ public class ChatClient extends JFrame {
         try {
             connect();
             sendLoginMessage();
+            inboundDispatcher.start();
             startMessageReceiver();
             loadFriendsList();
             setTitle("聊天客户端 - " + username);
@@ -311,38 +453,200 @@ public class ChatClient extends JFrame {
     }
 
     private void connect() throws IOException {
-        String host = config.getProperty("serverHost", "localhost");
-        int port = Integer.parseInt(config.getProperty("serverPort", "9000"));
-        socket = new Socket(host, port);
+        Socket newSocket = openSocket();
+        synchronized (sendLock) {
+            attach(newSocket);
+        }
+    }
+
+    // 调用方须持有 sendLock
+    private void attach(Socket newSocket) throws IOException {
+        socket = newSocket;
         in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
         out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
     }
 
+    private Socket openSocket() throws IOException {
+        String host = config.getProperty("serverHost", "localhost");
+        int port = Integer.parseInt(config.getProperty("serverPort", "9000"));
+        Socket newSocket = new Socket(host, port);
+        // 服务器空闲时会定期发送 PING，长时间读不到任何数据说明连接已经半开
+        newSocket.setSoTimeout(Integer.parseInt(config.getProperty("readTimeoutSeconds", "45")) * 1000);
+        return newSocket;
+    }
+
     private void sendLoginMessage() {
         Message loginMsg = new Message(username, null, "", MessageType.LOGIN);
-        sendMessage(loginMsg);
+        sendControl(loginMsg);
     }
 
     private void startMessageReceiver() {
         new Thread(this::receiveMessages).start();
     }
     private void receiveMessages() {
-        try {
-            String jsonMessage;
-            while ((jsonMessage = in.readLine()) != null) {
-                Message message = JsonUtil.fromJson(jsonMessage, Message.class);
-                handleMessage(message);
+        while (!closing) {
+            try {
+                String jsonMessage;
+                boolean awaitingPong = false;
+                while (true) {
+                    try {
+                        jsonMessage = in.readLine();
+                    } catch (SocketTimeoutException e) {
+                        // 读超时先主动探测一次，再次超时才认为连接已断
+                        if (awaitingPong) {
+                            throw e;
+                        }
+                        awaitingPong = true;
+                        sendControl(new Message(username, null, "", MessageType.PING));
+                        continue;
+                    }
+                    if (jsonMessage == null) {
+                        break;
+                    }
+                    awaitingPong = false;
+                    Message message = JsonUtil.fromJson(jsonMessage, Message.class);
+                    if (acceptFrame(message)) {
+                        handleMessage(message);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("连接中断: " + e.getMessage());
             }
-        } catch (IOException e) {
-            if (!socket.isClosed()) {
-                JOptionPane.showMessageDialog(this, "连接断开: " + e.getMessage());
+            if (closing) {
+                return;
+            }
+            if (!reconnect()) {
+                JOptionPane.showMessageDialog(this, "连接断开，重连失败");
                 disconnect();
+                return;
             }
         }
     }
 
-    private void disconnect() {
-        saveFriendList();
+    /**
+     * 处理序号与确认，返回 false 表示该帧是控制帧或重复帧，不需要交给界面。
+     */
+    private boolean acceptFrame(Message message) {
+        synchronized (sendLock) {
+            if (message.getAck() > 0) {
+                outbound.acknowledge(message.getAck());
+            }
+            if (message.getType() == MessageType.SESSION) {
+                sessionToken = message.getContent();
+                return false;
+            }
+            if (message.getType() == MessageType.ACK || message.getType() == MessageType.PONG) {
+                return false;
+            }
+            if (message.getType() == MessageType.PING) {
+                if (out != null) {
+                    out.println(JsonUtil.toJson(new Message(username, null, "", MessageType.PONG)));
+                }
+                return false;
+            }
+            long seq = message.getSeq();
+            if (seq == 0) {
+                return true;
+            }
+            if (seq <= lastReceivedSeq) {
+                return false;
+            }
+            lastReceivedSeq = seq;
+            if (lastReceivedSeq - lastAckSent >= ACK_INTERVAL && out != null) {
+                Message ack = new Message(username, null, "", MessageType.ACK);
+                ack.setAck(lastReceivedSeq);
+                out.println(JsonUtil.toJson(ack));
+                lastAckSent = lastReceivedSeq;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 断线后在续传窗口内退避重连：优先凭令牌续传会话，服务端拒绝时退回完整登录。
+     */
+    private boolean reconnect() {
+        synchronized (sendLock) {
+            // 重连期间发出的消息只进入重传缓冲区
+            out = null;
+        }
+        closeSocketQuietly();
+        long window = Long.parseLong(config.getProperty("resumeWindowSeconds", "30")) * 1000;
+        long deadline = System.currentTimeMillis() + window;
+        long backoff = 500;
+        while (!closing && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            backoff = Math.min(backoff * 2, 5000);
+            try {
+                if (sessionToken != null && resumeSession()) {
+                    return true;
+                }
+                startNewSession();
+                return true;
+            } catch (IOException e) {
+                System.err.println("重连失败: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private boolean resumeSession() throws IOException {
+        Socket newSocket = openSocket();
+        BufferedReader newIn = new BufferedReader(new InputStreamReader(newSocket.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter newOut = new PrintWriter(new OutputStreamWriter(newSocket.getOutputStream(), StandardCharsets.UTF_8), true);
+
+        Message resumeMsg = new Message(username, null, sessionToken, MessageType.RESUME);
+        synchronized (sendLock) {
+            resumeMsg.setAck(lastReceivedSeq);
+        }
+        newOut.println(JsonUtil.toJson(resumeMsg));
+        String reply = newIn.readLine();
+        Message replyMsg = reply == null ? null : JsonUtil.fromJson(reply, Message.class);
+        if (replyMsg == null || replyMsg.getType() != MessageType.RESUME
+                || replyMsg.getContent() == null || replyMsg.getContent().isEmpty()) {
+            newSocket.close();
+            return false;
+        }
+
+        synchronized (sendLock) {
+            outbound.acknowledge(replyMsg.getAck());
+            for (String frame : outbound.framesAfter(replyMsg.getAck())) {
+                newOut.println(frame);
+            }
+            lastAckSent = lastReceivedSeq;
+            socket = newSocket;
+            in = newIn;
+            out = newOut;
+        }
+        return true;
+    }
+
+    /**
+     * 服务端拒绝续传时重新登录。旧会话中未确认的帧在登录后按原顺序重发，
+     * 服务端可能已经收到其中一部分，宁可重复也不丢消息。
+     */
+    private void startNewSession() throws IOException {
+        Socket newSocket = openSocket();
+        synchronized (sendLock) {
+            List<String> unacknowledged = outbound.framesAfter(0);
+            outbound = new RetransmitBuffer(RETRANSMIT_BUFFER_SIZE);
+            sessionToken = null;
+            lastReceivedSeq = 0;
+            lastAckSent = 0;
+            attach(newSocket);
+            sendLoginMessage();
+            for (String frame : unacknowledged) {
+                sendFrame(Collections.singletonList(JsonUtil.fromJson(frame, Message.class)));
+            }
+        }
+    }
+
+    private void closeSocketQuietly() {
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -350,49 +654,201 @@ public class ChatClient extends JFrame {
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    private void disconnect() {
+        closing = true;
+        saveFriendList();
+        outboundBatcher.flush();
+        sendControl(new Message(username, null, "", MessageType.LOGOUT));
+        closeSocketQuietly();
         System.exit(0);
     }
 
     private void handleMessage(Message message) {
-        SwingUtilities.invokeLater(() -> {
+        // 接收线程只入队，由 InboundDispatcher 按帧合批后在 EDT 上渲染
+        inboundDispatcher.submit(message);
+    }
+
+    private void renderBatch(List<Message> batch) {
+        Map<String, List<String>> linesByConversation = new LinkedHashMap<>();
+        String latestOnlineUsers = null;
+        String latestFriendList = null;
+        List<Message> fileOffers = new ArrayList<>();
+        for (Message message : batch) {
             try {
                 switch (message.getType()) {
                     case CHAT:
-                        handleChatMessage(message);
+                        linesByConversation.computeIfAbsent(peerOf(message), k -> new ArrayList<>())
+                                .add(formatChatMessage(message));
                         break;
                     case ONLINE_USERS:
-                        updateOnlineClients(message.getContent());
+                        // 同一批中只有最后一份在线列表有意义
+                        latestOnlineUsers = message.getContent();
                         break;
                     case FRIEND_LIST:
-                        updateFriendList(message.getContent());
+                    case FRIEND_LIST_UPDATE:
+                        latestFriendList = message.getContent();
+                        break;
+                    case STATUS_UPDATE:
+                        linesByConversation.computeIfAbsent(SYSTEM_CONVERSATION, k -> new ArrayList<>())
+                                .add(formatStatusUpdate(message));
+                        break;
+                    case USER_SEARCH_RESULT:
+                        updateUserSearchResults(message);
+                        break;
+                    case FRIEND_SUGGESTION_RESULT:
+                        linesByConversation.computeIfAbsent(SYSTEM_CONVERSATION, k -> new ArrayList<>())
+                                .add(formatFriendSuggestions(message.getContent()));
+                        break;
+                    case MUTUAL_FRIENDS_RESULT:
+                        linesByConversation.computeIfAbsent(SYSTEM_CONVERSATION, k -> new ArrayList<>())
+                                .add("与 " + message.getFrom() + " 的共同好友: "
+                                        + (message.getContent().isEmpty() ? "无" : message.getContent()));
+                        break;
+                    case SEARCH_RESULT:
+                        linesByConversation.computeIfAbsent(SEARCH_CONVERSATION, k -> new ArrayList<>())
+                                .addAll(formatSearchResults(message.getContent()));
+                        break;
+                    case FILE_OFFER:
+                        FileOffer offer = JsonUtil.fromJson(message.getContent(), FileOffer.class);
+                        linesByConversation.computeIfAbsent(peerOf(message), k -> new ArrayList<>())
+                                .add(message.getFrom() + " 发来文件: " + offer.getFileName() + " (" + offer.getSize() + " 字节)");
+                        fileOffers.add(message);
+                        break;
+                    case FILE_READY:
+                        startDownload(JsonUtil.fromJson(message.getContent(), FileOffer.class));
                         break;
-                    case STATUS_UPDATE: // 添加此case
-                        handleStatusUpdate(message);
+                    case FILE_REJECT:
+                        linesByConversation.computeIfAbsent(peerOf(message), k -> new ArrayList<>())
+                                .add(message.getFrom() + " 拒绝了文件");
                         break;
-                    case FRIEND_LIST_UPDATE: // 添加此case
-                        handleFriendListUpdate(message);
+                    case THROTTLED:
+                        linesByConversation.computeIfAbsent(SYSTEM_CONVERSATION, k -> new ArrayList<>())
+                                .add("发送过快，部分消息已被服务器丢弃" + (message.getContent().isEmpty() ? "" : " (" + message.getContent() + ")"));
                         break;
                     default:
                         System.err.println("未知的消息格式: " + message.getType());
                 }
             } catch (Exception e) {
                 e.printStackTrace();
-                JOptionPane.showMessageDialog(this, "错误处理消息: " + e.getMessage());
             }
-        });
+        }
+
+        for (Map.Entry<String, List<String>> entry : linesByConversation.entrySet()) {
+            appendToConversation(entry.getKey(), entry.getValue());
+        }
+        if (latestOnlineUsers != null) {
+            updateOnlineClients(latestOnlineUsers);
+        }
+        if (latestFriendList != null) {
+            updateFriendList(latestFriendList);
+        }
+        // 确认框是模态的，放到本批渲染完成之后再弹出
+        for (Message offer : fileOffers) {
+            SwingUtilities.invokeLater(() -> promptFileOffer(offer));
+        }
     }
 
-    private void handleStatusUpdate(Message message) {
-        String status = "online".equals(message.getContent()) ? "上线啦！" : "下线啦！";
-        appendToChatArea(String.format("%s %s", message.getFrom(), status));
+    private FileTransferClient fileTransferClient() {
+        return new FileTransferClient(config.getProperty("serverHost", "localhost"),
+                Integer.parseInt(config.getProperty("fileTransferPort", "9001")));
     }
 
-    private void handleFriendListUpdate(Message message) {
-        String friendListStr = message.getContent();
-        updateFriendList(friendListStr);
+    private void sendFile() {
+        String recipient = onlineClientList.getSelectedValue();
+        if (recipient == null) {
+            recipient = friendList.getSelectedValue();
+        }
+        if (recipient == null || recipient.equals(username) || "Me".equals(recipient)) {
+            JOptionPane.showMessageDialog(this, "请选择一个接收者");
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        String token = sessionToken;
+        if (token == null) {
+            JOptionPane.showMessageDialog(this, "尚未建立会话，请稍后再试");
+            return;
+        }
+        FileOffer offer = new FileOffer(UUID.randomUUID().toString(), file.getName(), file.length());
+        sendMessage(new Message(username, recipient, JsonUtil.toJson(offer), MessageType.FILE_OFFER));
+        String peer = recipient;
+        appendToConversation(peer, List.of("Me >> " + peer + " : 发送文件 " + file.getName()));
+
+        // 上传走独立的文件连接，不影响聊天消息
+        new Thread(() -> {
+            String result;
+            try {
+                fileTransferClient().upload(token, offer.getTransferId(), file.toPath());
+                result = "文件已上传: " + file.getName();
+            } catch (IOException e) {
+                result = "文件上传失败: " + file.getName() + ", " + e.getMessage();
+            }
+            String line = result;
+            SwingUtilities.invokeLater(() -> appendToConversation(peer, List.of(line)));
+        }, "file-upload").start();
+    }
+
+    private void promptFileOffer(Message message) {
+        FileOffer offer = JsonUtil.fromJson(message.getContent(), FileOffer.class);
+        int choice = JOptionPane.showConfirmDialog(this,
+                message.getFrom() + " 想发送文件 " + offer.getFileName() + " (" + offer.getSize() + " 字节)，是否接收？",
+                "接收文件", JOptionPane.YES_NO_OPTION);
+        MessageType reply = choice == JOptionPane.YES_OPTION ? MessageType.FILE_ACCEPT : MessageType.FILE_REJECT;
+        sendMessage(new Message(username, message.getFrom(), offer.getTransferId(), reply));
+    }
+
+    private void startDownload(FileOffer offer) {
+        String token = sessionToken;
+        Path target = Paths.get("user_data", "downloads", Paths.get(offer.getFileName()).getFileName().toString());
+        new Thread(() -> {
+            String result;
+            try {
+                Files.createDirectories(target.getParent());
+                Path saved = fileTransferClient().download(token, offer.getTransferId(), target);
+                result = "文件已保存到: " + saved;
+            } catch (IOException e) {
+                result = "文件下载失败: " + offer.getFileName() + ", " + e.getMessage();
+            }
+            String line = result;
+            SwingUtilities.invokeLater(() -> appendToConversation(SYSTEM_CONVERSATION, List.of(line)));
+        }, "file-download").start();
+    }
+
+    private List<String> formatSearchResults(String json) {
+        Message[] results = JsonUtil.fromJson(json, Message[].class);
+        List<String> lines = new ArrayList<>();
+        lines.add("---- 共 " + (results == null ? 0 : results.length) + " 条结果 ----");
+        if (results != null) {
+            for (Message result : results) {
+                lines.add(formatChatMessage(result));
+            }
+        }
+        return lines;
+    }
+
+    private void searchHistory() {
+        String query = JOptionPane.showInputDialog(this, "搜索聊天记录:");
+        if (query != null && !query.trim().isEmpty()) {
+            sendMessage(new Message(username, null, query.trim(), MessageType.SEARCH));
+            conversationTabs.setSelectedComponent(getConversationView(SEARCH_CONVERSATION).getParent().getParent());
+        }
+    }
+
+    private String peerOf(Message message) {
+        return message.getFrom().equals(username) ? message.getTo() : message.getFrom();
     }
 
-    private void handleChatMessage(Message message) {
+    private String formatStatusUpdate(Message message) {
+        String status = "online".equals(message.getContent()) ? "上线啦！" : "下线啦！";
+        return String.format("%s %s", message.getFrom(), status);
+    }
+
+    private String formatChatMessage(Message message) {
         String from = message.getFrom().equals(username) ? "Me" : message.getFrom();
         String to = message.getTo().equals(username) ? "Me" : message.getTo();
         String content = message.getContent();
@@ -401,13 +857,51 @@ public class ChatClient extends JFrame {
             content = "【离线消息】" + content;
         }
 
-        String displayText = String.format("%s >> %s : %s", from, to, content);
-        appendToChatArea(displayText);
+        return String.format("%s >> %s : %s", from, to, content);
+    }
+
+    private JList<String> getConversationView(String peer) {
+        JList<String> view = conversationViews.get(peer);
+        if (view == null) {
+            view = new JList<>(new ConversationListModel(CONVERSATION_WINDOW));
+            // 只固定行高（取原型行的高度），JList 只需渲染可见行；
+            // 宽度按最长的一行计算，长消息由横向滚动条查看而不是被截断
+            view.setPrototypeCellValue("Me >> " + peer + " : 消息内容");
+            view.setFixedCellWidth(-1);
+            conversationTabs.addTab(peer, new JScrollPane(view));
+            conversationViews.put(peer, view);
+        }
+        return view;
+    }
+
+    private void showConversation(String peer) {
+        if (peer == null || "Me".equals(peer) || peer.equals(username)) {
+            return;
+        }
+        JList<String> view = getConversationView(peer);
+        conversationTabs.setSelectedComponent(view.getParent().getParent());
+    }
+
+    private void appendToConversation(String peer, List<String> lines) {
+        JList<String> view = getConversationView(peer);
+        ConversationListModel model = (ConversationListModel) view.getModel();
+        model.addAll(lines);
+        view.ensureIndexIsVisible(model.getSize() - 1);
+
+        int tabIndex = conversationTabs.indexOfComponent(view.getParent().getParent());
+        if (tabIndex != conversationTabs.getSelectedIndex()) {
+            conversationTabs.setTitleAt(tabIndex, peer + " (新)");
+        }
     }
 
-    private void appendToChatArea(String text) {
-        chatArea.append(text + "\n");
-        chatArea.setCaretPosition(chatArea.getDocument().getLength());
+    private void clearUnreadMark() {
+        int tabIndex = conversationTabs.getSelectedIndex();
+        if (tabIndex >= 0) {
+            String title = conversationTabs.getTitleAt(tabIndex);
+            if (title.endsWith(" (新)")) {
+                conversationTabs.setTitleAt(tabIndex, title.substring(0, title.length() - " (新)".length()));
+            }
+        }
     }
 
     private void updateFriendList(String friendListStr) {
@@ -442,7 +936,30 @@ public class ChatClient extends JFrame {
     }
 
     private void sendMessage(Message message) {
-        out.println(JsonUtil.toJson(message));
+        outboundBatcher.submit(message);
+    }
+
+    /**
+     * 多条消息打包成一个 BATCH 帧，整帧占一个序号，续传时整帧重发。
+     */
+    private void sendFrame(List<Message> messages) {
+        Message frame = messages.size() == 1 ? messages.get(0)
+                : new Message(username, null, JsonUtil.toJson(messages), MessageType.BATCH);
+        synchronized (sendLock) {
+            String json = outbound.stamp(frame, lastReceivedSeq);
+            lastAckSent = lastReceivedSeq;
+            if (out != null) {
+                out.println(json);
+            }
+        }
+    }
+
+    private void sendControl(Message message) {
+        synchronized (sendLock) {
+            if (out != null) {
+                out.println(JsonUtil.toJson(message));
+            }
+        }
     }
 
     private void sendChatMessage() {
@@ -460,7 +977,7 @@ public class ChatClient extends JFrame {
         if (!content.isEmpty()) {
             Message chatMsg = new Message(username, recipient, content, MessageType.CHAT);
             sendMessage(chatMsg);
-            appendToChatArea("Me >> " + recipient + " : " + content);
+            appendToConversation(recipient, List.of("Me >> " + recipient + " : " + content));
             messageField.setText("");
         }
     }
@@ -0,0 +1,71 @@
+package client;
+
+import javax.swing.*;
+import java.util.List;
+
+/**
+ * 有界的会话列表模型：只在内存中保留最近的若干行，超出部分从头部丢弃。
+ * 配合 JList 使用时只会渲染可见行，消息再多也不会拖慢界面。
+ * 只能在事件分发线程(EDT)上访问。
+ */
+public class ConversationListModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] lines;
+    private int head;
+    private int size;
+
+    public ConversationListModel(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.lines = new String[capacity];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+        return lines[(head + index) % lines.length];
+    }
+
+    public void add(String line) {
+        addAll(List.of(line));
+    }
+
+    /**
+     * 批量追加，每批最多触发一次删除事件和一次新增事件。
+     */
+    public void addAll(List<String> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        int capacity = lines.length;
+        // 一批就超过容量时，只需要保留最后 capacity 行
+        List<String> tail = batch.size() > capacity ? batch.subList(batch.size() - capacity, batch.size()) : batch;
+
+        int overflow = size + tail.size() - capacity;
+        if (overflow > 0) {
+            head = (head + overflow) % capacity;
+            size -= overflow;
+            fireIntervalRemoved(this, 0, overflow - 1);
+        }
+
+        int firstNew = size;
+        for (String line : tail) {
+            lines[(head + size) % capacity] = line;
+            size++;
+        }
+        fireIntervalAdded(this, firstNew, size - 1);
+    }
+
+    public int getCapacity() {
+        return lines.length;
+    }
+}
@@ -0,0 +1,118 @@
+package client;
+
+import common.FileTransferProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 文件传输通道的客户端，每次传输单独建立连接，失败时从服务器确认的偏移续传。
+ */
+public class FileTransferClient {
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final String host;
+    private final int port;
+
+    public FileTransferClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public void upload(String token, String transferId, Path file) throws IOException {
+        IOException lastError = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            try (SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, port));
+                 FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+                FileTransferProtocol.writeRequest(ch, FileTransferProtocol.OP_UPLOAD, token, transferId);
+                long offset = FileTransferProtocol.readLong(ch);
+                long size = source.size();
+                while (offset < size) {
+                    int length = (int) Math.min(FileTransferProtocol.CHUNK_SIZE, size - offset);
+                    FileTransferProtocol.writeInt(ch, length);
+                    long sent = 0;
+                    while (sent < length) {
+                        sent += source.transferTo(offset + sent, length - sent, ch);
+                    }
+                    offset += length;
+                }
+                FileTransferProtocol.writeInt(ch, 0);
+                long confirmed = FileTransferProtocol.readLong(ch);
+                if (confirmed != size) {
+                    throw new IOException("服务器确认的长度不符: " + confirmed + "/" + size);
+                }
+                return;
+            } catch (IOException e) {
+                lastError = e;
+                sleepBeforeRetry(attempt);
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * 下载到 target 所在目录；未完成的部分按传输号保存为 &lt;传输号&gt;.part，同一传输再次调用会从断点继续，
+     * 同名的其他文件不会续传到一起。target 已存在时改用 "名称 (n).扩展名"，不覆盖已有文件。
+     *
+     * @return 实际保存的路径
+     */
+    public Path download(String token, String transferId, Path target) throws IOException {
+        Path part = target.resolveSibling(transferId.replaceAll("[^A-Za-z0-9-]", "_") + ".part");
+        IOException lastError = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            try (SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, port));
+                 FileChannel sink = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long offset = sink.size();
+                FileTransferProtocol.writeRequest(ch, FileTransferProtocol.OP_DOWNLOAD, token, transferId);
+                FileTransferProtocol.writeLong(ch, offset);
+                long size = FileTransferProtocol.readLong(ch);
+                while (offset < size) {
+                    long n = sink.transferFrom(ch, offset, Math.min(FileTransferProtocol.CHUNK_SIZE, size - offset));
+                    if (n <= 0) {
+                        throw new IOException("下载连接已关闭");
+                    }
+                    offset += n;
+                }
+                sink.force(false);
+                FileTransferProtocol.writeLong(ch, offset);
+            } catch (IOException e) {
+                lastError = e;
+                sleepBeforeRetry(attempt);
+                continue;
+            }
+            return moveToFreeName(part, target);
+        }
+        throw lastError;
+    }
+
+    private static Path moveToFreeName(Path part, Path target) throws IOException {
+        String name = target.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        Path candidate = target;
+        for (int n = 1; ; n++) {
+            try {
+                // 不带 REPLACE_EXISTING，目标已存在时失败而不是覆盖
+                return Files.move(part, candidate);
+            } catch (FileAlreadyExistsException e) {
+                candidate = target.resolveSibling(base + " (" + n + ")" + extension);
+            }
+        }
+    }
+
+    private static void sleepBeforeRetry(int attempt) throws IOException {
+        try {
+            Thread.sleep(500L << attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("传输被中断", e);
+        }
+    }
+}
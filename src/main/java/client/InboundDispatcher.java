@@ -0,0 +1,74 @@
+package client;
+
+import common.Message;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 入站消息合批器。接收线程只负责入队，EDT 每个帧间隔取一次队列，
+ * 把这段时间内到达的所有消息作为一批交给渲染回调，避免每条消息一次 invokeLater。
+ */
+public class InboundDispatcher {
+    public static final int DEFAULT_FRAME_INTERVAL_MS = 16;
+    public static final int DEFAULT_MAX_BATCH = 5000;
+
+    private final ConcurrentLinkedQueue<Message> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final Consumer<List<Message>> renderer;
+    private final int maxBatch;
+    private final Timer timer;
+
+    public InboundDispatcher(Consumer<List<Message>> renderer) {
+        this(renderer, DEFAULT_FRAME_INTERVAL_MS, DEFAULT_MAX_BATCH);
+    }
+
+    public InboundDispatcher(Consumer<List<Message>> renderer, int frameIntervalMs, int maxBatch) {
+        this.renderer = renderer;
+        this.maxBatch = maxBatch;
+        this.timer = new Timer(frameIntervalMs, e -> drain());
+        this.timer.setCoalesce(true);
+    }
+
+    public void start() {
+        timer.start();
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    /**
+     * 可以在任意线程调用。
+     */
+    public void submit(Message message) {
+        pending.offer(message);
+        pendingCount.incrementAndGet();
+    }
+
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    // 在 EDT 上执行；单帧最多处理 maxBatch 条，剩余的留到下一帧，保证界面仍能响应输入
+    private void drain() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Message> batch = new ArrayList<>(Math.min(pendingCount.get(), maxBatch));
+        Message message;
+        while (batch.size() < maxBatch && (message = pending.poll()) != null) {
+            batch.add(message);
+        }
+        pendingCount.addAndGet(-batch.size());
+        try {
+            renderer.accept(batch);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package client;
+
+import common.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 出站消息合批器。调用方只入队，发送线程在第一条消息到达后最多再等 linger 毫秒，
+ * 把这段时间内的消息（最多 maxBatch 条）一次交给发送回调，由它打包成一个 BATCH 帧。
+ * 攒满 maxBatch 条时立即发送；linger 为 0 时不合批，直接在调用线程发送。
+ */
+public class OutboundBatcher implements Runnable {
+    private final ArrayDeque<Message> pending = new ArrayDeque<>();
+    private final Consumer<List<Message>> sender;
+    private final long lingerNanos;
+    private final int maxBatch;
+    // 发送线程与 flush 互斥，保证批次按入队顺序写出
+    private final Object drainLock = new Object();
+
+    public OutboundBatcher(Consumer<List<Message>> sender, long lingerMillis, int maxBatch) {
+        this.sender = sender;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    public void start() {
+        if (lingerNanos <= 0 || maxBatch == 1) {
+            return;
+        }
+        Thread thread = new Thread(this, "outbound-batcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 可以在任意线程调用。
+     */
+    public void submit(Message message) {
+        if (lingerNanos <= 0 || maxBatch == 1) {
+            synchronized (drainLock) {
+                sender.accept(Collections.singletonList(message));
+            }
+            return;
+        }
+        synchronized (this) {
+            pending.add(message);
+            notifyAll();
+        }
+    }
+
+    /**
+     * 立即写出已排队的消息，用于退出前。
+     */
+    public void flush() {
+        while (drainOnce()) {
+            // 超过 maxBatch 时分多批写出
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (pending.isEmpty()) {
+                        wait();
+                    }
+                    long deadline = System.nanoTime() + lingerNanos;
+                    long remaining;
+                    while (pending.size() < maxBatch && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                }
+                drainOnce();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean drainOnce() {
+        synchronized (drainLock) {
+            List<Message> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return false;
+                }
+                batch = new ArrayList<>(Math.min(pending.size(), maxBatch));
+                while (batch.size() < maxBatch && !pending.isEmpty()) {
+                    batch.add(pending.poll());
+                }
+            }
+            sender.accept(batch);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package common;
+
+/**
+ * FILE_OFFER 消息的内容（以 JSON 形式放在 Message.content 中）。
+ */
+public class FileOffer {
+    private String transferId;
+    private String fileName;
+    private long size;
+
+    public FileOffer(String transferId, String fileName, long size) {
+        this.transferId = transferId;
+        this.fileName = fileName;
+        this.size = size;
+    }
+
+    public String getTransferId() { return transferId; }
+    public String getFileName() { return fileName; }
+    public long getSize() { return size; }
+}
@@ -0,0 +1,104 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 文件传输通道的二进制协议，走独立于聊天连接的 TCP 连接。
+ * <pre>
+ * 请求头: 操作(1 字节) + 令牌长度(short) + 会话令牌 + 传输号长度(short) + 传输号
+ * 上传:   服务器回复已保存的偏移(long)，客户端从该偏移起发送若干块 [长度(int) + 数据]，长度 0 结束，
+ *         服务器再回复已落盘的总长(long)作为确认
+ * 下载:   请求头后跟客户端已有的偏移(long)，服务器回复文件总长(long)，随后是从该偏移起的原始字节，
+ *         客户端落盘后回传收到的总长(long)作为确认
+ * </pre>
+ * 所有读写都按精确字节数进行，之后的文件数据可以直接交给 FileChannel.transferTo/transferFrom。
+ */
+public final class FileTransferProtocol {
+    public static final byte OP_UPLOAD = 1;
+    public static final byte OP_DOWNLOAD = 2;
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    public static final class Request {
+        public final byte op;
+        public final String token;
+        public final String transferId;
+
+        Request(byte op, String token, String transferId) {
+            this.op = op;
+            this.token = token;
+            this.transferId = transferId;
+        }
+    }
+
+    private FileTransferProtocol() {
+    }
+
+    public static void writeRequest(WritableByteChannel channel, byte op, String token, String transferId)
+            throws IOException {
+        byte[] tokenBytes = token.getBytes(StandardCharsets.UTF_8);
+        byte[] idBytes = transferId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 2 + tokenBytes.length + 2 + idBytes.length);
+        buffer.put(op);
+        buffer.putShort((short) tokenBytes.length).put(tokenBytes);
+        buffer.putShort((short) idBytes.length).put(idBytes);
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+
+    public static Request readRequest(ReadableByteChannel channel) throws IOException {
+        ByteBuffer head = readExactly(channel, 3);
+        byte op = head.get();
+        String token = readString(channel, head.getShort());
+        String transferId = readString(channel, readExactly(channel, 2).getShort());
+        return new Request(op, token, transferId);
+    }
+
+    public static long readLong(ReadableByteChannel channel) throws IOException {
+        return readExactly(channel, 8).getLong();
+    }
+
+    public static int readInt(ReadableByteChannel channel) throws IOException {
+        return readExactly(channel, 4).getInt();
+    }
+
+    public static void writeLong(WritableByteChannel channel, long value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8).putLong(value);
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+
+    public static void writeInt(WritableByteChannel channel, int value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4).putInt(value);
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+
+    public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String readString(ReadableByteChannel channel, int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("字段长度无效: " + length);
+        }
+        return new String(readExactly(channel, length).array(), StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer readExactly(ReadableByteChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("文件传输连接已关闭");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
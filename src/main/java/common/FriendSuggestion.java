@@ -0,0 +1,17 @@
+package common;
+
+/**
+ * FRIEND_SUGGESTION_RESULT 消息内容中的一项（以 JSON 数组形式放在 Message.content 中）。
+ */
+public class FriendSuggestion {
+    private String username;
+    private int mutualCount;
+
+    public FriendSuggestion(String username, int mutualCount) {
+        this.username = username;
+        this.mutualCount = mutualCount;
+    }
+
+    public String getUsername() { return username; }
+    public int getMutualCount() { return mutualCount; }
+}
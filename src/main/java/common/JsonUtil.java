@@ -1,6 +1,7 @@
 package common;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
 
 public class JsonUtil {
     private static final Gson gson = new Gson();
@@ -12,4 +13,8 @@ public class JsonUtil {
     public static <T> T fromJson(String json, Class<T> classOfT) {
         return gson.fromJson(json, classOfT);
     }
+
+    public static <T> T fromJson(JsonReader reader, Class<T> classOfT) {
+        return gson.fromJson(reader, classOfT);
+    }
 } 
\ No newline at end of file
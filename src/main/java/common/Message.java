@@ -7,7 +7,12 @@ public class Message implements Serializable {
     private static final long serialVersionUID = 1L;
 
     public enum MessageType {
-        LOGIN, LOGOUT, CHAT, FRIEND_REQUEST, FRIEND_LIST, STATUS_UPDATE, ONLINE_USERS, REMOVE_FRIEND, FRIEND_LIST_UPDATE, OFFLINE_MESSAGE
+        LOGIN, LOGOUT, CHAT, FRIEND_REQUEST, FRIEND_LIST, STATUS_UPDATE, ONLINE_USERS, REMOVE_FRIEND, FRIEND_LIST_UPDATE, OFFLINE_MESSAGE,
+        SESSION, RESUME, ACK, THROTTLED, PING, PONG,
+        SEARCH, SEARCH_RESULT, FILE_OFFER, FILE_ACCEPT, FILE_REJECT, FILE_READY,
+        USER_SEARCH, USER_SEARCH_RESULT,
+        FRIEND_SUGGESTION, FRIEND_SUGGESTION_RESULT, MUTUAL_FRIENDS, MUTUAL_FRIENDS_RESULT,
+        BATCH
     }
 
     private String id;
@@ -16,19 +21,44 @@ public class Message implements Serializable {
     private String content;
     private MessageType type;
     private long timestamp;
-    
+    // 会话内序号，0 表示不参与重传的控制帧
+    private long seq;
+    // 累计确认：对端已收到的最大序号
+    private long ack;
+    // 服务器端的采样追踪，只在进程内随消息传递，不参与序列化
+    private transient Object trace;
+
     public Message(String from, String to, String content, MessageType type) {
-        this.id = UUID.randomUUID().toString();
+        this(UUID.randomUUID().toString(), from, to, content, type);
+    }
+
+    /**
+     * 使用调用方给定的消息号，批量导入时用来避免逐条生成随机 UUID。
+     */
+    public Message(String id, String from, String to, String content, MessageType type) {
+        this.id = id;
         this.from = from;
         this.to = to;
         this.content = content;
         this.type = type;
         this.timestamp = System.currentTimeMillis();
     }
+
+    public Message(Message other) {
+        this.id = other.id;
+        this.from = other.from;
+        this.to = other.to;
+        this.content = other.content;
+        this.type = other.type;
+        this.timestamp = other.timestamp;
+        this.seq = other.seq;
+        this.ack = other.ack;
+    }
     
     // Getters and Setters
 
     public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
     public String getFrom() { return from; }
     public void setFrom(String from) { this.from = from; }
     
@@ -43,4 +73,13 @@ public class Message implements Serializable {
     
     public long getTimestamp() { return timestamp; }
     public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
-} 
\ No newline at end of file
+
+    public long getSeq() { return seq; }
+    public void setSeq(long seq) { this.seq = seq; }
+
+    public long getAck() { return ack; }
+    public void setAck(long ack) { this.ack = ack; }
+
+    public Object getTrace() { return trace; }
+    public void setTrace(Object trace) { this.trace = trace; }
+}
\ No newline at end of file
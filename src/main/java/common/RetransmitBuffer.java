@@ -0,0 +1,92 @@
+package common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 发送方的有界重传缓冲区。每个发出的帧分配一个递增序号并保留其 JSON，
+ * 收到对端的累计确认后丢弃已确认的帧；断线重连时重发确认点之后的帧。
+ * 缓冲区满时丢弃最旧的帧，此后无法再从更早的确认点恢复；被丢弃的帧交给 onEvict（如果有）。
+ */
+public class RetransmitBuffer {
+    private static final class Frame {
+        final long seq;
+        final String json;
+
+        Frame(long seq, String json) {
+            this.seq = seq;
+            this.json = json;
+        }
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Frame> frames;
+    private final Consumer<String> onEvict;
+    private long nextSeq = 1;
+    private long lastAcked;
+
+    public RetransmitBuffer(int capacity) {
+        this(capacity, null);
+    }
+
+    public RetransmitBuffer(int capacity, Consumer<String> onEvict) {
+        this.capacity = capacity;
+        this.frames = new ArrayDeque<>(Math.min(capacity, 256));
+        this.onEvict = onEvict;
+    }
+
+    /**
+     * 为消息的副本分配序号并缓存，返回要写出的 JSON。原消息可能被多个连接共享，不会被修改。
+     */
+    public synchronized String stamp(Message message, long ack) {
+        Message frame = new Message(message);
+        frame.setSeq(nextSeq++);
+        frame.setAck(ack);
+        String json = JsonUtil.toJson(frame);
+        if (frames.size() >= capacity) {
+            Frame evicted = frames.pollFirst();
+            if (onEvict != null) {
+                onEvict.accept(evicted.json);
+            }
+        }
+        frames.addLast(new Frame(frame.getSeq(), json));
+        return json;
+    }
+
+    public synchronized void acknowledge(long ack) {
+        if (ack <= lastAcked || ack >= nextSeq) {
+            return;
+        }
+        lastAcked = ack;
+        while (!frames.isEmpty() && frames.peekFirst().seq <= ack) {
+            frames.pollFirst();
+        }
+    }
+
+    /**
+     * 对端声称已收到 ack 之前的所有帧，判断之后的帧是否都还在缓冲区中。
+     */
+    public synchronized boolean canResumeFrom(long ack) {
+        if (ack >= nextSeq) {
+            return false;
+        }
+        long firstRetained = frames.isEmpty() ? nextSeq : frames.peekFirst().seq;
+        return ack + 1 >= firstRetained;
+    }
+
+    public synchronized List<String> framesAfter(long ack) {
+        List<String> result = new ArrayList<>();
+        for (Frame frame : frames) {
+            if (frame.seq > ack) {
+                result.add(frame.json);
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return frames.size();
+    }
+}
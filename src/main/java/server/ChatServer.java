@@ -1,32 +1,52 @@
 package server;
 
+import common.FileOffer;
+import common.JsonUtil;
 import common.Message;
 import common.Message.MessageType;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-public class ChatServer {
+public final class ChatServer {
     private static final Logger logger = Logger.getLogger(ChatServer.class.getName());
     private static final int INITIAL_PORT = 9000;
+    private static final int SEARCH_RESULT_LIMIT = 50;
+    private static final int USER_SEARCH_LIMIT = 10;
+    private static final int FRIEND_SUGGESTION_LIMIT = 10;
 
     private ServerSocket serverSocket;
     private final ExecutorService executorService;
+    // 所有连接的出站通道共用的写线程
+    private final ExecutorService outboundWriters;
     private final Map<String, ClientHandler> onlineUsers;
     private final Map<String, List<Message>> offlineMessages;
     private final Properties config;
     private final FriendManager friendManager;
     private final MessageHistory messageHistory;
+    private final ChatStorage storage;
+    private final SessionManager sessionManager;
+    private final RateLimiter rateLimiter;
+    private final HashedTimingWheel timingWheel;
+    private SearchIndex searchIndex;
+    private final FileTransferServer fileTransferServer;
     private volatile boolean running;
     private Set<String> loggedMessages = new HashSet<>();
-    private Set<String> forwardedMessages = Collections.synchronizedSet(new HashSet<>());
+    private final Set<String> forwardedMessages = ConcurrentHashMap.newKeySet();
+    private final DeliveryEngine deliveryEngine;
+    private final UserStateLoader userStateLoader;
+    private final UserDirectory userDirectory = new UserDirectory();
+    private final StorageCompactor storageCompactor;
+    private final int traceSampleInterval;
 
 
     public ChatServer() {
@@ -34,10 +54,45 @@ public class ChatServer {
         this.onlineUsers = new ConcurrentHashMap<>();
         this.offlineMessages = new ConcurrentHashMap<>();
         this.config = new Properties();
-        this.friendManager = new FriendManager();
-        this.messageHistory = new MessageHistory();
         this.running = false;
         loadConfig();
+        this.outboundWriters = Executors.newFixedThreadPool(
+                Integer.parseInt(config.getProperty("outbound.writerThreads", "8")), r -> {
+                    Thread t = new Thread(r, "outbound-writer");
+                    t.setDaemon(true);
+                    return t;
+                });
+        try {
+            this.storage = ChatStorage.fromConfig(config);
+        } catch (IOException e) {
+            throw new IllegalStateException("初始化存储失败: " + e.getMessage(), e);
+        }
+        this.friendManager = new FriendManager(storage);
+        this.messageHistory = new MessageHistory(storage, "lazy".equals(config.getProperty("historyLoading", "lazy")),
+                Long.parseLong(config.getProperty("historyCacheMb", "64")) * 1024 * 1024);
+        this.sessionManager = new SessionManager(
+                Long.parseLong(config.getProperty("sessionGraceSeconds", "30")) * 1000,
+                Integer.parseInt(config.getProperty("retransmitBufferSize", "1024")),
+                this::rescueFrame);
+        this.rateLimiter = new RateLimiter(config);
+        this.timingWheel = new HashedTimingWheel(100, TimeUnit.MILLISECONDS, 512, executorService);
+        openSearchIndex();
+        this.deliveryEngine = new DeliveryEngine(
+                Integer.parseInt(config.getProperty("deliveryStripes",
+                        String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                Integer.parseInt(config.getProperty("deliveryQueueCapacity", "10000")));
+        this.fileTransferServer = new FileTransferServer(this, executorService,
+                Paths.get(config.getProperty("fileStorageDir", "user_data/files")),
+                Integer.parseInt(config.getProperty("fileTransferPort", "9001")),
+                Long.parseLong(config.getProperty("maxFileSizeMb", "100")) * 1024 * 1024,
+                TimeUnit.MINUTES.toMillis(Long.parseLong(config.getProperty("fileTransferTtlMinutes", "1440"))));
+        this.userStateLoader = new UserStateLoader(storage, this::loadUserState);
+        this.traceSampleInterval = Integer.parseInt(config.getProperty("trace.sampleInterval", "100"));
+        RetentionPolicy retentionPolicy = RetentionPolicy.fromConfig(config);
+        messageHistory.setRetentionPolicy(retentionPolicy);
+        this.storageCompactor = new StorageCompactor(this, messageHistory, storage, deliveryEngine, retentionPolicy,
+                Long.parseLong(config.getProperty("retention.compactBytesPerSecond", "4194304")),
+                TimeUnit.MINUTES.toMillis(Long.parseLong(config.getProperty("retention.compactIntervalMinutes", "60"))));
     }
 
     private void loadConfig() {
@@ -54,18 +109,67 @@ public class ChatServer {
         }
     }
 
+    private void openSearchIndex() {
+        try {
+            searchIndex = new SearchIndex(Paths.get(config.getProperty("searchIndexDir", "user_data/search")),
+                    Integer.parseInt(config.getProperty("searchSnapshotInterval", "50000")));
+            messageHistory.setSearchIndex(searchIndex);
+        } catch (IOException e) {
+            logger.warning("打开搜索索引失败，搜索功能不可用: " + e.getMessage());
+        }
+    }
+
     private void setDefaultConfig() {
         config.setProperty("port", String.valueOf(INITIAL_PORT));
         config.setProperty("maxConnections", "100");
+        config.setProperty("sessionGraceSeconds", "30");
+        config.setProperty("retransmitBufferSize", "1024");
+        config.setProperty("historyLoading", "lazy");
+        config.setProperty("storage", "file");
+        config.setProperty("historyCacheMb", "64");
+        config.setProperty("heartbeatIntervalSeconds", "15");
+        config.setProperty("idleTimeoutSeconds", "45");
+        config.setProperty("searchIndexDir", "user_data/search");
+        config.setProperty("searchSnapshotInterval", "50000");
+        config.setProperty("fileTransferPort", "9001");
+        config.setProperty("fileStorageDir", "user_data/files");
+        config.setProperty("maxFileSizeMb", "100");
+        config.setProperty("fileTransferTtlMinutes", "1440");
+        config.setProperty("deliveryQueueCapacity", "10000");
+        config.setProperty("warmup.acceptEarly", "false");
+        config.setProperty("outbound.chatCapacity", "1024");
+        config.setProperty("outbound.presenceCapacity", "256");
+        config.setProperty("outbound.writerThreads", "8");
+        config.setProperty("outbound.writeTimeoutSeconds", "10");
+        config.setProperty("trace.sampleInterval", "100");
+        config.setProperty("retention.history.maxAgeDays", "365");
+        config.setProperty("retention.history.maxCount", "100");
+        config.setProperty("retention.offline.maxAgeDays", "30");
+        config.setProperty("retention.compactIntervalMinutes", "60");
+        config.setProperty("retention.compactBytesPerSecond", "4194304");
+        config.setProperty("batch.maxMessages", "100");
     }
 
     public void start() {
         int port = Integer.parseInt(config.getProperty("port", String.valueOf(INITIAL_PORT)));
         int maxConnections = Integer.parseInt(config.getProperty("maxConnections", "100"));
 
+        loadUserDirectory();
+        int warmUpThreads = Integer.parseInt(config.getProperty("warmup.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if (Boolean.parseBoolean(config.getProperty("warmup.acceptEarly", "false"))) {
+            // 边预热边接受连接，先登录的用户在登录时插队加载
+            executorService.execute(() -> userStateLoader.warmUp(warmUpThreads));
+        } else {
+            userStateLoader.warmUp(warmUpThreads);
+        }
+
         try {
             serverSocket = new ServerSocket(port);
             running = true;
+            executorService.execute(fileTransferServer);
+            storageCompactor.start();
+            scheduleStatsReport();
             logger.info("服务器启动在端口: " + port);
             logger.info("最大连接数: " + maxConnections);
 
@@ -87,8 +191,61 @@ public class ChatServer {
         }
     }
 
+    private void loadUserDirectory() {
+        try {
+            userDirectory.addAll(storage.listUsers());
+            logger.info("用户目录已加载: " + userDirectory.size() + " 个用户");
+        } catch (IOException e) {
+            logger.warning("加载用户目录失败: " + e.getMessage());
+        }
+    }
+
+    // 定期输出缓存统计，观察命中率和淘汰情况
+    private void scheduleStatsReport() {
+        timingWheel.newTimeout(() -> {
+            if (running) {
+                logger.info(messageHistory.getCacheStats());
+                logger.info(getOutboundStats());
+                scheduleStatsReport();
+            }
+        }, 5, TimeUnit.MINUTES);
+    }
+
+    OutboundLanes newOutboundLanes(Session session, Runnable onOverflow) {
+        return new OutboundLanes(session,
+                Integer.parseInt(config.getProperty("outbound.chatCapacity", "1024")),
+                Integer.parseInt(config.getProperty("outbound.presenceCapacity", "256")),
+                outboundWriters, onOverflow);
+    }
+
+    /**
+     * 各连接出站通道的积压情况；dropped 增长说明状态消息正在被丢弃。
+     */
+    String getOutboundStats() {
+        int connections = 0;
+        long chatDepth = 0, maxChatDepth = 0, presenceDepth = 0, maxPresenceDepth = 0, coalesced = 0, dropped = 0;
+        for (ClientHandler handler : onlineUsers.values()) {
+            OutboundLanes lanes = handler.getLanes();
+            if (lanes == null) {
+                continue;
+            }
+            connections++;
+            int chat = lanes.getChatDepth();
+            int presence = lanes.getPresenceDepth();
+            chatDepth += chat;
+            maxChatDepth = Math.max(maxChatDepth, chat);
+            presenceDepth += presence;
+            maxPresenceDepth = Math.max(maxPresenceDepth, presence);
+            coalesced += lanes.getCoalescedCount();
+            dropped += lanes.getDroppedCount();
+        }
+        return String.format("出站通道: %d 个连接, 聊天积压 %d (最大 %d), 状态积压 %d (最大 %d), 合并 %d, 丢弃 %d",
+                connections, chatDepth, maxChatDepth, presenceDepth, maxPresenceDepth, coalesced, dropped);
+    }
+
     public void shutdown() {
         running = false;
+        logger.info(messageHistory.getCacheStats());
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -96,6 +253,24 @@ public class ChatServer {
         } catch (IOException e) {
             logger.warning("关闭服务器套接字时出错: " + e.getMessage());
         }
+        storageCompactor.stop(5000);
+        deliveryEngine.shutdown(10, TimeUnit.SECONDS);
+        sessionManager.shutdown();
+        outboundWriters.shutdown();
+        fileTransferServer.shutdown();
+        timingWheel.stop();
+        try {
+            storage.close();
+        } catch (IOException e) {
+            logger.warning("关闭存储时出错: " + e.getMessage());
+        }
+        if (searchIndex != null) {
+            try {
+                searchIndex.close();
+            } catch (IOException e) {
+                logger.warning("关闭搜索索引时出错: " + e.getMessage());
+            }
+        }
         executorService.shutdown();
         try {
             if (!executorService.awaitTermination(60, TimeUnit.SECONDS)) {
@@ -108,16 +283,50 @@ public class ChatServer {
     }
 
     public void addOnlineUser(String username, ClientHandler handler) {
+        userStateLoader.ensureLoaded(username);
         onlineUsers.put(username, handler);
-        StorageManager.createUserFile(username);
+        try {
+            storage.registerUser(username);
+        } catch (IOException e) {
+            logger.warning("注册用户时出错: " + e.getMessage());
+        }
+        userDirectory.add(username);
         broadcastStatusUpdate(username, true);
         broadcastOnlineUsers();
     }
 
-    public void removeOnlineUser(String username) {
-        onlineUsers.remove(username);
-        broadcastStatusUpdate(username, false);
-        broadcastOnlineUsers();
+    /**
+     * 会话恢复后由新连接接管在线状态，不向其他用户广播。
+     */
+    public void reattachOnlineUser(String username, ClientHandler handler) {
+        onlineUsers.put(username, handler);
+    }
+
+    public void removeOnlineUser(String username, ClientHandler handler) {
+        if (onlineUsers.remove(username, handler)) {
+            broadcastStatusUpdate(username, false);
+            broadcastOnlineUsers();
+        }
+    }
+
+    /**
+     * 会话过期时下线该用户；未确认的聊天帧已由 SessionManager 交给 rescueFrame 转存。
+     */
+    public void expireSession(Session session, ClientHandler handler) {
+        removeOnlineUser(session.getUsername(), handler);
+        rateLimiter.removeUser(session.getUsername());
+    }
+
+    /**
+     * 会话失效、被新登录取代或重传缓冲区溢出时，未送达的聊天帧转为离线消息，其余帧丢弃。
+     */
+    private void rescueFrame(String frame) {
+        Message message = JsonUtil.fromJson(frame, Message.class);
+        if (message.getType() == MessageType.CHAT || message.getType() == MessageType.OFFLINE_MESSAGE) {
+            message.setSeq(0);
+            message.setAck(0);
+            storeOfflineMessage(message);
+        }
     }
 
     private void broadcastOnlineUsers() {
@@ -135,26 +344,86 @@ public class ChatServer {
     }
 
     public void storeOfflineMessage(Message message) {
-        offlineMessages.computeIfAbsent(message.getTo(), k -> new ArrayList<>()).add(message);
-        saveUserData(message.getTo());
+        enqueueOfflineMessage(message);
+        saveOfflineMessages(message.getTo());
+    }
+
+    private void enqueueOfflineMessage(Message message) {
+        // 先装入已持久化的队列，否则之后的保存会把它覆盖掉
+        userStateLoader.ensureLoaded(message.getTo());
+        offlineMessages.computeIfAbsent(message.getTo(), k -> Collections.synchronizedList(new ArrayList<>())).add(message);
+    }
+
+    private void saveOfflineMessages(String username) {
+        List<Message> pending = offlineMessages.get(username);
+        try {
+            if (pending == null) {
+                storage.saveOfflineMessages(username, new ArrayList<>());
+                return;
+            }
+            // 复制和写入在同一把锁内，后台整理与在线追加的写入不会乱序覆盖
+            synchronized (pending) {
+                storage.saveOfflineMessages(username, new ArrayList<>(pending));
+            }
+        } catch (IOException e) {
+            logger.warning("保存离线消息时出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 删除早于 cutoff 的离线消息，返回删除的条数。重写离线队列的写入量计入 ioBudget。
+     */
+    int expireOfflineMessages(long cutoff, TokenBucket ioBudget) throws InterruptedException {
+        int expired = 0;
+        for (Map.Entry<String, List<Message>> entry : offlineMessages.entrySet()) {
+            List<Message> pending = entry.getValue();
+            int removed;
+            int remaining;
+            synchronized (pending) {
+                int before = pending.size();
+                pending.removeIf(message -> message.getTimestamp() < cutoff);
+                removed = before - pending.size();
+                remaining = pending.size();
+            }
+            if (removed > 0) {
+                expired += removed;
+                // 整个队列重写，按每条约 256 字节估算写入量
+                ioBudget.acquire((remaining + 1) * 256.0);
+                saveOfflineMessages(entry.getKey());
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * 从存储装入单个用户的好友关系和离线队列，由 UserStateLoader 保证每个用户只调用一次。
+     */
+    private void loadUserState(String username) {
+        friendManager.loadFriendsList(username);
+        List<Message> persisted = loadOfflineMessagesFromFile(username);
+        if (!persisted.isEmpty()) {
+            offlineMessages.compute(username, (k, current) -> {
+                List<Message> merged = Collections.synchronizedList(new ArrayList<>(persisted));
+                if (current != null) {
+                    merged.addAll(current);
+                }
+                return merged;
+            });
+        }
     }
 
-    private void saveUserData(String username) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(username + ".dat"))) {
-            Map<String, Object> userData = new HashMap<>();
-            userData.put("friends", friendManager.getFriendsList(username));
-            userData.put("offlineMessages", offlineMessages.get(username));
-            oos.writeObject(userData);
+    private void saveFriends(String username) {
+        try {
+            storage.saveFriends(username, friendManager.getFriendsList(username));
         } catch (IOException e) {
-            logger.warning("保存用户数据时出错: " + e.getMessage());
+            logger.warning("保存好友列表时出错: " + e.getMessage());
         }
     }
 
     public List<Message> loadOfflineMessagesFromFile(String username) {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(username + ".dat"))) {
-            Map<String, Object> userData = (Map<String, Object>) ois.readObject();
-            return (List<Message>) userData.get("offlineMessages");
-        } catch (IOException | ClassNotFoundException e) {
+        try {
+            return storage.loadOfflineMessages(username);
+        } catch (IOException e) {
             logger.warning("加载离线消息时出错: " + e.getMessage());
             return new ArrayList<>();
         }
@@ -170,14 +439,21 @@ public class ChatServer {
     }
 
     public List<Message> getOfflineMessages(String username) {
-        return offlineMessages.remove(username);
+        List<Message> pending = offlineMessages.remove(username);
+        if (pending != null) {
+            // 已经取走投递，持久化的离线队列也要清空
+            saveOfflineMessages(username);
+        }
+        return pending;
     }
 
     public void handleFriendRequest(String from, String to) {
+        userStateLoader.ensureLoaded(from);
+        userStateLoader.ensureLoaded(to);
         if (friendManager.addFriendship(from, to)) {
             notifyFriendshipUpdate(from, to, true);
-            saveUserData(from);
-            saveUserData(to);
+            saveFriends(from);
+            saveFriends(to);
         }
     }
 
@@ -194,23 +470,30 @@ public class ChatServer {
     }
 
     private void sendMessage(Message message) {
+        sendMessage(message, null);
+    }
+
+    /**
+     * @param deferredOffline 不为 null 时离线消息只入队，接收者记入该集合，由调用方统一保存
+     */
+    private void sendMessage(Message message, Set<String> deferredOffline) {
         ClientHandler recipientHandler = onlineUsers.get(message.getTo());
         if (recipientHandler != null) {
             recipientHandler.sendMessage(message);
+        } else if (deferredOffline != null) {
+            enqueueOfflineMessage(message);
+            deferredOffline.add(message.getTo());
         } else {
             storeOfflineMessage(message);
         }
     }
 
-    private void forwardMessage(Message message, boolean isOffline) {
+    private void forwardMessage(Message message, boolean isOffline, Set<String> deferredOffline) {
         String messageId = message.getId(); // Assume each message has a unique ID
 
-        synchronized (forwardedMessages) {
-            if (forwardedMessages.contains(messageId)) {
-                // Message already forwarded, skip
-                return;
-            }
-            forwardedMessages.add(messageId);
+        if (!forwardedMessages.add(messageId)) {
+            // Message already forwarded, skip
+            return;
         }
 
         // Add prefix for offline messages
@@ -218,7 +501,7 @@ public class ChatServer {
             message.setContent("【离线消息】" + message.getContent());
         }
 
-        sendMessage(message);
+        sendMessage(message, deferredOffline);
 
         deleteTemporaryFile(messageId);
     }
@@ -232,31 +515,291 @@ public class ChatServer {
     }
 }
 
+    private void handleSearch(Message message) {
+        List<Message> results = searchIndex == null ? new ArrayList<>()
+                : searchIndex.search(message.getFrom(), message.getContent(), SEARCH_RESULT_LIMIT);
+        ClientHandler handler = onlineUsers.get(message.getFrom());
+        if (handler != null) {
+            handler.sendMessage(new Message(null, message.getFrom(), JsonUtil.toJson(results), MessageType.SEARCH_RESULT));
+        }
+    }
+
+    // 回复沿用请求的消息 id，客户端据此丢弃过期查询的结果
+    private void handleUserSearch(Message message) {
+        ClientHandler handler = onlineUsers.get(message.getFrom());
+        if (handler != null) {
+            Message reply = new Message(null, message.getFrom(),
+                    String.join(",", userDirectory.search(message.getContent(), USER_SEARCH_LIMIT)),
+                    MessageType.USER_SEARCH_RESULT);
+            reply.setId(message.getId());
+            handler.sendMessage(reply);
+        }
+    }
+
+    /**
+     * FRIEND_SUGGESTION 返回按共同好友数排序的推荐；MUTUAL_FRIENDS 返回与 to 的共同好友，回复的 from 为 to。
+     */
+    private void handleFriendQuery(Message message) {
+        ClientHandler handler = onlineUsers.get(message.getFrom());
+        if (handler == null) {
+            return;
+        }
+        userStateLoader.ensureLoaded(message.getFrom());
+        FriendGraph graph = friendManager.getGraph();
+        if (message.getType() == MessageType.FRIEND_SUGGESTION) {
+            handler.sendMessage(new Message(null, message.getFrom(),
+                    JsonUtil.toJson(graph.suggestions(message.getFrom(), FRIEND_SUGGESTION_LIMIT)),
+                    MessageType.FRIEND_SUGGESTION_RESULT));
+        } else if (message.getTo() != null) {
+            userStateLoader.ensureLoaded(message.getTo());
+            handler.sendMessage(new Message(message.getTo(), message.getFrom(),
+                    String.join(",", graph.mutualFriends(message.getFrom(), message.getTo())),
+                    MessageType.MUTUAL_FRIENDS_RESULT));
+        }
+    }
+
+    /**
+     * 文件传输的握手消息只在双方之间转发，不进入历史记录。
+     */
+    private void handleFileMessage(Message message) {
+        switch (message.getType()) {
+            case FILE_OFFER:
+                FileOffer offer = JsonUtil.fromJson(message.getContent(), FileOffer.class);
+                if (fileTransferServer.register(message.getFrom(), message.getTo(), offer)) {
+                    sendMessage(message);
+                } else {
+                    sendMessage(new Message(message.getTo(), message.getFrom(),
+                            offer == null ? "" : offer.getTransferId(), MessageType.FILE_REJECT));
+                }
+                break;
+            case FILE_ACCEPT:
+                FileTransferServer.Transfer ready = fileTransferServer.accept(message.getContent(), message.getFrom());
+                if (ready != null) {
+                    notifyFileReady(ready.to, ready.id, ready.fileName, ready.size);
+                }
+                break;
+            case FILE_REJECT:
+                String sender = fileTransferServer.reject(message.getContent(), message.getFrom());
+                if (sender != null) {
+                    sendMessage(new Message(message.getFrom(), sender, message.getContent(), MessageType.FILE_REJECT));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    public void notifyFileReady(String recipient, String transferId, String fileName, long size) {
+        sendMessage(new Message(null, recipient, JsonUtil.toJson(new FileOffer(transferId, fileName, size)),
+                MessageType.FILE_READY));
+    }
+
+    /**
+     * 由读线程调用，把消息交给所属会话的投递条带处理，读线程不再承担持久化和转发。
+     */
+    void dispatch(Message message) {
+        deliveryEngine.submit(deliveryKey(message), () -> handleMessage(message));
+    }
+
+    private static String deliveryKey(Message message) {
+        String from = message.getFrom() == null ? "" : message.getFrom();
+        String to = message.getTo();
+        if (to == null) {
+            return from;
+        }
+        return from.compareTo(to) < 0 ? from + ":" + to : to + ":" + from;
+    }
+
+    /**
+     * BATCH 帧中的消息按所属条带分组，每组作为一个任务提交到该条带，组内保持原顺序。
+     * 各组在自己的条带上把消息追加到缓存，并把本组的会话快照一次写入存储，再按原顺序逐条转发，
+     * 离线消息每个接收者保存一次。各组互不等待，同一会话总在同一条带上，快照不会乱序落盘。
+     * 发送者的历史导出在最后一组处理完（或提交失败）后做一次。
+     */
+    void dispatchBatch(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        Map<Integer, List<Message>> byStripe = new LinkedHashMap<>();
+        Map<Integer, String> stripeKeys = new HashMap<>();
+        Set<String> senders = new LinkedHashSet<>();
+        for (Message message : messages) {
+            String key = deliveryKey(message);
+            int stripe = deliveryEngine.stripeFor(key);
+            byStripe.computeIfAbsent(stripe, s -> new ArrayList<>()).add(message);
+            stripeKeys.putIfAbsent(stripe, key);
+            if (!isQuery(message.getType())) {
+                senders.add(message.getFrom());
+            }
+        }
+        AtomicInteger remaining = new AtomicInteger(byStripe.size());
+        Runnable groupDone = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                senders.forEach(this::exportHistory);
+            }
+        };
+        for (Map.Entry<Integer, List<Message>> entry : byStripe.entrySet()) {
+            List<Message> group = entry.getValue();
+            if (!deliveryEngine.submit(stripeKeys.get(entry.getKey()), () -> handleBatch(group, groupDone))) {
+                logger.warning("批量消息未能提交，丢弃 " + group.size() + " 条");
+                groupDone.run();
+            }
+        }
+    }
+
+    private void handleBatch(List<Message> messages, Runnable done) {
+        try {
+            List<Message> chats = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                if (!isQuery(message.getType())) {
+                    chats.add(message);
+                }
+            }
+            messageHistory.addMessages(chats);
+            Set<String> offlineRecipients = new LinkedHashSet<>();
+            for (Message message : messages) {
+                if (!handleQuery(message)) {
+                    route(message, offlineRecipients);
+                }
+            }
+            for (String recipient : offlineRecipients) {
+                saveOfflineMessages(recipient);
+            }
+        } finally {
+            done.run();
+        }
+    }
+
     void handleMessage(Message message) {
+        MessageTraceEvent trace = MessageTraceEvent.of(message);
+        if (trace != null) {
+            trace.queue = trace.lap();
+        }
+        if (handleQuery(message)) {
+            finishTrace(message, trace);
+            return;
+        }
         messageHistory.addMessage(message);
+        if (trace != null) {
+            trace.history = trace.lap();
+        }
+        exportHistory(message.getFrom());
+        if (trace != null) {
+            trace.persist = trace.lap();
+        }
+        route(message, null);
+        finishTrace(message, trace);
+    }
+
+    // 查询和文件握手不是聊天内容，不进入历史记录
+    private static boolean isQuery(MessageType type) {
+        switch (type) {
+            case SEARCH:
+            case USER_SEARCH:
+            case FRIEND_SUGGESTION:
+            case MUTUAL_FRIENDS:
+            case FILE_OFFER:
+            case FILE_ACCEPT:
+            case FILE_REJECT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean handleQuery(Message message) {
+        switch (message.getType()) {
+            case SEARCH:
+                handleSearch(message);
+                return true;
+            case USER_SEARCH:
+                handleUserSearch(message);
+                return true;
+            case FRIEND_SUGGESTION:
+            case MUTUAL_FRIENDS:
+                handleFriendQuery(message);
+                return true;
+            case FILE_OFFER:
+            case FILE_ACCEPT:
+            case FILE_REJECT:
+                handleFileMessage(message);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void exportHistory(String username) {
         try {
-            StorageManager.saveChatHistory(message.getFrom(), messageHistory.getHistory(message.getFrom()));
+            storage.exportUserHistory(username, () -> messageHistory.getHistory(username));
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
+    private void route(Message message, Set<String> deferredOffline) {
         switch (message.getType()) {
             case OFFLINE_MESSAGE:
-                forwardMessage(message, true);
+                forwardMessage(message, true, deferredOffline);
                 break;
             case FRIEND_REQUEST:
                 handleFriendRequest(message.getFrom(), message.getTo());
                 break;
             default:
-                forwardMessage(message, false);
+                forwardMessage(message, false, deferredOffline);
                 break;
         }
     }
 
+    /**
+     * 消息没有进入出站通道（离线、好友请求、查询等）时在这里提交追踪；
+     * 已交给出站通道的由写线程提交。
+     */
+    private static void finishTrace(Message message, MessageTraceEvent trace) {
+        if (trace == null || trace.handedOff) {
+            return;
+        }
+        trace.forward = trace.lap();
+        message.setTrace(null);
+        trace.commit();
+    }
+
     public FriendManager getFriendManager() {
         return friendManager;
     }
 
+    public HashedTimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    public int getBatchMaxMessages() {
+        return Integer.parseInt(config.getProperty("batch.maxMessages", "100"));
+    }
+
+    public long getHeartbeatIntervalMillis() {
+        return Long.parseLong(config.getProperty("heartbeatIntervalSeconds", "15")) * 1000;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return Long.parseLong(config.getProperty("idleTimeoutSeconds", "45")) * 1000;
+    }
+
+    public long getWriteTimeoutMillis() {
+        return Long.parseLong(config.getProperty("outbound.writeTimeoutSeconds", "10")) * 1000;
+    }
+
+    int getTraceSampleInterval() {
+        return traceSampleInterval;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public SessionManager getSessionManager() {
+        return sessionManager;
+    }
+
     public ClientHandler getOnlineUser(String username) {
         return onlineUsers.get(username);
     }
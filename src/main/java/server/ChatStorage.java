@@ -0,0 +1,102 @@
+package server;
+
+import common.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * 服务器持久化的统一接口：会话历史、离线消息、好友关系和用户注册表。
+ * 由 server.properties 中的 storage 选择实现：file（默认）、memory、jdbc。
+ */
+public interface ChatStorage extends Closeable {
+
+    Set<String> conversationKeys();
+
+    /**
+     * 返回 username 参与的会话键（形如"用户A:用户B"）。默认遍历全部会话键，能按用户索引的后端应覆盖此方法。
+     */
+    default Set<String> conversationKeys(String username) {
+        Set<String> keys = new HashSet<>();
+        for (String key : conversationKeys()) {
+            if (key.startsWith(username + ":") || key.endsWith(":" + username)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    boolean containsConversation(String key);
+
+    List<Message> loadConversation(String key);
+
+    /**
+     * 保存某个会话当前保留的全部消息（最多 MAX_HISTORY_PER_USER 条），覆盖之前的内容。
+     */
+    void saveConversation(String key, List<Message> messages) throws IOException;
+
+    /**
+     * 一次保存多个会话，语义同逐个调用 saveConversation；能合并写入的后端应覆盖此方法。
+     */
+    default void saveConversations(Map<String, List<Message>> conversations) throws IOException {
+        for (Map.Entry<String, List<Message>> entry : conversations.entrySet()) {
+            saveConversation(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 返回会话的 {最早消息时间, 条数}，供保留策略跳过不会过期的会话；
+     * 不能在不读取会话内容的情况下给出时返回 null，默认如此。
+     */
+    default long[] conversationSummary(String key) {
+        return null;
+    }
+
+    /**
+     * 单个用户的历史导出；可以查询历史的后端不需要导出，默认不做任何事。
+     */
+    default void exportUserHistory(String username, Supplier<List<Message>> history) throws IOException {
+    }
+
+    List<Message> loadOfflineMessages(String username) throws IOException;
+
+    void saveOfflineMessages(String username, List<Message> messages) throws IOException;
+
+    Set<String> loadFriends(String username) throws IOException;
+
+    void saveFriends(String username, Set<String> friends) throws IOException;
+
+    void registerUser(String username) throws IOException;
+
+    Set<String> listUsers() throws IOException;
+
+    /**
+     * 后台整理：回收存储文件中已被覆盖或按保留策略过期的数据，IO 按 ioBudget（字节/秒）限速。
+     * 没有此类冗余的后端不需要实现。
+     */
+    default void compact(RetentionPolicy policy, TokenBucket ioBudget) throws IOException, InterruptedException {
+    }
+
+    static ChatStorage fromConfig(Properties config) throws IOException {
+        String type = config.getProperty("storage", "file");
+        switch (type) {
+            case "memory":
+                return new MemoryChatStorage();
+            case "jdbc":
+                return new JdbcChatStorage(config.getProperty("storage.jdbc.url", "jdbc:h2:./user_data/chat"),
+                        config.getProperty("storage.jdbc.user", ""),
+                        config.getProperty("storage.jdbc.password", ""),
+                        Integer.parseInt(config.getProperty("storage.jdbc.poolSize", "4")));
+            case "file":
+                return new FileChatStorage();
+            default:
+                throw new IOException("未知的存储类型: " + type);
+        }
+    }
+}
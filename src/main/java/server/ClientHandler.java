@@ -7,8 +7,10 @@ import common.Message.MessageType;
 import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public class ClientHandler implements Runnable {
@@ -19,14 +21,26 @@ public class ClientHandler implements Runnable {
     private BufferedReader in;
     private PrintWriter out;
     private volatile boolean running;
+    // 登录超时检查在时间轮线程上读取
+    private volatile Session session;
+    private volatile OutboundLanes lanes;
+    private boolean loggedOut;
+    private final TokenBucket connectionBucket;
+    private long lastThrottleNotice;
+    private volatile long lastReadNanos;
+    private volatile HashedTimingWheel.Timeout idleCheck;
+    private long received;
 
     public ClientHandler(Socket socket, ChatServer server) {
         this.socket = socket;
         this.server = server;
         this.running = true;
+        this.connectionBucket = server.getRateLimiter().newConnectionBucket();
         try {
             this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-            this.out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            OutputStream output = new WriteDeadlineOutputStream(socket.getOutputStream(), server.getTimingWheel(),
+                    server.getWriteTimeoutMillis(), this::abortStalledWrite);
+            this.out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), true);
         } catch (IOException e) {
             logger.severe("创建客户端处理器时出错: " + e.getMessage());
             running = false;
@@ -36,13 +50,28 @@ public class ClientHandler implements Runnable {
     @Override
     public void run() {
         try {
+            // 连上后迟迟不发 LOGIN/RESUME 的连接（包括半开连接）同样受空闲超时约束
+            idleCheck = server.getTimingWheel().newTimeout(this::checkLogin,
+                    server.getIdleTimeoutMillis(), TimeUnit.MILLISECONDS);
             handleLogin();
+            idleCheck.cancel();
+            lastReadNanos = System.nanoTime();
+            scheduleIdleCheck(server.getHeartbeatIntervalMillis());
             while (running && !socket.isClosed()) {
                 String jsonMessage = in.readLine();
                 if (jsonMessage == null) {
                     break;
                 }
-                handleMessage(jsonMessage);
+                // 读到任何数据都算活跃，这里只写一个时间戳，检查交给时间轮
+                lastReadNanos = System.nanoTime();
+                MessageTraceEvent trace = sampleTrace();
+                MessageType peeked = RateLimiter.peekType(jsonMessage);
+                if (allow(peeked)) {
+                    if (trace != null) {
+                        trace.admit = trace.lap();
+                    }
+                    handleMessage(jsonMessage, peeked, trace);
+                }
             }
         } catch (IOException e) {
             logger.warning("客户端连接异常: " + e.getMessage());
@@ -59,12 +88,19 @@ public class ClientHandler implements Runnable {
 
         try {
             Message loginMsg = JsonUtil.fromJson(jsonMessage, Message.class);
+            if (loginMsg.getType() == MessageType.RESUME) {
+                handleResume(loginMsg);
+                return;
+            }
             if (loginMsg.getType() != MessageType.LOGIN) {
                 sendMessage(new Message(null, null, "无效的登录尝试", MessageType.LOGIN));
                 throw new IOException("无效的登录尝试");
             }
 
             this.username = loginMsg.getFrom();
+            this.session = server.getSessionManager().create(username, out);
+            session.sendControl(new Message(null, username, session.getToken(), MessageType.SESSION));
+            startLanes();
             server.addOnlineUser(username, this);
 
             // 发送好友列表
@@ -84,27 +120,255 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    private void handleMessage(String jsonMessage) {
+    /**
+     * 在解析 JSON 之前按令牌桶限流，超限的行直接丢弃。
+     * 预读的类型只用于提前拒绝，解析后还会按实际类型再检查一次，见 handleMessage。
+     */
+    private boolean allow(MessageType peeked) {
+        if (!connectionBucket.tryAcquire()) {
+            notifyThrottled(null);
+            return false;
+        }
+        if (peeked == null || isUnlimited(peeked)) {
+            // 无法识别的交给后面的解析处理
+            return true;
+        }
+        return allowType(peeked);
+    }
+
+    // 控制帧不限流；批量帧解开后逐条限流
+    private static boolean isUnlimited(MessageType type) {
+        return type == MessageType.ACK || type == MessageType.LOGOUT || type == MessageType.PING
+                || type == MessageType.PONG || type == MessageType.BATCH;
+    }
+
+    private boolean allowType(MessageType type) {
+        if (!server.getRateLimiter().tryAcquire(username, type)) {
+            notifyThrottled(type);
+            return false;
+        }
+        return true;
+    }
+
+    // 限流通知本身每秒最多发一次，避免被刷屏的连接再放大流量
+    private void notifyThrottled(MessageType type) {
+        long now = System.currentTimeMillis();
+        if (now - lastThrottleNotice < 1000) {
+            return;
+        }
+        lastThrottleNotice = now;
+        session.sendControl(new Message(null, username, type == null ? "" : type.name(), MessageType.THROTTLED));
+    }
+
+    private void scheduleIdleCheck(long delayMillis) {
+        idleCheck = server.getTimingWheel().newTimeout(this::checkIdle, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkLogin() {
+        if (session != null || !running || socket.isClosed()) {
+            return;
+        }
+        logger.info("等待登录超时，断开: " + socket.getRemoteSocketAddress());
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.warning("关闭未登录连接时出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 空闲超过心跳间隔时发送 PING，超过空闲超时仍无任何数据则判定连接已死并关闭。
+     */
+    private void checkIdle() {
+        if (!running || socket.isClosed()) {
+            return;
+        }
+        long heartbeat = server.getHeartbeatIntervalMillis();
+        long timeout = server.getIdleTimeoutMillis();
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastReadNanos);
+        if (idle >= timeout) {
+            logger.info("连接空闲超时，断开: " + username);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.warning("关闭空闲连接时出错: " + e.getMessage());
+            }
+            return;
+        }
+        if (idle >= heartbeat) {
+            session.sendControl(new Message(null, username, "", MessageType.PING));
+            scheduleIdleCheck(Math.min(heartbeat, timeout - idle));
+        } else {
+            scheduleIdleCheck(heartbeat - idle);
+        }
+    }
+
+    private void handleResume(Message resumeMsg) throws IOException {
+        Session resumed = server.getSessionManager().resume(resumeMsg.getContent(), resumeMsg.getAck(), out);
+        if (resumed == null) {
+            // 空令牌表示拒绝续传，客户端需要重新登录
+            out.println(JsonUtil.toJson(new Message(null, null, "", MessageType.RESUME)));
+            throw new IOException("会话已失效");
+        }
+        this.session = resumed;
+        this.username = resumed.getUsername();
+        startLanes();
+        server.reattachOnlineUser(username, this);
+        logger.info("会话已恢复: " + username);
+    }
+
+    private void startLanes() {
+        lanes = server.newOutboundLanes(session, this::disconnectSlowConsumer);
+    }
+
+    // 出站积压过多时断开连接；会话保留，未确认的消息在续传时重发或过期后转为离线消息
+    private void disconnectSlowConsumer() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.warning("断开连接时出错: " + e.getMessage());
+        }
+    }
+
+    // 写出超过期限仍未返回说明对端不读了，关闭套接字让阻塞的写线程以异常返回，会话照常进入分离状态
+    private void abortStalledWrite() {
+        logger.warning("写出超时，断开: " + (username != null ? username : socket.getRemoteSocketAddress()));
+        disconnectSlowConsumer();
+    }
+
+    // 每 trace.sampleInterval 条消息追踪一条
+    private MessageTraceEvent sampleTrace() {
+        int interval = server.getTraceSampleInterval();
+        if (interval <= 0 || ++received % interval != 0) {
+            return null;
+        }
+        return MessageTraceEvent.start();
+    }
+
+    private void handleMessage(String jsonMessage, MessageType peeked, MessageTraceEvent trace) {
         try {
             Message message = JsonUtil.fromJson(jsonMessage, Message.class);
-            server.handleMessage(message);
+            if (message == null || message.getType() == null) {
+                return;
+            }
+            // 预读可能被嵌套对象或重复的 type 字段骗过，以解析结果为准；与预读一致时已经扣过令牌
+            MessageType type = message.getType();
+            if (type != peeked && !isUnlimited(type) && !allowType(type)) {
+                return;
+            }
+            if (trace != null) {
+                trace.decode = trace.lap();
+                trace.messageType = String.valueOf(message.getType());
+            }
+            if (!session.accept(message)) {
+                return;
+            }
+            if (message.getType() == MessageType.BATCH) {
+                handleBatch(message);
+                return;
+            }
+            if (handleLocally(message)) {
+                return;
+            }
+            message.setTrace(trace);
+            server.dispatch(message);
         } catch (Exception e) {
             logger.warning("处理消息时出错: " + e.getMessage());
         }
     }
 
+    /**
+     * 处理只与本连接有关的帧，返回 true 表示无需再交给服务器。
+     */
+    private boolean handleLocally(Message message) {
+        switch (message.getType()) {
+            case ACK:
+            case PONG:
+                return true;
+            case PING:
+                session.sendControl(new Message(null, username, "", MessageType.PONG));
+                return true;
+            case SEARCH:
+            case USER_SEARCH:
+            case FRIEND_SUGGESTION:
+            case MUTUAL_FRIENDS:
+            case FILE_OFFER:
+            case FILE_ACCEPT:
+            case FILE_REJECT:
+                // 搜索范围和文件传输权限以连接的登录用户为准，不信任客户端填写的 from
+                message.setFrom(username);
+                return false;
+            case LOGOUT:
+                loggedOut = true;
+                running = false;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 解开 BATCH 帧，逐条限流后整批交给服务器。序号与去重以整帧为单位，内部消息不带序号。
+     */
+    private void handleBatch(Message frame) {
+        Message[] messages = JsonUtil.fromJson(frame.getContent(), Message[].class);
+        if (messages == null) {
+            return;
+        }
+        int max = server.getBatchMaxMessages();
+        if (messages.length > max) {
+            logger.warning("批量帧超过 " + max + " 条，多余的消息已丢弃: " + username);
+        }
+        List<Message> accepted = new ArrayList<>(Math.min(messages.length, max));
+        for (int i = 0; i < messages.length && i < max; i++) {
+            Message message = messages[i];
+            if (message == null || message.getType() == null || message.getType() == MessageType.BATCH) {
+                continue;
+            }
+            if (!connectionBucket.tryAcquire()) {
+                notifyThrottled(null);
+                continue;
+            }
+            if (!allowType(message.getType()) || handleLocally(message)) {
+                continue;
+            }
+            accepted.add(message);
+        }
+        server.dispatchBatch(accepted);
+    }
+
     public void sendMessage(Message message) {
         try {
-            out.println(JsonUtil.toJson(message));
+            OutboundLanes current = lanes;
+            if (current != null) {
+                current.enqueue(message);
+            } else if (session != null) {
+                session.send(message);
+            } else {
+                out.println(JsonUtil.toJson(message));
+            }
         } catch (Exception e) {
             logger.warning("发送消息失败: " + e.getMessage());
         }
     }
 
     private void handleDisconnect() {
+        if (idleCheck != null) {
+            idleCheck.cancel();
+        }
+        if (lanes != null) {
+            lanes.close();
+        }
         try {
-            if (username != null) {
-                server.removeOnlineUser(username);
+            if (session != null) {
+                if (loggedOut) {
+                    server.getSessionManager().logout(session);
+                    server.removeOnlineUser(username, this);
+                    server.getRateLimiter().removeUser(username);
+                } else {
+                    // 保留会话，等待客户端在宽限期内续传
+                    server.getSessionManager().detach(session, out, expired -> server.expireSession(expired, this));
+                }
             }
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -117,4 +381,8 @@ public class ClientHandler implements Runnable {
     public String getUsername() {
         return username;
     }
+
+    OutboundLanes getLanes() {
+        return lanes;
+    }
 }
\ No newline at end of file
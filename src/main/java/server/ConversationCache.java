@@ -0,0 +1,239 @@
+package server;
+
+import common.Message;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热会话缓存，按估算的字节数而不是条目数限制内存，超出预算时按 LRU 淘汰。
+ * 缓存只是持久化存储之上的一层：写入总是直接落到存储，淘汰时直接丢弃，未命中时从存储加载。
+ * 为减少锁竞争分成若干段，每段各自维护 LRU 顺序和预算。
+ */
+public class ConversationCache {
+    private static final int SEGMENTS = 16;
+
+    /**
+     * 缓存中的一个会话。同一会话的写入由投递引擎串行执行，读取方通过 snapshot 拿副本。
+     */
+    public static final class Conversation {
+        private final Queue<Message> messages;
+        private volatile long bytes;
+
+        Conversation(List<Message> messages) {
+            this.messages = new LinkedList<>(messages);
+            long total = 0;
+            for (Message message : messages) {
+                total += estimate(message);
+            }
+            this.bytes = total;
+        }
+
+        /**
+         * 追加消息并裁剪到 max 条，返回追加后的快照。
+         */
+        synchronized List<Message> append(List<Message> appended, int max) {
+            long total = bytes;
+            for (Message message : appended) {
+                messages.offer(message);
+                total += estimate(message);
+            }
+            while (messages.size() > max) {
+                total -= estimate(messages.poll());
+            }
+            bytes = total;
+            return new ArrayList<>(messages);
+        }
+
+        synchronized List<Message> snapshot() {
+            return new ArrayList<>(messages);
+        }
+
+        synchronized void replace(List<Message> retained) {
+            messages.clear();
+            messages.addAll(retained);
+            long total = 0;
+            for (Message message : retained) {
+                total += estimate(message);
+            }
+            bytes = total;
+        }
+
+        long bytes() {
+            return bytes;
+        }
+    }
+
+    private final class Segment {
+        private final LinkedHashMap<String, Conversation> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long budget;
+        private long bytes;
+
+        Segment(long budget) {
+            this.budget = budget;
+        }
+
+        synchronized Conversation get(String key) {
+            return entries.get(key);
+        }
+
+        synchronized Conversation putIfAbsent(String key, Conversation conversation) {
+            Conversation existing = entries.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            entries.put(key, conversation);
+            bytes += conversation.bytes();
+            evict(key);
+            return conversation;
+        }
+
+        synchronized void resize(String key, Conversation conversation, long oldBytes) {
+            if (entries.get(key) == conversation) {
+                bytes += conversation.bytes() - oldBytes;
+                evict(key);
+            }
+        }
+
+        synchronized boolean contains(String key) {
+            return entries.containsKey(key);
+        }
+
+        synchronized List<String> keys() {
+            return new ArrayList<>(entries.keySet());
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        // 从最久未访问的一端开始淘汰，刚访问的 keep 不淘汰
+        private void evict(String keep) {
+            Iterator<Map.Entry<String, Conversation>> iterator = entries.entrySet().iterator();
+            while (bytes > budget && iterator.hasNext()) {
+                Map.Entry<String, Conversation> eldest = iterator.next();
+                if (eldest.getKey().equals(keep)) {
+                    continue;
+                }
+                bytes -= eldest.getValue().bytes();
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private final ChatStorage storage;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ConversationCache(ChatStorage storage, long budgetBytes) {
+        this.storage = storage;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, budgetBytes / SEGMENTS));
+        }
+    }
+
+    /**
+     * 取会话，未命中时从存储加载并放入缓存。
+     */
+    public Conversation get(String key) {
+        Segment segment = segmentFor(key);
+        Conversation conversation = segment.get(key);
+        if (conversation != null) {
+            hits.increment();
+            return conversation;
+        }
+        misses.increment();
+        // 在段锁之外读存储，避免慢 IO 阻塞同段的其他会话
+        return segment.putIfAbsent(key, new Conversation(storage.loadConversation(key)));
+    }
+
+    /**
+     * 只读访问：命中返回缓存内容，未命中直接读存储而不放入缓存，批量扫描不会冲掉热会话。
+     */
+    public List<Message> read(String key) {
+        Conversation conversation = segmentFor(key).get(key);
+        if (conversation != null) {
+            hits.increment();
+            return conversation.snapshot();
+        }
+        misses.increment();
+        return storage.loadConversation(key);
+    }
+
+    public List<Message> append(String key, Message message, int max) {
+        return appendAll(key, Collections.singletonList(message), max);
+    }
+
+    /**
+     * 一次取得会话并在其锁内追加全部消息。逐条 append 时会话可能在两次追加之间被其他条带淘汰，
+     * 之后从存储重新加载会丢掉尚未保存的前几条。
+     */
+    public List<Message> appendAll(String key, List<Message> messages, int max) {
+        Conversation conversation = get(key);
+        long oldBytes = conversation.bytes();
+        List<Message> snapshot = conversation.append(messages, max);
+        segmentFor(key).resize(key, conversation, oldBytes);
+        return snapshot;
+    }
+
+    /**
+     * 用保留下来的消息替换已缓存的会话内容；会话不在缓存中时什么也不做。
+     */
+    public void replace(String key, List<Message> retained) {
+        Segment segment = segmentFor(key);
+        Conversation conversation = segment.get(key);
+        if (conversation != null) {
+            long oldBytes = conversation.bytes();
+            conversation.replace(retained);
+            segment.resize(key, conversation, oldBytes);
+        }
+    }
+
+    public boolean contains(String key) {
+        return segmentFor(key).contains(key);
+    }
+
+    public Set<String> cachedKeys() {
+        Set<String> keys = new HashSet<>();
+        for (Segment segment : segments) {
+            keys.addAll(segment.keys());
+        }
+        return keys;
+    }
+
+    public String getStats() {
+        long entries = 0;
+        long bytes = 0;
+        for (Segment segment : segments) {
+            entries += segment.size();
+            bytes += segment.bytes();
+        }
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        long total = hitCount + missCount;
+        return String.format("会话缓存: %d 个会话, %d KB, 命中 %d, 未命中 %d, 命中率 %.1f%%, 淘汰 %d",
+                entries, bytes / 1024, hitCount, missCount, total == 0 ? 0.0 : hitCount * 100.0 / total,
+                evictions.sum());
+    }
+
+    private Segment segmentFor(String key) {
+        return segments[Math.floorMod(key.hashCode(), SEGMENTS)];
+    }
+
+    // 粗略估算堆占用：对象头和字段约 96 字节，字符串按每字符 2 字节计
+    static long estimate(Message message) {
+        return 96 + 2L * (length(message.getId()) + length(message.getFrom())
+                + length(message.getTo()) + length(message.getContent()));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
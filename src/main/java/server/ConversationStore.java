@@ -0,0 +1,419 @@
+package server;
+
+import common.Message;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * 按会话分段存储的历史记录文件。
+ * 数据文件只追加，每次保存把一个会话的最新快照作为一个块写到末尾；
+ * 目录文件同样只追加 (会话键, 偏移, 长度, 最早消息时间, 条数) 记录，同一会话以最后一条为准；
+ * 后两项让保留策略不必读取会话内容就能判断是否有记录要删除。
+ * 启动时只读目录，会话内容在第一次访问时按偏移读取；会话键形如"用户A:用户B"，
+ * 同时按参与者建一份键索引，查某个用户的会话不必遍历全部会话。
+ * 旧快照占用的空间由 {@link #compact} 在后台回收。
+ * 打开期间持有数据文件旁 .lock 文件的排他锁，同一份数据不能被两个进程（如服务器和导入工具）同时打开。
+ */
+public class ConversationStore implements Closeable {
+    private static final Logger logger = Logger.getLogger(ConversationStore.class.getName());
+    private static final int COPY_CHUNK = 64 * 1024;
+    // 数据文件小于该大小或有效数据占比超过一半时不整理
+    private static final long MIN_COMPACT_SIZE = 1024 * 1024;
+    private static final int INDEX_MAGIC = 0xFFFF0002;
+
+    /**
+     * 数据文件与其目录，整理后整体替换；读取方取一次引用即可得到一致的视图。
+     * 目录项为 {偏移, 长度, 最早消息时间, 条数}。
+     */
+    private static final class Generation {
+        final FileChannel data;
+        final Map<String, long[]> directory;
+
+        Generation(FileChannel data, Map<String, long[]> directory) {
+            this.data = data;
+            this.directory = directory;
+        }
+    }
+
+    private final Path dataFile;
+    private final Path indexFile;
+    private final Path compactDataFile;
+    private final Path compactIndexFile;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private volatile Generation current;
+    private final Map<String, Set<String>> keysByUser = new ConcurrentHashMap<>();
+    private DataOutputStream indexOut;
+    private boolean closed;
+
+    public ConversationStore(Path dataFile, Path indexFile) throws IOException {
+        this.dataFile = dataFile;
+        this.indexFile = indexFile;
+        this.compactDataFile = dataFile.resolveSibling(dataFile.getFileName() + ".compact");
+        this.compactIndexFile = indexFile.resolveSibling(indexFile.getFileName() + ".compact");
+        Path lockFile = dataFile.resolveSibling(dataFile.getFileName() + ".lock");
+        this.lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException("历史记录正被其他进程使用: " + lockFile);
+        }
+        this.lock = acquired;
+        try {
+            recoverCompaction();
+            FileChannel data = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.current = new Generation(data, readDirectory(data.size()));
+            for (String key : current.directory.keySet()) {
+                indexByUser(key);
+            }
+            this.indexOut = openIndexForAppend();
+        } catch (IOException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 整理中途崩溃时的恢复：新数据文件尚未替换则放弃这次整理，已替换则补完目录文件的替换。
+     */
+    private void recoverCompaction() throws IOException {
+        if (Files.exists(compactIndexFile)) {
+            if (Files.exists(compactDataFile)) {
+                Files.delete(compactDataFile);
+                Files.delete(compactIndexFile);
+            } else {
+                Files.move(compactIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } else {
+            Files.deleteIfExists(compactDataFile);
+        }
+    }
+
+    private Map<String, long[]> readDirectory(long dataSize) throws IOException {
+        Map<String, long[]> directory = new ConcurrentHashMap<>();
+        if (!Files.exists(indexFile)) {
+            return directory;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            try {
+                if (in.readInt() != INDEX_MAGIC) {
+                    throw new IOException("会话目录格式不正确: " + indexFile);
+                }
+            } catch (EOFException e) {
+                // 创建后还没写完文件头就崩溃了
+                return directory;
+            }
+            while (true) {
+                String key;
+                long offset;
+                int length;
+                long oldest;
+                int count;
+                try {
+                    key = in.readUTF();
+                    offset = in.readLong();
+                    length = in.readInt();
+                    oldest = in.readLong();
+                    count = in.readInt();
+                } catch (EOFException e) {
+                    // 末尾可能是崩溃时写了一半的记录，忽略即可
+                    break;
+                }
+                if (offset + length <= dataSize) {
+                    directory.put(key, new long[]{offset, length, oldest, count});
+                }
+            }
+        }
+        return directory;
+    }
+
+    private DataOutputStream openIndexForAppend() throws IOException {
+        boolean empty = !Files.exists(indexFile) || Files.size(indexFile) == 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(indexFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        if (empty) {
+            out.writeInt(INDEX_MAGIC);
+            out.flush();
+        }
+        return out;
+    }
+
+    private static void writeEntry(DataOutputStream out, String key, long[] entry) throws IOException {
+        out.writeUTF(key);
+        out.writeLong(entry[0]);
+        out.writeInt((int) entry[1]);
+        out.writeLong(entry[2]);
+        out.writeInt((int) entry[3]);
+    }
+
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(current.directory.keySet());
+    }
+
+    /**
+     * 返回 username 参与的会话键。
+     */
+    public Set<String> keysOf(String username) {
+        Set<String> keys = keysByUser.get(username);
+        return keys == null ? Collections.emptySet() : Collections.unmodifiableSet(keys);
+    }
+
+    private void indexByUser(String key) {
+        int separator = key.indexOf(':');
+        if (separator < 0) {
+            return;
+        }
+        keysByUser.computeIfAbsent(key.substring(0, separator), u -> ConcurrentHashMap.newKeySet()).add(key);
+        keysByUser.computeIfAbsent(key.substring(separator + 1), u -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    public boolean contains(String key) {
+        return current.directory.containsKey(key);
+    }
+
+    /**
+     * 返回 {最早消息时间, 条数}；会话不存在时返回 null。
+     */
+    public long[] summary(String key) {
+        long[] entry = current.directory.get(key);
+        if (entry == null) {
+            return null;
+        }
+        return new long[]{entry[2], entry[3]};
+    }
+
+    private static long oldestTimestamp(List<Message> messages) {
+        long oldest = Long.MAX_VALUE;
+        for (Message message : messages) {
+            oldest = Math.min(oldest, message.getTimestamp());
+        }
+        return oldest;
+    }
+
+    public List<Message> load(String key) {
+        while (true) {
+            Generation generation = current;
+            long[] entry = generation.directory.get(key);
+            if (entry == null) {
+                return new ArrayList<>();
+            }
+            try {
+                ByteBuffer buffer = readFully(generation.data, entry[0], (int) entry[1]);
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buffer.array()))) {
+                    @SuppressWarnings("unchecked")
+                    List<Message> messages = (List<Message>) ois.readObject();
+                    return messages;
+                }
+            } catch (ClosedChannelException e) {
+                if (generation == current) {
+                    logger.warning("加载会话历史时出错: " + key + ", 存储已关闭");
+                    return new ArrayList<>();
+                }
+                // 读取期间文件被整理替换，换到新文件重读
+            } catch (IOException | ClassNotFoundException e) {
+                logger.warning("加载会话历史时出错: " + key + ", " + e.getMessage());
+                return new ArrayList<>();
+            }
+        }
+    }
+
+    public void save(String key, List<Message> messages) throws IOException {
+        saveAll(Collections.singletonMap(key, messages));
+    }
+
+    /**
+     * 保存多个会话的快照：所有数据块一次追加到数据文件，目录记录一次刷出。
+     */
+    public void saveAll(Map<String, List<Message>> conversations) throws IOException {
+        if (conversations.isEmpty()) {
+            return;
+        }
+        // 序列化在锁外进行
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Map<String, long[]> blocks = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Message>> conversation : conversations.entrySet()) {
+            int start = bytes.size();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(new ArrayList<>(conversation.getValue()));
+            }
+            blocks.put(conversation.getKey(), new long[]{start, bytes.size() - start,
+                    oldestTimestamp(conversation.getValue()), conversation.getValue().size()});
+        }
+        synchronized (this) {
+            Generation generation = current;
+            long offset = generation.data.size();
+            writeFully(generation.data, ByteBuffer.wrap(bytes.toByteArray()), offset);
+            for (Map.Entry<String, long[]> block : blocks.entrySet()) {
+                block.getValue()[0] += offset;
+                writeEntry(indexOut, block.getKey(), block.getValue());
+            }
+            indexOut.flush();
+            for (String key : blocks.keySet()) {
+                if (generation.directory.put(key, blocks.get(key)) == null) {
+                    indexByUser(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * 把每个会话的最新快照复制到新文件，丢掉旧快照后替换原文件。
+     * 大部分复制在锁外按 ioBudget 限速进行，只有复制期间又被改写的会话在锁内补拷，
+     * 因此不会长时间阻塞写入。
+     *
+     * @return 回收的字节数；不需要整理时返回 0
+     */
+    public long compact(TokenBucket ioBudget) throws IOException, InterruptedException {
+        Generation old = current;
+        long oldSize = Files.size(dataFile);
+        Map<String, long[]> snapshot = new HashMap<>(old.directory);
+        long liveBytes = 0;
+        for (long[] entry : snapshot.values()) {
+            liveBytes += entry[1];
+        }
+        if (oldSize < MIN_COMPACT_SIZE || liveBytes * 2 > oldSize) {
+            return 0;
+        }
+
+        Map<String, long[]> copiedFrom = new HashMap<>();
+        Map<String, long[]> directory = new ConcurrentHashMap<>();
+        boolean indexClosed = false;
+        boolean swapped = false;
+        // 用单独的通道读取：线程被中断时只会关掉这个通道，不影响在线读写
+        try (FileChannel source = FileChannel.open(dataFile, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(compactDataFile, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            for (Map.Entry<String, long[]> entry : snapshot.entrySet()) {
+                // 数据块写入后不再改变，可以在锁外读取
+                position = copyBlock(source, entry.getValue(), target, position, ioBudget);
+                directory.put(entry.getKey(), relocated(entry.getValue(), position - entry.getValue()[1]));
+                copiedFrom.put(entry.getKey(), entry.getValue());
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    return 0;
+                }
+                for (Map.Entry<String, long[]> entry : old.directory.entrySet()) {
+                    if (copiedFrom.get(entry.getKey()) != entry.getValue()) {
+                        position = copyBlock(source, entry.getValue(), target, position, null);
+                        directory.put(entry.getKey(), relocated(entry.getValue(), position - entry.getValue()[1]));
+                    }
+                }
+                target.force(true);
+                writeIndex(directory);
+                // 替换顺序与 recoverCompaction 对应：先换数据文件，再换目录文件
+                indexOut.close();
+                indexClosed = true;
+                Files.move(compactDataFile, dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                swapped = true;
+                Files.move(compactIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                current = new Generation(FileChannel.open(dataFile, StandardOpenOption.READ, StandardOpenOption.WRITE), directory);
+                indexOut = openIndexForAppend();
+                old.data.close();
+            }
+        } finally {
+            if (!swapped) {
+                Files.deleteIfExists(compactDataFile);
+                Files.deleteIfExists(compactIndexFile);
+                if (indexClosed) {
+                    // 关闭目录流之后、替换之前失败：重新打开，继续在原文件上写
+                    synchronized (this) {
+                        indexOut = openIndexForAppend();
+                    }
+                }
+            }
+        }
+        long reclaimed = oldSize - Files.size(dataFile);
+        logger.info(String.format("会话历史已整理: %d 个会话, 回收 %d KB", directory.size(), reclaimed / 1024));
+        return reclaimed;
+    }
+
+    private static long[] relocated(long[] entry, long offset) {
+        long[] moved = entry.clone();
+        moved[0] = offset;
+        return moved;
+    }
+
+    private void writeIndex(Map<String, long[]> directory) throws IOException {
+        try (FileOutputStream file = new FileOutputStream(compactIndexFile.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(INDEX_MAGIC);
+            for (Map.Entry<String, long[]> entry : directory.entrySet()) {
+                writeEntry(out, entry.getKey(), entry.getValue());
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    private static long copyBlock(FileChannel source, long[] entry, FileChannel target, long position,
+                                  TokenBucket ioBudget) throws IOException, InterruptedException {
+        long offset = entry[0];
+        long remaining = entry[1];
+        while (remaining > 0) {
+            int chunk = (int) Math.min(COPY_CHUNK, remaining);
+            if (ioBudget != null) {
+                ioBudget.acquire(chunk);
+            }
+            ByteBuffer buffer = readFully(source, offset, chunk);
+            buffer.flip();
+            writeFully(target, buffer, position);
+            offset += chunk;
+            position += chunk;
+            remaining -= chunk;
+        }
+        return position;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("会话数据不完整");
+            }
+            position += read;
+        }
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            indexOut.close();
+            current.data.close();
+        } finally {
+            lock.release();
+            lockChannel.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 分条带的投递引擎。每个会话按键的哈希固定落到 N 个工作线程之一，
+ * 同一会话的消息在同一条带上按提交顺序执行，不同会话在各条带上并行。
+ * 条带队列有界，队列满时提交方阻塞，读线程因此停止读取，由 TCP 把压力传回发送方。
+ */
+public class DeliveryEngine {
+    private static final Logger logger = Logger.getLogger(DeliveryEngine.class.getName());
+
+    private final List<BlockingQueue<Runnable>> queues;
+    private final Thread[] workers;
+    private volatile boolean running = true;
+
+    public DeliveryEngine(int stripes, int queueCapacity) {
+        this.queues = new ArrayList<>(stripes);
+        this.workers = new Thread[stripes];
+        for (int i = 0; i < stripes; i++) {
+            BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>(queueCapacity);
+            queues.add(queue);
+            workers[i] = new Thread(() -> runWorker(queue), "delivery-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * 键相同的任务保证按提交顺序依次执行。返回 false 表示任务没有入队、不会执行：
+     * 引擎已停止，或等待队列空位时被中断。
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!running) {
+            logger.warning("投递引擎已停止，任务未执行: " + key);
+            return false;
+        }
+        BlockingQueue<Runnable> queue = queues.get(stripeFor(key));
+        try {
+            queue.put(task);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warning("投递任务提交被中断: " + key);
+            return false;
+        }
+    }
+
+    public int stripeFor(String key) {
+        return Math.floorMod(key.hashCode(), queues.size());
+    }
+
+    public int getStripeCount() {
+        return queues.size();
+    }
+
+    public int getQueueDepth(int stripe) {
+        return queues.get(stripe).size();
+    }
+
+    private void runWorker(BlockingQueue<Runnable> queue) {
+        while (running || !queue.isEmpty()) {
+            Runnable task;
+            try {
+                task = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                if (!running) {
+                    break;
+                }
+                continue;
+            }
+            if (task == null) {
+                continue;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "投递任务执行失败", e);
+            }
+        }
+    }
+
+    /**
+     * 停止接收新任务，等待各条带把已排队的任务执行完。
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        running = false;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            try {
+                worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
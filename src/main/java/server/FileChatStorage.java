@@ -0,0 +1,185 @@
+package server;
+
+import common.Message;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 基于文件的存储，即原有的文件布局：
+ * 会话历史在 message_history.seg/.idx（见 {@link ConversationStore}），
+ * 好友和离线消息在 &lt;用户名&gt;.dat（见 {@link UserDataFile}），
+ * 用户注册表是 user_data 下的占位文件，单用户历史导出为 user_data/&lt;用户名&gt;_history.dat。
+ */
+public class FileChatStorage implements ChatStorage {
+    private static final Logger logger = Logger.getLogger(FileChatStorage.class.getName());
+    private static final Path LEGACY_HISTORY_FILE = Paths.get("message_history.dat");
+    private static final String USER_DIR = "user_data";
+
+    private final ConversationStore store;
+    // 好友和离线消息写在同一个文件里，按用户加锁做读-改-写
+    private final Map<String, Object> userLocks = new ConcurrentHashMap<>();
+
+    public FileChatStorage() throws IOException {
+        Path indexFile = Paths.get("message_history.idx");
+        boolean migrate = !Files.exists(indexFile) && Files.exists(LEGACY_HISTORY_FILE);
+        this.store = new ConversationStore(Paths.get("message_history.seg"), indexFile);
+        if (migrate) {
+            migrateLegacyHistory();
+        }
+    }
+
+    // 一次性把旧的 message_history.dat 拆成按会话存储的格式
+    private void migrateLegacyHistory() throws IOException {
+        Map<String, Queue<Message>> legacy;
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(LEGACY_HISTORY_FILE.toFile()))) {
+            @SuppressWarnings("unchecked")
+            Map<String, Queue<Message>> read = (Map<String, Queue<Message>>) ois.readObject();
+            legacy = read;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("旧版历史记录无法解析", e);
+        }
+        for (Map.Entry<String, Queue<Message>> entry : legacy.entrySet()) {
+            store.save(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        logger.info("已迁移 " + legacy.size() + " 个会话的历史记录");
+        Files.move(LEGACY_HISTORY_FILE, LEGACY_HISTORY_FILE.resolveSibling(LEGACY_HISTORY_FILE.getFileName() + ".migrated"),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public Set<String> conversationKeys() {
+        return store.keys();
+    }
+
+    @Override
+    public Set<String> conversationKeys(String username) {
+        return store.keysOf(username);
+    }
+
+    @Override
+    public boolean containsConversation(String key) {
+        return store.contains(key);
+    }
+
+    @Override
+    public List<Message> loadConversation(String key) {
+        return store.load(key);
+    }
+
+    @Override
+    public long[] conversationSummary(String key) {
+        return store.summary(key);
+    }
+
+    @Override
+    public void saveConversation(String key, List<Message> messages) throws IOException {
+        store.save(key, messages);
+    }
+
+    @Override
+    public void saveConversations(Map<String, List<Message>> conversations) throws IOException {
+        store.saveAll(conversations);
+    }
+
+    @Override
+    public void exportUserHistory(String username, Supplier<List<Message>> history) throws IOException {
+        StorageManager.saveChatHistory(username, history);
+    }
+
+    @Override
+    public List<Message> loadOfflineMessages(String username) throws IOException {
+        synchronized (lockFor(username)) {
+            return UserDataFile.read(UserDataFile.pathFor(username)).getOfflineMessages();
+        }
+    }
+
+    @Override
+    public void saveOfflineMessages(String username, List<Message> messages) throws IOException {
+        synchronized (lockFor(username)) {
+            Path file = UserDataFile.pathFor(username);
+            UserData current = UserDataFile.read(file);
+            UserDataFile.write(file, new UserData(current.getFriends(), new ArrayList<>(messages)));
+        }
+    }
+
+    @Override
+    public Set<String> loadFriends(String username) throws IOException {
+        synchronized (lockFor(username)) {
+            return UserDataFile.read(UserDataFile.pathFor(username)).getFriends();
+        }
+    }
+
+    @Override
+    public void saveFriends(String username, Set<String> friends) throws IOException {
+        synchronized (lockFor(username)) {
+            Path file = UserDataFile.pathFor(username);
+            UserData current = UserDataFile.read(file);
+            UserDataFile.write(file, new UserData(new LinkedHashSet<>(friends), current.getOfflineMessages()));
+        }
+    }
+
+    @Override
+    public void registerUser(String username) {
+        StorageManager.createUserFile(username);
+    }
+
+    @Override
+    public Set<String> listUsers() throws IOException {
+        Set<String> users = new HashSet<>();
+        Path dir = Paths.get(USER_DIR);
+        if (!Files.isDirectory(dir)) {
+            return users;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(".dat") && !name.endsWith("_history.dat"))
+                    .map(name -> name.substring(0, name.length() - ".dat".length()))
+                    .forEach(users::add);
+        }
+        return users;
+    }
+
+    /**
+     * 整理 message_history.seg 中的旧快照，并按保留策略重写各用户的 _history.dat。
+     */
+    @Override
+    public void compact(RetentionPolicy policy, TokenBucket ioBudget) throws IOException, InterruptedException {
+        store.compact(ioBudget);
+        Path dir = Paths.get(USER_DIR);
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        List<Path> exports;
+        try (Stream<Path> files = Files.list(dir)) {
+            exports = files.filter(p -> p.getFileName().toString().endsWith("_history.dat")).collect(Collectors.toList());
+        }
+        long cutoff = policy.historyCutoff(System.currentTimeMillis());
+        int removed = 0;
+        for (Path file : exports) {
+            try {
+                removed += StorageManager.compactChatHistory(file, m -> m.getTimestamp() >= cutoff, ioBudget);
+            } catch (IOException | RuntimeException e) {
+                logger.warning("整理历史导出文件失败: " + file + ", " + e.getMessage());
+            }
+        }
+        if (removed > 0) {
+            logger.info("历史导出文件已整理, 删除 " + removed + " 条重复或过期记录");
+        }
+    }
+
+    private Object lockFor(String username) {
+        return userLocks.computeIfAbsent(username, k -> new Object());
+    }
+
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+}
@@ -0,0 +1,257 @@
+package server;
+
+import common.FileOffer;
+import common.FileTransferProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * 文件传输服务，监听独立端口，不占用聊天连接。
+ * 发送方上传到服务器暂存，接收方接受后再下载；两端都可以从已传输的偏移续传。
+ * 文件数据在 socket 与磁盘之间用 transferFrom/transferTo 搬运，不经过 Java 堆。
+ * 接收方确认下载完成后删除暂存文件；超过 ttl 没有任何进展（未接受、未上传完、未下载）的传输也会被清理。
+ */
+public class FileTransferServer implements Runnable {
+    private static final Logger logger = Logger.getLogger(FileTransferServer.class.getName());
+
+    static final class Transfer {
+        final String id;
+        final String from;
+        final String to;
+        final String fileName;
+        final long size;
+        volatile boolean accepted;
+        volatile boolean complete;
+        volatile long lastActivity = System.currentTimeMillis();
+
+        Transfer(String id, String from, String to, String fileName, long size) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+            this.fileName = fileName;
+            this.size = size;
+        }
+    }
+
+    private final ChatServer server;
+    private final ExecutorService executor;
+    private final Path storageDir;
+    private final int port;
+    private final long maxFileSize;
+    private final long ttlMillis;
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    public FileTransferServer(ChatServer server, ExecutorService executor, Path storageDir, int port,
+                              long maxFileSize, long ttlMillis) {
+        this.server = server;
+        this.executor = executor;
+        this.storageDir = storageDir;
+        this.port = port;
+        this.maxFileSize = maxFileSize;
+        this.ttlMillis = ttlMillis;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Files.createDirectories(storageDir);
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            running = true;
+            logger.info("文件传输服务启动在端口: " + port);
+        } catch (IOException e) {
+            logger.warning("文件传输服务启动失败: " + e.getMessage());
+            return;
+        }
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                executor.execute(() -> handle(channel));
+            } catch (IOException e) {
+                if (!running || !serverChannel.isOpen()) {
+                    break;
+                }
+                // 单次 accept 失败（如文件描述符暂时耗尽）不终止服务，稍等后继续
+                logger.warning("接受文件传输连接时出错: " + e.getMessage());
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.warning("关闭文件传输服务时出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 登记发送方的文件提议，返回 false 表示提议无效（超过大小限制或传输号重复）。
+     */
+    public boolean register(String from, String to, FileOffer offer) {
+        if (offer == null || offer.getTransferId() == null || offer.getSize() < 0 || offer.getSize() > maxFileSize) {
+            return false;
+        }
+        Transfer transfer = new Transfer(offer.getTransferId(), from, to, offer.getFileName(), offer.getSize());
+        if (transfers.putIfAbsent(transfer.id, transfer) != null) {
+            return false;
+        }
+        scheduleExpiry(transfer, ttlMillis);
+        return true;
+    }
+
+    private void scheduleExpiry(Transfer transfer, long delayMillis) {
+        server.getTimingWheel().newTimeout(() -> checkExpiry(transfer), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkExpiry(Transfer transfer) {
+        if (transfers.get(transfer.id) != transfer) {
+            return;
+        }
+        long idle = System.currentTimeMillis() - transfer.lastActivity;
+        if (idle < ttlMillis) {
+            scheduleExpiry(transfer, ttlMillis - idle);
+            return;
+        }
+        logger.info("文件传输已过期: " + transfer.fileName + " (" + transfer.from + " -> " + transfer.to + ")");
+        discard(transfer);
+    }
+
+    /**
+     * 接收方接受文件。文件已上传完毕时返回该传输，可以立即通知下载；否则返回 null，等上传完成再通知。
+     */
+    Transfer accept(String transferId, String username) {
+        Transfer transfer = transfers.get(transferId);
+        if (transfer == null || !transfer.to.equals(username)) {
+            return null;
+        }
+        transfer.accepted = true;
+        transfer.lastActivity = System.currentTimeMillis();
+        return transfer.complete ? transfer : null;
+    }
+
+    public String reject(String transferId, String username) {
+        Transfer transfer = transfers.get(transferId);
+        if (transfer == null || !transfer.to.equals(username)) {
+            return null;
+        }
+        discard(transfer);
+        return transfer.from;
+    }
+
+    private void handle(SocketChannel channel) {
+        try (SocketChannel ch = channel) {
+            FileTransferProtocol.Request request = FileTransferProtocol.readRequest(ch);
+            Session session = server.getSessionManager().find(request.token);
+            Transfer transfer = transfers.get(request.transferId);
+            if (session == null || transfer == null) {
+                logger.warning("拒绝无效的文件传输请求: " + request.transferId);
+                return;
+            }
+            if (request.op == FileTransferProtocol.OP_UPLOAD && transfer.from.equals(session.getUsername())) {
+                receive(ch, transfer);
+            } else if (request.op == FileTransferProtocol.OP_DOWNLOAD && transfer.to.equals(session.getUsername())
+                    && transfer.accepted && transfer.complete) {
+                send(ch, transfer);
+            } else {
+                logger.warning("文件传输请求无权限: " + session.getUsername() + ", " + request.transferId);
+            }
+        } catch (IOException e) {
+            // 连接中断不是错误，客户端会从已保存的偏移续传
+            logger.info("文件传输中断: " + e.getMessage());
+        }
+    }
+
+    private void receive(SocketChannel ch, Transfer transfer) throws IOException {
+        try (FileChannel file = FileChannel.open(partFile(transfer), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long offset = Math.min(file.size(), transfer.size);
+            FileTransferProtocol.writeLong(ch, offset);
+            while (true) {
+                int length = FileTransferProtocol.readInt(ch);
+                if (length == 0) {
+                    break;
+                }
+                if (length < 0 || length > FileTransferProtocol.CHUNK_SIZE || offset + length > transfer.size) {
+                    throw new IOException("文件块长度无效: " + length);
+                }
+                long received = 0;
+                while (received < length) {
+                    long n = file.transferFrom(ch, offset + received, length - received);
+                    if (n <= 0) {
+                        throw new IOException("上传连接已关闭");
+                    }
+                    received += n;
+                }
+                offset += length;
+                transfer.lastActivity = System.currentTimeMillis();
+            }
+            if (offset == transfer.size && !transfer.complete) {
+                file.force(false);
+                transfer.complete = true;
+                logger.info("文件上传完成: " + transfer.fileName + " (" + transfer.size + " 字节)");
+                if (transfer.accepted) {
+                    server.notifyFileReady(transfer.to, transfer.id, transfer.fileName, transfer.size);
+                }
+            } else if (offset == transfer.size) {
+                file.force(false);
+            }
+            // 确认已落盘的长度，客户端据此判断上传是否成功
+            FileTransferProtocol.writeLong(ch, offset);
+        }
+    }
+
+    private void send(SocketChannel ch, Transfer transfer) throws IOException {
+        long offset = FileTransferProtocol.readLong(ch);
+        FileTransferProtocol.writeLong(ch, transfer.size);
+        try (FileChannel file = FileChannel.open(partFile(transfer), StandardOpenOption.READ)) {
+            long position = Math.max(0, Math.min(offset, transfer.size));
+            while (position < transfer.size) {
+                position += file.transferTo(position,
+                        Math.min(FileTransferProtocol.CHUNK_SIZE, transfer.size - position), ch);
+                transfer.lastActivity = System.currentTimeMillis();
+            }
+        }
+        // 客户端落盘后回传收到的长度，确认完整才删除暂存文件；否则保留以便续传
+        if (FileTransferProtocol.readLong(ch) == transfer.size) {
+            discard(transfer);
+            logger.info("文件已送达: " + transfer.fileName + " -> " + transfer.to);
+        }
+    }
+
+    private void discard(Transfer transfer) {
+        transfers.remove(transfer.id);
+        try {
+            Files.deleteIfExists(partFile(transfer));
+        } catch (IOException e) {
+            logger.warning("删除暂存文件失败: " + e.getMessage());
+        }
+    }
+
+    private Path partFile(Transfer transfer) {
+        // 传输号由客户端生成，只用作文件名的一部分前先去掉路径字符
+        return storageDir.resolve(transfer.id.replaceAll("[^A-Za-z0-9-]", "_") + ".part");
+    }
+}
@@ -0,0 +1,186 @@
+package server;
+
+import common.FriendSuggestion;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * 好友关系图，用于"可能认识的人"和共同好友查询。
+ * 用户名映射为连续的整数 id，每个用户的好友保存为有序 int 数组：
+ * 共同好友是两个有序数组的归并求交；二度推荐按好友的好友计数，好友数较多时并行计算，
+ * 排除已是好友的用户时用位图判断。推荐结果按用户缓存，新增好友关系时只失效受影响的用户。
+ */
+public class FriendGraph {
+    private static final int[] NO_FRIENDS = new int[0];
+    // 二度遍历的边数超过该值才并行，小图串行更快
+    private static final int PARALLEL_THRESHOLD = 4096;
+    // 每个用户缓存的推荐条数上限
+    private static final int CACHED_SUGGESTIONS = 50;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private int[][] adjacency = new int[16][];
+    private final Map<String, List<FriendSuggestion>> suggestionCache = new ConcurrentHashMap<>();
+
+    /**
+     * 添加一条无向边，已存在时返回 false。
+     */
+    public boolean addEdge(String user1, String user2) {
+        if (user1 == null || user2 == null || user1.equals(user2)) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            int a = intern(user1);
+            int b = intern(user2);
+            if (!insert(a, b)) {
+                return false;
+            }
+            insert(b, a);
+            invalidate(a);
+            invalidate(b);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 新边改变了 a 的好友集合，a 本人和 a 的好友（其二度集合包含 a 的好友）的推荐都要重算
+    private void invalidate(int id) {
+        suggestionCache.remove(names.get(id));
+        for (int friend : friendsOf(id)) {
+            suggestionCache.remove(names.get(friend));
+        }
+    }
+
+    private int intern(String username) {
+        Integer id = ids.get(username);
+        if (id != null) {
+            return id;
+        }
+        int next = names.size();
+        ids.put(username, next);
+        names.add(username);
+        if (next == adjacency.length) {
+            adjacency = Arrays.copyOf(adjacency, next * 2);
+        }
+        adjacency[next] = NO_FRIENDS;
+        return next;
+    }
+
+    private boolean insert(int from, int to) {
+        int[] friends = adjacency[from];
+        int position = Arrays.binarySearch(friends, to);
+        if (position >= 0) {
+            return false;
+        }
+        position = -position - 1;
+        int[] updated = new int[friends.length + 1];
+        System.arraycopy(friends, 0, updated, 0, position);
+        updated[position] = to;
+        System.arraycopy(friends, position, updated, position + 1, friends.length - position);
+        adjacency[from] = updated;
+        return true;
+    }
+
+    private int[] friendsOf(int id) {
+        int[] friends = adjacency[id];
+        return friends == null ? NO_FRIENDS : friends;
+    }
+
+    /**
+     * 两个用户的共同好友，按用户名排序。
+     */
+    public List<String> mutualFriends(String user1, String user2) {
+        lock.readLock().lock();
+        try {
+            Integer a = ids.get(user1);
+            Integer b = ids.get(user2);
+            List<String> result = new ArrayList<>();
+            if (a == null || b == null) {
+                return result;
+            }
+            int[] left = friendsOf(a);
+            int[] right = friendsOf(b);
+            int i = 0;
+            int j = 0;
+            while (i < left.length && j < right.length) {
+                if (left[i] < right[j]) {
+                    i++;
+                } else if (left[i] > right[j]) {
+                    j++;
+                } else {
+                    result.add(names.get(left[i]));
+                    i++;
+                    j++;
+                }
+            }
+            Collections.sort(result);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 按共同好友数从多到少推荐还不是好友的用户，最多 limit 个。
+     */
+    public List<FriendSuggestion> suggestions(String username, int limit) {
+        List<FriendSuggestion> cached = suggestionCache.get(username);
+        if (cached == null) {
+            cached = computeSuggestions(username);
+        }
+        return new ArrayList<>(cached.subList(0, Math.min(limit, cached.size())));
+    }
+
+    /**
+     * 计算并缓存推荐。缓存在读锁内写入，失效在写锁内进行，过期的结果不会被放回缓存。
+     */
+    private List<FriendSuggestion> computeSuggestions(String username) {
+        // 持有读锁直到计算结束：并行任务由本线程派发，能看到加锁时的邻接数组
+        lock.readLock().lock();
+        try {
+            Integer id = ids.get(username);
+            if (id == null) {
+                return Collections.emptyList();
+            }
+            int self = id;
+            int[] friends = friendsOf(self);
+            BitSet excluded = new BitSet(names.size());
+            excluded.set(self);
+            long work = 0;
+            for (int friend : friends) {
+                excluded.set(friend);
+                work += friendsOf(friend).length;
+            }
+
+            IntStream secondHop = IntStream.of(friends);
+            if (work > PARALLEL_THRESHOLD) {
+                secondHop = secondHop.parallel();
+            }
+            Map<Integer, Long> counts = secondHop
+                    .flatMap(friend -> IntStream.of(friendsOf(friend)))
+                    .filter(candidate -> !excluded.get(candidate))
+                    .boxed()
+                    .collect(Collectors.groupingByConcurrent(candidate -> candidate, Collectors.counting()));
+
+            List<FriendSuggestion> ranked = new ArrayList<>(counts.size());
+            for (Map.Entry<Integer, Long> entry : counts.entrySet()) {
+                ranked.add(new FriendSuggestion(names.get(entry.getKey()), entry.getValue().intValue()));
+            }
+            ranked.sort(Comparator.comparingInt(FriendSuggestion::getMutualCount).reversed()
+                    .thenComparing(FriendSuggestion::getUsername));
+            List<FriendSuggestion> result = ranked.size() > CACHED_SUGGESTIONS
+                    ? new ArrayList<>(ranked.subList(0, CACHED_SUGGESTIONS)) : ranked;
+            suggestionCache.put(username, result);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -1,33 +1,52 @@
 package server;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class FriendManager {
     private final Map<String, Set<String>> friendships;
+    private final ChatStorage storage;
+    private final FriendGraph graph = new FriendGraph();
 
-    public FriendManager() {
+    public FriendManager(ChatStorage storage) {
         this.friendships = new HashMap<>();
+        this.storage = storage;
     }
 
-    public boolean addFriendship(String user1, String user2) {
-        return friendships.computeIfAbsent(user1, k -> new HashSet<>()).add(user2) &&
+    public synchronized boolean addFriendship(String user1, String user2) {
+        boolean added = friendships.computeIfAbsent(user1, k -> new HashSet<>()).add(user2) &&
                 friendships.computeIfAbsent(user2, k -> new HashSet<>()).add(user1);
+        if (added) {
+            graph.addEdge(user1, user2);
+        }
+        return added;
+    }
+
+    /**
+     * 好友推荐和共同好友查询，不需要持有本对象的锁。
+     */
+    public FriendGraph getGraph() {
+        return graph;
     }
 
-    public Set<String> getFriendsList(String username) {
-        return friendships.getOrDefault(username, Collections.emptySet());
+    public synchronized Set<String> getFriendsList(String username) {
+        // 返回副本，调用方在其他投递线程上遍历时不会与修改冲突
+        return new HashSet<>(friendships.getOrDefault(username, Collections.emptySet()));
     }
 
     public void loadFriendsList(String username) {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(username + ".dat"))) {
-            Map<String, Object> userData = (Map<String, Object>) ois.readObject();
-            friendships.put(username, new HashSet<>((List<String>) userData.get("friends")));
-        } catch (IOException | ClassNotFoundException e) {
+        try {
+            Set<String> friends = storage.loadFriends(username);
+            synchronized (this) {
+                // 与加载前已在内存中建立的关系合并，不能覆盖
+                friendships.computeIfAbsent(username, k -> new HashSet<>()).addAll(friends);
+            }
+            for (String friend : friends) {
+                graph.addEdge(username, friend);
+            }
+        } catch (IOException e) {
             Logger.getLogger(FriendManager.class.getName()).log(Level.SEVERE, null, e);
         }
     }
@@ -0,0 +1,164 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * 哈希时间轮：所有连接共用一个工作线程和一个环形槽数组。
+ * 添加、取消定时任务都是 O(1)，每个 tick 只处理当前槽里的任务。
+ * 精度为一个 tick，适合心跳、空闲检测这类不要求精确的超时。
+ * 到期的任务交给 executor 执行，避免慢任务拖住时间轮。
+ */
+public class HashedTimingWheel {
+    private static final Logger logger = Logger.getLogger(HashedTimingWheel.class.getName());
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * 只做标记，工作线程在经过该槽时顺带移除。
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    // 每个槽是一个双向链表，只由工作线程修改
+    private static final class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor executor;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running = true;
+    private long currentTick;
+
+    public HashedTimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel, Executor executor) {
+        int size = Integer.highestOneBit(Math.max(ticksPerWheel, 1) * 2 - 1);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.executor = executor;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::runWorker, "timing-wheel");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        long elapsed = System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0));
+        // 向上取整，保证不会早于指定时间触发
+        long deadlineTick = (elapsed + tickNanos - 1) / tickNanos;
+        Timeout timeout = new Timeout(task, deadlineTick);
+        pending.offer(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void runWorker() {
+        while (running) {
+            long sleepNanos = startTime + (currentTick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            currentTick++;
+            transferPending();
+            expire(wheel[(int) (currentTick & mask)]);
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long tick = Math.max(timeout.deadlineTick, currentTick);
+            timeout.remainingRounds = (tick - currentTick) / wheel.length;
+            wheel[(int) (tick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled) {
+                bucket.remove(timeout);
+            } else if (timeout.remainingRounds <= 0) {
+                bucket.remove(timeout);
+                try {
+                    executor.execute(timeout.task);
+                } catch (RuntimeException e) {
+                    logger.warning("执行定时任务失败: " + e.getMessage());
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * 历史记录批量导入/导出工具。
+ * <ul>
+ *   <li>latest.log 按块切分（块边界对齐到分钟变化的行首），每批取与并行度相同的块用 fork-join 并行解析</li>
+ *   <li>*_history.dat（追加写入的 JSON 数组）同样按文件分批并行解析</li>
+ *   <li>解析结果按会话流式归并，每个会话只保留最新的 MAX_HISTORY_PER_USER 条，内存占用与输入大小无关；
+ *       最后与存储中已有的记录合并去重，每个会话只写一次存储，不经过 MessageHistory 的逐条持久化</li>
+ * </ul>
+ * 日志没有消息号，导入的消息号由 (分钟, 发送方, 接收方, 内容, 同一分钟内第几次出现) 派生，
+ * 同一份日志重复导入得到相同的消息号；去重也按这个键进行，因此同一分钟内内容相同的多条消息都会保留。
+ * 存储被运行中的服务器打开时（见 {@link ConversationStore}）拒绝导入。
+ * 用法:
+ * <pre>
+ * java server.HistoryImporter import [--index] 文件...
+ * java server.HistoryImporter export 输出文件
+ * </pre>
+ * 使用 server.properties 中配置的存储；--index 同时把导入的消息加入搜索索引。
+ */
+public class HistoryImporter {
+    private static final Pattern LOG_LINE = Pattern.compile("^\\[(\\d{4}/\\d{2}/\\d{2} \\d{2}:\\d{2})] (.+?) >> (.+?) : (.*)$");
+    private static final DateTimeFormatter LOG_TIME = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm");
+    // 行首的 "[yyyy/MM/dd HH:mm]"
+    private static final int MINUTE_PREFIX = 18;
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    // 每次批量写入存储的会话数
+    private static final int SAVE_BATCH = 256;
+
+    private final ForkJoinPool pool;
+    private final AtomicLong parsed = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+
+    public HistoryImporter(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !("import".equals(args[0]) || "export".equals(args[0]))) {
+            System.err.println("用法: HistoryImporter import [--index] 文件... | export 输出文件");
+            System.exit(1);
+        }
+        Properties config = loadConfig();
+        HistoryImporter importer = new HistoryImporter(ForkJoinPool.commonPool());
+        try (ChatStorage storage = ChatStorage.fromConfig(config)) {
+            long start = System.currentTimeMillis();
+            if ("export".equals(args[0])) {
+                long lines = importer.export(storage, Paths.get(args[1]));
+                System.out.printf("导出 %d 条记录, 耗时 %d ms%n", lines, System.currentTimeMillis() - start);
+                return;
+            }
+            boolean index = false;
+            List<Path> files = new ArrayList<>();
+            for (int i = 1; i < args.length; i++) {
+                if ("--index".equals(args[i])) {
+                    index = true;
+                } else {
+                    files.add(Paths.get(args[i]));
+                }
+            }
+            SearchIndex searchIndex = null;
+            if (index) {
+                searchIndex = new SearchIndex(Paths.get(config.getProperty("searchIndexDir", "user_data/search")),
+                        Integer.parseInt(config.getProperty("searchSnapshotInterval", "50000")));
+            }
+            ConversationTails tails;
+            try {
+                tails = importer.parse(files, searchIndex);
+            } finally {
+                if (searchIndex != null) {
+                    searchIndex.close();
+                }
+            }
+            System.out.printf("解析 %d 条消息 (%d 行无法识别), 耗时 %d ms%n",
+                    importer.parsed.get(), importer.malformed.get(), System.currentTimeMillis() - start);
+
+            int conversations = importer.load(storage, tails);
+            System.out.printf("导入 %d 个会话, 总耗时 %d ms%n", conversations, System.currentTimeMillis() - start);
+        }
+    }
+
+    private static Properties loadConfig() throws IOException {
+        Properties config = new Properties();
+        try (InputStream input = HistoryImporter.class.getClassLoader().getResourceAsStream("server.properties")) {
+            if (input != null) {
+                config.load(input);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * 按文件顺序、文件内按行顺序解析所有输入，归并到各会话的最新记录中。
+     * 同时只保留一批（与并行度相同个数）块或文件的解析结果。
+     * searchIndex 不为空时，被会话尾部新收下的消息按顺序加入索引。去重借用尾部已有的去重键，
+     * 不另外记住全部已索引的键；已被截掉的旧消息再次出现时可能重复索引。
+     */
+    public ConversationTails parse(List<Path> files, SearchIndex searchIndex) throws IOException {
+        ConversationTails tails = new ConversationTails(MessageHistory.MAX_HISTORY_PER_USER);
+        int window = Math.max(1, pool.getParallelism());
+        List<Path> jsonFiles = new ArrayList<>();
+        for (Path file : files) {
+            if (file.getFileName().toString().endsWith("_history.dat")) {
+                jsonFiles.add(file);
+                continue;
+            }
+            List<long[]> chunks = splitIntoChunks(file);
+            for (int i = 0; i < chunks.size(); i += window) {
+                List<long[]> batch = chunks.subList(i, Math.min(chunks.size(), i + window));
+                for (List<Keyed> result : parallel(batch, range -> parseChunk(file, range))) {
+                    accept(result, tails, searchIndex);
+                }
+            }
+        }
+        for (int i = 0; i < jsonFiles.size(); i += window) {
+            List<Path> batch = jsonFiles.subList(i, Math.min(jsonFiles.size(), i + window));
+            for (List<Keyed> result : parallel(batch, this::parseJsonHistory)) {
+                accept(result, tails, searchIndex);
+            }
+        }
+        return tails;
+    }
+
+    private <T> List<List<Keyed>> parallel(List<T> inputs, java.util.function.Function<T, List<Keyed>> parser) {
+        try {
+            return pool.submit(() -> inputs.parallelStream().map(parser).collect(Collectors.toList())).join();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw (UncheckedIOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void accept(List<Keyed> messages, ConversationTails tails, SearchIndex searchIndex) {
+        parsed.addAndGet(messages.size());
+        for (Keyed keyed : messages) {
+            if (tails.add(keyed) && searchIndex != null) {
+                searchIndex.add(keyed.message);
+            }
+        }
+    }
+
+    /**
+     * 与存储中已有的记录合并去重后写入存储，返回有新增记录的会话数。
+     * 每 SAVE_BATCH 个会话调用一次 saveConversations，数据库存储在一个事务中写完一批。
+     */
+    public int load(ChatStorage storage, ConversationTails tails) throws IOException {
+        // 各会话的合并互不相关，并行执行；写存储按批进行
+        Map<String, List<Message>> merged = pool.submit(() -> {
+            Map<String, List<Message>> result = new ConcurrentHashMap<>();
+            tails.tails.entrySet().parallelStream().forEach(entry -> {
+                List<Message> combined = merge(storage.loadConversation(entry.getKey()), entry.getValue().values(),
+                        MessageHistory.MAX_HISTORY_PER_USER);
+                if (combined != null) {
+                    result.put(entry.getKey(), combined);
+                }
+            });
+            return result;
+        }).join();
+
+        Map<String, List<Message>> batch = new HashMap<>();
+        for (Map.Entry<String, List<Message>> entry : merged.entrySet()) {
+            batch.put(entry.getKey(), entry.getValue());
+            if (batch.size() == SAVE_BATCH) {
+                storage.saveConversations(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            storage.saveConversations(batch);
+        }
+        return merged.size();
+    }
+
+    /**
+     * 已有记录在前、导入记录在后按去重键合并，按时间稳定排序后保留最新的 limit 条；结果与已有记录相同时返回 null。
+     * 之前导入的记录以去重键为消息号，存储只保留最后一段，出现次数无法从中重算，所以已有记录的消息号也算作键。
+     */
+    static List<Message> merge(List<Message> stored, Collection<Keyed> imported, int limit) {
+        Set<String> known = new HashSet<>();
+        for (Keyed keyed : withKeys(stored)) {
+            known.add(keyed.key);
+            known.add(keyed.message.getId());
+        }
+        // 存储已满时，不比最旧一条新的记录进不了最新的 limit 条；时间只精确到分钟，相同时间的不能靠排序排除
+        long floor = Long.MIN_VALUE;
+        if (stored.size() >= limit) {
+            floor = Long.MAX_VALUE;
+            for (Message message : stored) {
+                floor = Math.min(floor, message.getTimestamp());
+            }
+        }
+        List<Message> sorted = new ArrayList<>(stored);
+        for (Keyed keyed : imported) {
+            if (keyed.message.getTimestamp() > floor && known.add(keyed.key)) {
+                sorted.add(keyed.message);
+            }
+        }
+        if (sorted.size() == stored.size()) {
+            return null;
+        }
+        sorted.sort(Comparator.comparingLong(Message::getTimestamp));
+        List<Message> kept = new ArrayList<>(sorted.subList(Math.max(0, sorted.size() - limit), sorted.size()));
+        // 新增的都比已有记录旧、截断后又被丢掉时不必重写
+        return sameIds(kept, stored) ? null : kept;
+    }
+
+    private static boolean sameIds(List<Message> a, List<Message> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!Objects.equals(a.get(i).getId(), b.get(i).getId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 以 latest.log 的格式导出存储中的全部会话，按时间排序。
+     */
+    public long export(ChatStorage storage, Path output) throws IOException {
+        List<Message> all = new ArrayList<>();
+        for (String key : storage.conversationKeys()) {
+            all.addAll(storage.loadConversation(key));
+        }
+        all.sort(Comparator.comparingLong(Message::getTimestamp));
+        try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            for (Message message : all) {
+                if (message.getFrom() == null || message.getTo() == null) {
+                    continue;
+                }
+                writer.write(String.format("[%s] %s >> %s : %s",
+                        LocalDateTime.ofEpochSecond(message.getTimestamp() / 1000, 0, ZoneOffset.UTC).format(LOG_TIME),
+                        message.getFrom(), message.getTo(), message.getContent()));
+                writer.newLine();
+            }
+        }
+        return all.size();
+    }
+
+    private static String conversationKey(String user1, String user2) {
+        return user1.compareTo(user2) < 0 ? user1 + ":" + user2 : user2 + ":" + user1;
+    }
+
+    /**
+     * 带去重键的消息。键由 (分钟, 发送方, 接收方, 内容) 和它在同一来源中第几次出现派生，
+     * 日志只精确到分钟，因此与消息号无关，同一条消息从日志、导出文件或存储中读到时键相同。
+     */
+    static final class Keyed {
+        final String key;
+        final Message message;
+
+        Keyed(String key, Message message) {
+            this.key = key;
+            this.message = message;
+        }
+    }
+
+    /**
+     * 按顺序为一个来源中的消息计算去重键。
+     */
+    static List<Keyed> withKeys(List<Message> messages) {
+        Map<String, Integer> occurrences = new HashMap<>();
+        List<Keyed> result = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            result.add(new Keyed(dedupeKey(message, occurrences), message));
+        }
+        return result;
+    }
+
+    private static String dedupeKey(Message message, Map<String, Integer> occurrences) {
+        String identity = message.getTimestamp() / 60_000 + "|" + message.getFrom() + "|" + message.getTo()
+                + "|" + message.getContent();
+        int occurrence = occurrences.merge(identity, 1, Integer::sum) - 1;
+        return UUID.nameUUIDFromBytes((identity + "|" + occurrence).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * 每个会话按去重键保留最新的 limit 条。条数达到 2 倍 limit 时按时间排序截掉较旧的一半，
+     * 因此单个会话最多占用 2 倍 limit 条的内存。
+     */
+    public static final class ConversationTails {
+        private final int limit;
+        private final Map<String, LinkedHashMap<String, Keyed>> tails = new HashMap<>();
+
+        ConversationTails(int limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * 返回是否新收下了这条消息；去重键已在尾部中或消息缺少收发方时返回 false。
+         */
+        boolean add(Keyed keyed) {
+            Message message = keyed.message;
+            if (message.getFrom() == null || message.getTo() == null) {
+                return false;
+            }
+            LinkedHashMap<String, Keyed> tail = tails.computeIfAbsent(
+                    conversationKey(message.getFrom(), message.getTo()), k -> new LinkedHashMap<>());
+            if (tail.putIfAbsent(keyed.key, keyed) != null) {
+                return false;
+            }
+            if (tail.size() >= 2 * limit) {
+                List<Keyed> entries = new ArrayList<>(tail.values());
+                entries.sort(Comparator.comparingLong(k -> k.message.getTimestamp()));
+                tail.clear();
+                for (Keyed kept : entries.subList(entries.size() - limit, entries.size())) {
+                    tail.put(kept.key, kept);
+                }
+            }
+            return true;
+        }
+
+        public int size() {
+            return tails.size();
+        }
+    }
+
+    /**
+     * 把文件切成约 CHUNK_SIZE 大小的块，每块的起止位置都落在行首，且同一分钟的行不跨块，
+     * 这样同一分钟内重复出现的行在块内计数，得到的消息号与分块方式无关。
+     */
+    private static List<long[]> splitIntoChunks(Path file) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long start = 0;
+            ByteBuffer probe = ByteBuffer.allocate(4096);
+            while (start < size) {
+                long end = Math.min(size, start + CHUNK_SIZE);
+                // 跨界的行整行划入当前块，再把与该行同一分钟的后续行也划入
+                if (end < size) {
+                    end = nextLineStart(channel, end, probe);
+                }
+                if (end < size) {
+                    byte[] minute = readPrefix(channel, end);
+                    while (end < size && Arrays.equals(readPrefix(channel, end), minute)) {
+                        end = nextLineStart(channel, end, probe);
+                    }
+                }
+                chunks.add(new long[]{start, end});
+                start = end;
+            }
+        }
+        return chunks;
+    }
+
+    private static long nextLineStart(FileChannel channel, long position, ByteBuffer probe) throws IOException {
+        long size = channel.size();
+        while (position < size) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                return size;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static byte[] readPrefix(FileChannel channel, long position) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(MINUTE_PREFIX);
+        while (prefix.hasRemaining()) {
+            if (channel.read(prefix, position + prefix.position()) <= 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(prefix.array(), prefix.position());
+    }
+
+    private List<Keyed> parseChunk(Path file, long[] range) {
+        List<Keyed> messages = new ArrayList<>();
+        Map<String, Integer> occurrences = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, range[0], range[1] - range[0]);
+            BufferedReader reader = new BufferedReader(new StringReader(StandardCharsets.UTF_8.decode(buffer).toString()));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Message message = parseLogLine(line);
+                if (message != null) {
+                    String key = dedupeKey(message, occurrences);
+                    message.setId(key);
+                    messages.add(new Keyed(key, message));
+                } else if (!line.isEmpty()) {
+                    malformed.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return messages;
+    }
+
+    static Message parseLogLine(String line) {
+        Matcher matcher = LOG_LINE.matcher(line);
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            long timestamp = LocalDateTime.parse(matcher.group(1), LOG_TIME).toInstant(ZoneOffset.UTC).toEpochMilli();
+            // 消息号由调用方按去重键设置，不在这里生成随机 UUID
+            Message message = new Message(null, matcher.group(2), matcher.group(3), matcher.group(4), MessageType.CHAT);
+            message.setTimestamp(timestamp);
+            return message;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 导出文件可能包含多次导出的重复内容，先按消息号去重再计算去重键。
+     */
+    private List<Keyed> parseJsonHistory(Path file) {
+        try {
+            Map<String, Message> unique = new LinkedHashMap<>();
+            List<Message> withoutId = new ArrayList<>();
+            for (Message message : StorageManager.readChatHistory(file)) {
+                if (message.getId() == null) {
+                    withoutId.add(message);
+                } else {
+                    unique.putIfAbsent(message.getId(), message);
+                }
+            }
+            List<Message> messages = new ArrayList<>(unique.values());
+            messages.addAll(withoutId);
+            return withKeys(messages);
+        } catch (IOException | RuntimeException e) {
+            malformed.incrementAndGet();
+            System.err.println("解析失败: " + file + ", " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+}
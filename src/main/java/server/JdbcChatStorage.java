@@ -0,0 +1,502 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 嵌入式数据库存储（默认 H2，数据保存在本地文件中）。
+ * 所有写入都使用预编译语句批量执行，并在事务中提交；查询列上建有索引。
+ * 每次操作从一个小连接池借用连接，不同会话的读写可以并行。
+ */
+public class JdbcChatStorage implements ChatStorage {
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS users (username VARCHAR(255) PRIMARY KEY)",
+            "CREATE TABLE IF NOT EXISTS friendships (username VARCHAR(255) NOT NULL, friend VARCHAR(255) NOT NULL, "
+                    + "PRIMARY KEY (username, friend))",
+            "CREATE TABLE IF NOT EXISTS history (conversation VARCHAR(512) NOT NULL, seq_no INT NOT NULL, "
+                    + "id VARCHAR(64), sender VARCHAR(255), recipient VARCHAR(255), content CLOB, type VARCHAR(32), "
+                    + "ts BIGINT, PRIMARY KEY (conversation, seq_no))",
+            "CREATE TABLE IF NOT EXISTS offline_messages (recipient VARCHAR(255) NOT NULL, seq_no INT NOT NULL, "
+                    + "id VARCHAR(64), sender VARCHAR(255), content CLOB, type VARCHAR(32), ts BIGINT, "
+                    + "PRIMARY KEY (recipient, seq_no))",
+            "CREATE INDEX IF NOT EXISTS idx_history_sender ON history (sender)",
+            "CREATE INDEX IF NOT EXISTS idx_history_recipient ON history (recipient)",
+            "CREATE INDEX IF NOT EXISTS idx_friendships_friend ON friendships (friend)"
+    };
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final BlockingQueue<Connection> pool;
+    private final List<Connection> connections = new ArrayList<>();
+
+    public JdbcChatStorage(String url, String user, String password, int poolSize) throws IOException {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.pool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+        try {
+            for (int i = 0; i < Math.max(1, poolSize); i++) {
+                pool.add(open());
+            }
+            execute(connection -> {
+                try (Statement statement = connection.createStatement()) {
+                    for (String ddl : SCHEMA) {
+                        statement.execute(ddl);
+                    }
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            closeConnections();
+            throw new IOException("打开数据库失败: " + url, e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlWork<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    private Connection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, user, password);
+        connection.setAutoCommit(false);
+        synchronized (connections) {
+            connections.add(connection);
+        }
+        return connection;
+    }
+
+    /**
+     * 借一个连接执行 work 并提交；失败时回滚。连接失效时换一个新的放回池中。
+     */
+    private <T> T execute(SqlWork<T> work) throws SQLException {
+        Connection connection;
+        try {
+            connection = pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("等待数据库连接时被中断", e);
+        }
+        try {
+            T result = work.run(connection);
+            connection.commit();
+            return result;
+        } catch (SQLException e) {
+            rollback(connection);
+            throw e;
+        } finally {
+            pool.add(valid(connection));
+        }
+    }
+
+    private Connection valid(Connection connection) {
+        try {
+            if (!connection.isClosed()) {
+                return connection;
+            }
+            synchronized (connections) {
+                connections.remove(connection);
+            }
+            return open();
+        } catch (SQLException e) {
+            // 重连失败时仍放回旧连接，下次使用时报错
+            return connection;
+        }
+    }
+
+    @Override
+    public Set<String> conversationKeys() {
+        try {
+            return execute(connection -> {
+                Set<String> keys = new HashSet<>();
+                try (PreparedStatement ps = connection.prepareStatement("SELECT DISTINCT conversation FROM history");
+                     ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        keys.add(rs.getString(1));
+                    }
+                }
+                return keys;
+            });
+        } catch (SQLException e) {
+            throw new IllegalStateException("读取会话列表失败", e);
+        }
+    }
+
+    @Override
+    public Set<String> conversationKeys(String username) {
+        try {
+            return execute(connection -> {
+                Set<String> keys = new HashSet<>();
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "SELECT DISTINCT conversation FROM history WHERE sender = ? OR recipient = ?")) {
+                    ps.setString(1, username);
+                    ps.setString(2, username);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            keys.add(rs.getString(1));
+                        }
+                    }
+                }
+                return keys;
+            });
+        } catch (SQLException e) {
+            throw new IllegalStateException("读取用户会话列表失败: " + username, e);
+        }
+    }
+
+    @Override
+    public boolean containsConversation(String key) {
+        try {
+            return execute(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "SELECT 1 FROM history WHERE conversation = ? LIMIT 1")) {
+                    ps.setString(1, key);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        return rs.next();
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            throw new IllegalStateException("查询会话失败: " + key, e);
+        }
+    }
+
+    @Override
+    public List<Message> loadConversation(String key) {
+        try {
+            return execute(connection -> {
+                List<Message> messages = new ArrayList<>();
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "SELECT id, sender, recipient, content, type, ts FROM history WHERE conversation = ? ORDER BY seq_no")) {
+                    ps.setString(1, key);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            messages.add(toMessage(rs.getString(1), rs.getString(2), rs.getString(3),
+                                    rs.getString(4), rs.getString(5), rs.getLong(6)));
+                        }
+                    }
+                }
+                return messages;
+            });
+        } catch (SQLException e) {
+            throw new IllegalStateException("加载会话失败: " + key, e);
+        }
+    }
+
+    @Override
+    public long[] conversationSummary(String key) {
+        try {
+            return execute(connection -> {
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "SELECT MIN(ts), COUNT(*) FROM history WHERE conversation = ?")) {
+                    ps.setString(1, key);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                        long count = rs.getLong(2);
+                        return count == 0 ? null : new long[]{rs.getLong(1), count};
+                    }
+                }
+            });
+        } catch (SQLException e) {
+            throw new IllegalStateException("查询会话摘要失败: " + key, e);
+        }
+    }
+
+    @Override
+    public void saveConversation(String key, List<Message> messages) throws IOException {
+        try {
+            execute(connection -> {
+                saveConversation(connection, key, messages);
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new IOException("保存会话失败: " + key, e);
+        }
+    }
+
+    /**
+     * 多个会话在同一个事务中保存。
+     */
+    @Override
+    public void saveConversations(Map<String, List<Message>> conversations) throws IOException {
+        try {
+            execute(connection -> {
+                for (Map.Entry<String, List<Message>> entry : conversations.entrySet()) {
+                    saveConversation(connection, entry.getKey(), entry.getValue());
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new IOException("保存会话失败: " + conversations.keySet(), e);
+        }
+    }
+
+    /**
+     * messages 通常是库中已有记录去掉开头若干条、再追加若干条，这时只插入新增的行并删掉被挤出的行；
+     * seq_no 在会话内单调递增。对不上时（导入、乱序过期等）整段重写。
+     */
+    private static void saveConversation(Connection connection, String key, List<Message> messages) throws SQLException {
+        List<String> storedIds = new ArrayList<>();
+        int firstSeq = 0;
+        try (PreparedStatement ps = connection.prepareStatement(
+                "SELECT seq_no, id FROM history WHERE conversation = ? ORDER BY seq_no")) {
+            ps.setString(1, key);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (storedIds.isEmpty()) {
+                        firstSeq = rs.getInt(1);
+                    }
+                    storedIds.add(rs.getString(2));
+                }
+            }
+        }
+        int overlapStart = overlapStart(storedIds, messages);
+        if (overlapStart < 0) {
+            try (PreparedStatement delete = connection.prepareStatement(
+                    "DELETE FROM history WHERE conversation = ?")) {
+                delete.setString(1, key);
+                delete.executeUpdate();
+            }
+            insertHistory(connection, key, messages, 0, 0);
+            return;
+        }
+        if (overlapStart > 0) {
+            try (PreparedStatement trim = connection.prepareStatement(
+                    "DELETE FROM history WHERE conversation = ? AND seq_no < ?")) {
+                trim.setString(1, key);
+                trim.setInt(2, firstSeq + overlapStart);
+                trim.executeUpdate();
+            }
+        }
+        int kept = storedIds.size() - overlapStart;
+        insertHistory(connection, key, messages, kept, firstSeq + storedIds.size());
+    }
+
+    /**
+     * 返回 messages 开头与库中记录对齐的位置：storedIds 从该位置起与 messages 的前缀逐条相同。
+     * 库为空时返回 0，对不上时返回 -1。
+     */
+    private static int overlapStart(List<String> storedIds, List<Message> messages) {
+        if (storedIds.isEmpty()) {
+            return 0;
+        }
+        if (messages.isEmpty() || messages.get(0).getId() == null) {
+            return -1;
+        }
+        int start = storedIds.indexOf(messages.get(0).getId());
+        if (start < 0 || storedIds.size() - start > messages.size()) {
+            return -1;
+        }
+        for (int i = start; i < storedIds.size(); i++) {
+            if (!Objects.equals(storedIds.get(i), messages.get(i - start).getId())) {
+                return -1;
+            }
+        }
+        return start;
+    }
+
+    private static void insertHistory(Connection connection, String key, List<Message> messages,
+                                      int from, int firstSeq) throws SQLException {
+        if (from >= messages.size()) {
+            return;
+        }
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO history (conversation, seq_no, id, sender, recipient, content, type, ts) "
+                        + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+            int seq = firstSeq;
+            for (Message message : messages.subList(from, messages.size())) {
+                insert.setString(1, key);
+                insert.setInt(2, seq++);
+                insert.setString(3, message.getId());
+                insert.setString(4, message.getFrom());
+                insert.setString(5, message.getTo());
+                insert.setString(6, message.getContent());
+                insert.setString(7, message.getType() == null ? null : message.getType().name());
+                insert.setLong(8, message.getTimestamp());
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    @Override
+    public List<Message> loadOfflineMessages(String username) throws IOException {
+        try {
+            return execute(connection -> {
+                List<Message> messages = new ArrayList<>();
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "SELECT id, sender, content, type, ts FROM offline_messages WHERE recipient = ? ORDER BY seq_no")) {
+                    ps.setString(1, username);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            messages.add(toMessage(rs.getString(1), rs.getString(2), username,
+                                    rs.getString(3), rs.getString(4), rs.getLong(5)));
+                        }
+                    }
+                }
+                return messages;
+            });
+        } catch (SQLException e) {
+            throw new IOException("加载离线消息失败: " + username, e);
+        }
+    }
+
+    @Override
+    public void saveOfflineMessages(String username, List<Message> messages) throws IOException {
+        try {
+            execute(connection -> {
+                try (PreparedStatement delete = connection.prepareStatement(
+                        "DELETE FROM offline_messages WHERE recipient = ?");
+                     PreparedStatement insert = connection.prepareStatement(
+                             "INSERT INTO offline_messages (recipient, seq_no, id, sender, content, type, ts) "
+                                     + "VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+                    delete.setString(1, username);
+                    delete.executeUpdate();
+                    int position = 0;
+                    for (Message message : messages) {
+                        insert.setString(1, username);
+                        insert.setInt(2, position++);
+                        insert.setString(3, message.getId());
+                        insert.setString(4, message.getFrom());
+                        insert.setString(5, message.getContent());
+                        insert.setString(6, message.getType() == null ? null : message.getType().name());
+                        insert.setLong(7, message.getTimestamp());
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new IOException("保存离线消息失败: " + username, e);
+        }
+    }
+
+    @Override
+    public Set<String> loadFriends(String username) throws IOException {
+        try {
+            return execute(connection -> {
+                Set<String> friends = new LinkedHashSet<>();
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "SELECT friend FROM friendships WHERE username = ?")) {
+                    ps.setString(1, username);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            friends.add(rs.getString(1));
+                        }
+                    }
+                }
+                return friends;
+            });
+        } catch (SQLException e) {
+            throw new IOException("加载好友列表失败: " + username, e);
+        }
+    }
+
+    @Override
+    public void saveFriends(String username, Set<String> friends) throws IOException {
+        try {
+            execute(connection -> {
+                try (PreparedStatement delete = connection.prepareStatement("DELETE FROM friendships WHERE username = ?");
+                     PreparedStatement insert = connection.prepareStatement(
+                             "INSERT INTO friendships (username, friend) VALUES (?, ?)")) {
+                    delete.setString(1, username);
+                    delete.executeUpdate();
+                    for (String friend : friends) {
+                        insert.setString(1, username);
+                        insert.setString(2, friend);
+                        insert.addBatch();
+                    }
+                    insert.executeBatch();
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new IOException("保存好友列表失败: " + username, e);
+        }
+    }
+
+    @Override
+    public void registerUser(String username) throws IOException {
+        try {
+            execute(connection -> {
+                try (PreparedStatement exists = connection.prepareStatement("SELECT 1 FROM users WHERE username = ?")) {
+                    exists.setString(1, username);
+                    try (ResultSet rs = exists.executeQuery()) {
+                        if (rs.next()) {
+                            return null;
+                        }
+                    }
+                }
+                try (PreparedStatement insert = connection.prepareStatement("INSERT INTO users (username) VALUES (?)")) {
+                    insert.setString(1, username);
+                    insert.executeUpdate();
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            throw new IOException("注册用户失败: " + username, e);
+        }
+    }
+
+    @Override
+    public Set<String> listUsers() throws IOException {
+        try {
+            return execute(connection -> {
+                Set<String> users = new HashSet<>();
+                try (PreparedStatement ps = connection.prepareStatement("SELECT username FROM users");
+                     ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        users.add(rs.getString(1));
+                    }
+                }
+                return users;
+            });
+        } catch (SQLException e) {
+            throw new IOException("读取用户列表失败", e);
+        }
+    }
+
+    private static Message toMessage(String id, String from, String to, String content, String type, long timestamp) {
+        Message message = new Message(id, from, to, content, type == null ? null : MessageType.valueOf(type));
+        message.setTimestamp(timestamp);
+        return message;
+    }
+
+    private static void rollback(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException ignored) {
+            // 连接已不可用时回滚失败，不影响上抛原始错误
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeConnections();
+    }
+
+    private void closeConnections() throws IOException {
+        SQLException failure = null;
+        synchronized (connections) {
+            for (Connection connection : connections) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    failure = e;
+                }
+            }
+            connections.clear();
+        }
+        if (failure != null) {
+            throw new IOException("关闭数据库失败", failure);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package server;
+
+import common.Message;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 纯内存存储，进程退出即丢失，用于测试和压测。
+ */
+public class MemoryChatStorage implements ChatStorage {
+    private final Map<String, List<Message>> conversations = new ConcurrentHashMap<>();
+    private final Map<String, List<Message>> offlineMessages = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> friends = new ConcurrentHashMap<>();
+    private final Set<String> users = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public Set<String> conversationKeys() {
+        return Collections.unmodifiableSet(conversations.keySet());
+    }
+
+    @Override
+    public boolean containsConversation(String key) {
+        return conversations.containsKey(key);
+    }
+
+    @Override
+    public List<Message> loadConversation(String key) {
+        return new ArrayList<>(conversations.getOrDefault(key, Collections.emptyList()));
+    }
+
+    @Override
+    public void saveConversation(String key, List<Message> messages) {
+        conversations.put(key, new ArrayList<>(messages));
+    }
+
+    @Override
+    public List<Message> loadOfflineMessages(String username) {
+        return new ArrayList<>(offlineMessages.getOrDefault(username, Collections.emptyList()));
+    }
+
+    @Override
+    public void saveOfflineMessages(String username, List<Message> messages) {
+        offlineMessages.put(username, new ArrayList<>(messages));
+    }
+
+    @Override
+    public Set<String> loadFriends(String username) {
+        return new LinkedHashSet<>(friends.getOrDefault(username, Collections.emptySet()));
+    }
+
+    @Override
+    public void saveFriends(String username, Set<String> friendSet) {
+        friends.put(username, new LinkedHashSet<>(friendSet));
+    }
+
+    @Override
+    public void registerUser(String username) {
+        users.add(username);
+    }
+
+    @Override
+    public Set<String> listUsers() {
+        return new HashSet<>(users);
+    }
+
+    @Override
+    public void close() {
+    }
+}
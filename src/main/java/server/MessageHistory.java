@@ -3,43 +3,186 @@ package server;
 import common.Message;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class MessageHistory {
-    private static final int MAX_HISTORY_PER_USER = 100;
-    private Map<String, Queue<Message>> messageHistory;
-    private Path historyFile;
+    static final int MAX_HISTORY_PER_USER = 100;
+    private static final Path LOG_FILE = Paths.get("user_data/latest.log");
+    private static final int LOG_COPY_CHUNK = 64 * 1024;
+    private final ConversationCache cache;
     private Set<String> loggedMessages = Collections.synchronizedSet(new HashSet<>());
-
-    public MessageHistory() {
-        messageHistory = new ConcurrentHashMap<>();
-        historyFile = Paths.get("message_history.dat");
-        loadHistory();
+    private final ChatStorage storage;
+    private SearchIndex searchIndex;
+    private volatile int maxPerConversation = MAX_HISTORY_PER_USER;
+    // 追加日志与整理日志互斥
+    private final Object logLock = new Object();
+
+    /**
+     * @param lazy 为 true 时会话在首次访问时才从存储加载，否则启动时在缓存预算内预加载
+     * @param cacheBytes 内存中保留的热会话的字节预算
+     */
+    public MessageHistory(ChatStorage storage, boolean lazy, long cacheBytes) {
+        this.storage = storage;
+        this.cache = new ConversationCache(storage, cacheBytes);
+        if (!lazy) {
+            for (String key : storage.conversationKeys()) {
+                cache.get(key);
+            }
+        }
     }
 
     public void addMessage(Message message) {
-        String key = getHistoryKey(message.getFrom(), message.getTo());
-        Queue<Message> history = messageHistory.computeIfAbsent(key, k -> new LinkedList<>());
+        addMessages(Collections.singletonList(message));
+    }
+
+    /**
+     * 批量追加：每个会话只保存一次最终快照，所有快照一次写入存储，日志一次写入。
+     * 须在各会话的投递条带上执行。
+     */
+    public void addMessages(List<Message> messages) {
+        Map<String, List<Message>> byConversation = new LinkedHashMap<>();
+        for (Message message : messages) {
+            byConversation.computeIfAbsent(getHistoryKey(message.getFrom(), message.getTo()),
+                    k -> new ArrayList<>()).add(message);
+            if (searchIndex != null) {
+                searchIndex.add(message);
+            }
+        }
+        Map<String, List<Message>> snapshots = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Message>> entry : byConversation.entrySet()) {
+            snapshots.put(entry.getKey(), cache.appendAll(entry.getKey(), entry.getValue(), maxPerConversation));
+        }
+
+        logMessages(messages);
+        try {
+            storage.saveConversations(snapshots);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void setSearchIndex(SearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    public void setRetentionPolicy(RetentionPolicy policy) {
+        this.maxPerConversation = policy.getHistoryMaxCount();
+    }
+
+    /**
+     * 只读检查会话是否有需要按保留策略删除的记录，不把会话放进缓存。
+     */
+    public boolean needsRetention(String key, RetentionPolicy policy, long now) {
+        return policy.applyToConversation(cache.read(key), now) != null;
+    }
+
+    /**
+     * 对会话应用保留策略并写回存储，被删除的消息同时从搜索结果中排除。
+     * 必须在该会话的投递条带上执行，与 addMessage 串行。
+     */
+    public void applyRetention(String key, RetentionPolicy policy, long now) {
+        List<Message> retained = policy.applyToConversation(cache.read(key), now);
+        if (retained == null) {
+            return;
+        }
+        cache.replace(key, retained);
+        try {
+            storage.saveConversation(key, retained);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (searchIndex != null) {
+            searchIndex.expire(key, retained);
+        }
+    }
+
+    /**
+     * 删掉 latest.log 开头早于 cutoff 的行。日志按时间追加，只需找到第一条不过期的行，
+     * 把其后的内容限速复制到新文件；复制期间追加的内容在锁内补上后替换原文件。
+     *
+     * @return 删除的字节数
+     */
+    public long compactLog(long cutoff, TokenBucket ioBudget) throws IOException, InterruptedException {
+        if (!Files.exists(LOG_FILE)) {
+            return 0;
+        }
+        long keepFrom = findFirstRetainedLine(cutoff, ioBudget);
+        if (keepFrom <= 0) {
+            return 0;
+        }
+        Path temp = LOG_FILE.resolveSibling(LOG_FILE.getFileName() + ".compact");
+        try (FileChannel source = FileChannel.open(LOG_FILE, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(temp, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = keepFrom;
+            long end = source.size();
+            while (position < end) {
+                long chunk = Math.min(LOG_COPY_CHUNK, end - position);
+                ioBudget.acquire(chunk);
+                position += source.transferTo(position, chunk, target);
+            }
+            synchronized (logLock) {
+                long size = source.size();
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+                target.force(true);
+                Files.move(temp, LOG_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return keepFrom;
+    }
 
-        history.offer(message);
-        while (history.size() > MAX_HISTORY_PER_USER) {
-            history.poll();
+    // 返回第一条时间不早于 cutoff 的行的字节偏移；整个文件都过期时返回文件长度
+    private long findFirstRetainedLine(long cutoff, TokenBucket ioBudget) throws IOException, InterruptedException {
+        long offset = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(LOG_FILE), LOG_COPY_CHUNK)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long scanned = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                if (++scanned % LOG_COPY_CHUNK == 0) {
+                    ioBudget.acquire(LOG_COPY_CHUNK);
+                }
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                Message entry = HistoryImporter.parseLogLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                if (entry != null && entry.getTimestamp() >= cutoff) {
+                    return offset;
+                }
+                offset = scanned;
+                line.reset();
+            }
         }
+        return offset;
+    }
 
-        logMessage(message);
-        saveHistory();
+    public String getCacheStats() {
+        return cache.getStats();
     }
 
+    /**
+     * 只读取该用户参与的会话，会话列表来自存储的按用户索引。
+     * 消息在追加后立即保存，存储中的会话键不会落后于缓存。
+     */
     public List<Message> getHistory(String username) {
         List<Message> userMessages = new ArrayList<>();
-        for (Queue<Message> messages : messageHistory.values()) {
-            for (Message message : messages) {
+        for (String key : storage.conversationKeys(username)) {
+            for (Message message : cache.read(key)) {
                 if (message.getFrom().equals(username) || message.getTo().equals(username)) {
                     userMessages.add(message);
                 }
@@ -50,54 +193,44 @@ public class MessageHistory {
 
     public List<Message> getHistory(String user1, String user2) {
         String key = getHistoryKey(user1, user2);
-        return new ArrayList<>(messageHistory.getOrDefault(key, new LinkedList<>()));
+        if (!cache.contains(key) && !storage.containsConversation(key)) {
+            return new ArrayList<>();
+        }
+        return cache.get(key).snapshot();
     }
 
     private String getHistoryKey(String user1, String user2) {
         return user1.compareTo(user2) < 0 ? user1 + ":" + user2 : user2 + ":" + user1;
     }
 
-    private void loadHistory() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(historyFile.toFile()))) {
-            messageHistory = (Map<String, Queue<Message>>) ois.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            messageHistory = new ConcurrentHashMap<>();
-        }
-    }
-
-    private void saveHistory() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(historyFile.toFile()))) {
-            oos.writeObject(messageHistory);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void logMessages(List<Message> messages) {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm");
+        StringBuilder entries = new StringBuilder();
+        for (Message message : messages) {
+            if (message.getFrom() == null || message.getTo() == null) {
+                // 忽略系统消息
+                continue;
+            }
+            String logEntry = String.format("[%s] %s >> %s : %s",
+                    LocalDateTime.ofEpochSecond(message.getTimestamp() / 1000, 0, ZoneOffset.UTC).format(formatter),
+                    message.getFrom(),
+                    message.getTo(),
+                    message.getContent());
+            // 消息已记录则跳过
+            if (loggedMessages.add(logEntry)) {
+                entries.append(logEntry).append('\n');
+            }
         }
-    }
-
-    private void logMessage(Message message) {
-        if (message.getFrom() == null || message.getTo() == null) {
-            // 忽略系统消息
+        if (entries.length() == 0) {
             return;
         }
 
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm");
-        String logEntry = String.format("[%s] %s >> %s : %s",
-                LocalDateTime.ofEpochSecond(message.getTimestamp() / 1000, 0, ZoneOffset.UTC).format(formatter),
-                message.getFrom(),
-                message.getTo(),
-                message.getContent());
-
-        synchronized (loggedMessages) {
-            if (loggedMessages.contains(logEntry)) {
-                // 消息已记录，跳过
-                return;
+        synchronized (logLock) {
+            try (FileWriter fw = new FileWriter("user_data/latest.log", true)) {
+                fw.write(entries.toString());
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            loggedMessages.add(logEntry);
-        }
-
-        try (FileWriter fw = new FileWriter("user_data/latest.log", true)) {
-            fw.write(logEntry + "\n");
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,84 @@
+package server;
+
+import common.Message;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * 单条消息在服务器内各阶段的耗时，作为 JFR 自定义事件记录。
+ * 由 ClientHandler 按 trace.sampleInterval 抽样创建，随消息经过投递条带和出站通道，
+ * 在写出套接字（或转入离线队列）后提交。没有开启录制时不会创建事件。
+ * 用 TraceAnalyzer 读取 .jfr 文件查看各阶段的延迟分布。
+ */
+@Name(MessageTraceEvent.NAME)
+@Label("消息追踪")
+@Category({"Chat", "Delivery"})
+@Description("单条消息在服务器内各阶段的耗时")
+public class MessageTraceEvent extends Event {
+    static final String NAME = "chat.MessageTrace";
+    static final String[] STAGES = {"admit", "decode", "queue", "history", "persist", "forward", "lane", "write"};
+
+    @Label("消息类型")
+    String messageType;
+
+    @Label("准入") @Description("读到一行后到通过限流检查") @Timespan(Timespan.NANOSECONDS)
+    long admit;
+
+    @Label("解码") @Timespan(Timespan.NANOSECONDS)
+    long decode;
+
+    @Label("排队") @Description("在投递条带队列中等待") @Timespan(Timespan.NANOSECONDS)
+    long queue;
+
+    @Label("历史记录") @Description("messageHistory.addMessage") @Timespan(Timespan.NANOSECONDS)
+    long history;
+
+    @Label("持久化") @Description("storage.exportUserHistory") @Timespan(Timespan.NANOSECONDS)
+    long persist;
+
+    @Label("转发") @Description("路由到接收方的出站通道或离线队列") @Timespan(Timespan.NANOSECONDS)
+    long forward;
+
+    @Label("出站排队") @Description("在接收方出站通道中等待") @Timespan(Timespan.NANOSECONDS)
+    long lane;
+
+    @Label("写出") @Description("写入接收方套接字") @Timespan(Timespan.NANOSECONDS)
+    long write;
+
+    // 上一个阶段结束的时刻；transient 字段不会写入录制
+    private transient long last;
+    // 已交给出站通道，之后由写线程提交
+    transient boolean handedOff;
+
+    /**
+     * 开始追踪；没有开启录制时返回 null，调用方据此跳过所有计时。
+     */
+    static MessageTraceEvent start() {
+        MessageTraceEvent event = new MessageTraceEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        event.last = System.nanoTime();
+        return event;
+    }
+
+    static MessageTraceEvent of(Message message) {
+        Object trace = message.getTrace();
+        return trace instanceof MessageTraceEvent ? (MessageTraceEvent) trace : null;
+    }
+
+    /**
+     * 返回距上一个阶段结束的纳秒数，并把当前时刻记为新阶段的起点。
+     */
+    long lap() {
+        long now = System.nanoTime();
+        long elapsed = now - last;
+        last = now;
+        return elapsed;
+    }
+}
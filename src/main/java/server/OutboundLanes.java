@@ -0,0 +1,192 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 每个连接的出站优先级通道，由服务器共享的写线程池按优先级写入会话。
+ * <ul>
+ *   <li>聊天通道：先进先出，总是优先写出；积压超过容量说明对端读得太慢，
+ *       通知连接断开（见 onOverflow），消息仍入队，断开后随其余积压进入会话的重传缓冲区</li>
+ *   <li>状态通道：STATUS_UPDATE / ONLINE_USERS / FRIEND_LIST_UPDATE，同一个键只保留最新的一条；
+ *       超出容量时丢弃最旧的条目</li>
+ * </ul>
+ * 入队从不阻塞调用方（投递条带）。有积压时向写线程池提交一个写任务，每次最多写 DRAIN_BURST 条后重新排队，
+ * 不让一个连接长期占住写线程。对端不读时单次写入最多阻塞 outbound.writeTimeoutSeconds，
+ * 之后连接被关闭（见 {@link WriteDeadlineOutputStream}），读得慢的连接占不满整个写线程池。
+ * 序号在写出时才由 Session 分配，被合并或丢弃的状态消息不会在序号中留下空洞。
+ * 关闭后先把已排队的消息写完，之后的消息直接交给会话（分离状态下进入重传缓冲区）。
+ */
+public class OutboundLanes {
+    private static final Logger logger = Logger.getLogger(OutboundLanes.class.getName());
+    private static final int DRAIN_BURST = 64;
+
+    private final Session session;
+    private final int chatCapacity;
+    private final int presenceCapacity;
+    private final Executor writers;
+    private final Runnable onOverflow;
+    private final ArrayDeque<Message> chat = new ArrayDeque<>();
+    private final LinkedHashMap<String, Message> presence = new LinkedHashMap<>();
+    private boolean closed;
+    private boolean drained;
+    // 已向写线程池提交了写任务且尚未把队列写空
+    private boolean scheduled;
+    private boolean overflowed;
+    private long coalesced;
+    private long dropped;
+
+    /**
+     * @param writers    执行写任务的线程池，多个连接共享
+     * @param onOverflow 聊天通道第一次超过容量时调用一次，在调用 enqueue 的线程中执行
+     */
+    public OutboundLanes(Session session, int chatCapacity, int presenceCapacity, Executor writers, Runnable onOverflow) {
+        this.session = session;
+        this.chatCapacity = chatCapacity;
+        this.presenceCapacity = presenceCapacity;
+        this.writers = writers;
+        this.onOverflow = onOverflow;
+    }
+
+    static boolean isPresence(MessageType type) {
+        return type == MessageType.STATUS_UPDATE || type == MessageType.ONLINE_USERS
+                || type == MessageType.FRIEND_LIST_UPDATE;
+    }
+
+    public void enqueue(Message message) {
+        MessageTraceEvent trace = MessageTraceEvent.of(message);
+        if (trace != null) {
+            trace.forward = trace.lap();
+            trace.handedOff = true;
+        }
+        boolean queued;
+        boolean schedule = false;
+        boolean overflow = false;
+        synchronized (this) {
+            queued = !drained;
+            if (queued) {
+                if (isPresence(message.getType())) {
+                    offerPresence(message);
+                } else {
+                    if (chat.size() >= chatCapacity && !overflowed) {
+                        overflowed = true;
+                        overflow = true;
+                    }
+                    chat.add(message);
+                }
+                if (!scheduled) {
+                    scheduled = true;
+                    schedule = true;
+                }
+            }
+        }
+        if (!queued) {
+            write(message);
+            return;
+        }
+        if (overflow) {
+            logger.warning("聊天通道积压超过 " + chatCapacity + " 条，断开读取过慢的连接: " + session.getUsername());
+            onOverflow.run();
+        }
+        if (schedule) {
+            schedule();
+        }
+    }
+
+    private void offerPresence(Message message) {
+        String key = message.getType().name() + ":" + message.getFrom();
+        // 先移除再放入，让更新过的键排到队尾，淘汰时从最久未更新的开始
+        if (presence.remove(key) != null) {
+            coalesced++;
+        }
+        presence.put(key, message);
+        if (presence.size() > presenceCapacity) {
+            Iterator<Map.Entry<String, Message>> eldest = presence.entrySet().iterator();
+            eldest.next();
+            eldest.remove();
+            if (dropped++ == 0) {
+                logger.info("状态通道已满，开始丢弃状态消息: " + session.getUsername());
+            }
+        }
+    }
+
+    private void schedule() {
+        try {
+            writers.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            // 服务器正在关闭，写线程池不再接受任务，在当前线程写完
+            drain();
+        }
+    }
+
+    private void drain() {
+        for (int i = 0; i < DRAIN_BURST; i++) {
+            Message next;
+            synchronized (this) {
+                if (!chat.isEmpty()) {
+                    next = chat.poll();
+                } else if (!presence.isEmpty()) {
+                    Iterator<Message> first = presence.values().iterator();
+                    next = first.next();
+                    first.remove();
+                } else {
+                    scheduled = false;
+                    drained = closed;
+                    return;
+                }
+            }
+            try {
+                write(next);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "写出消息失败: " + session.getUsername(), e);
+            }
+        }
+        // 还有积压时重新排队，让其他连接的写任务先执行
+        schedule();
+    }
+
+    private void write(Message message) {
+        MessageTraceEvent trace = MessageTraceEvent.of(message);
+        if (trace == null) {
+            session.send(message);
+            return;
+        }
+        message.setTrace(null);
+        trace.lane = trace.lap();
+        session.send(message);
+        trace.write = trace.lap();
+        trace.commit();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        if (!scheduled) {
+            drained = true;
+        }
+    }
+
+    public synchronized int getChatDepth() {
+        return chat.size();
+    }
+
+    public synchronized int getPresenceDepth() {
+        return presence.size();
+    }
+
+    public synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+}
@@ -0,0 +1,219 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 压缩的倒排表：文档号递增追加，按与前一个文档号的差值做变长整数编码。
+ * 每 SKIP_INTERVAL 个文档记一个跳表项（块首文档号和字节偏移），
+ * 查询用 {@link Cursor} 从新到旧遍历，跳过整块时不必解码。
+ */
+public class PostingList {
+    static final int SKIP_INTERVAL = 128;
+
+    private byte[] data;
+    private int length;
+    private int count;
+    private int lastDoc = -1;
+    private int[] skipDocs = new int[1];
+    private int[] skipOffsets = new int[1];
+
+    public PostingList() {
+        this.data = new byte[8];
+    }
+
+    private PostingList(byte[] data, int count, int lastDoc) {
+        this.data = data;
+        this.length = data.length;
+        this.count = count;
+        this.lastDoc = lastDoc;
+        rebuildSkips();
+    }
+
+    /**
+     * 文档号必须大于已有的最大文档号，重复添加同一文档会被忽略。
+     */
+    public void add(int doc) {
+        if (doc <= lastDoc) {
+            return;
+        }
+        if (count % SKIP_INTERVAL == 0) {
+            addSkip(count / SKIP_INTERVAL, doc, length);
+        }
+        int delta = lastDoc < 0 ? doc : doc - lastDoc;
+        ensureCapacity(length + 5);
+        while ((delta & ~0x7F) != 0) {
+            data[length++] = (byte) ((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        data[length++] = (byte) delta;
+        lastDoc = doc;
+        count++;
+    }
+
+    /**
+     * 按顺序追加另一个倒排表中的全部文档，用于合并索引快照的增量段；不大于当前最大文档号的会被忽略。
+     */
+    public void addAll(PostingList other) {
+        int position = 0;
+        int doc = 0;
+        for (int i = 0; i < other.count; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = other.data[position++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            doc = i == 0 ? delta : doc + delta;
+            add(doc);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int byteSize() {
+        return length;
+    }
+
+    /**
+     * 从最新的文档开始向旧的方向遍历。调用方须持有索引的读锁。
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * 倒序游标，一次只解码当前所在的块。
+     */
+    public final class Cursor {
+        private final int[] block = new int[SKIP_INTERVAL];
+        private final int blocks = (count + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+        private int blockIndex = -1;
+        private int position = -1;
+        private boolean started;
+
+        /**
+         * 移到不大于 target 的最大文档号并返回；没有时返回 -1。游标只会后退，
+         * 当前文档已不大于 target 时原地不动。
+         */
+        public int retreat(int target) {
+            if (started) {
+                if (position < 0) {
+                    return -1;
+                }
+                if (block[position] <= target) {
+                    return block[position];
+                }
+            }
+            started = true;
+            // 当前块内还有不大于 target 的文档就在块内后退
+            if (position > 0 && block[0] <= target) {
+                while (block[position] > target) {
+                    position--;
+                }
+                return block[position];
+            }
+            // 二分查找块首不大于 target 的最后一块，且只在当前块之前找
+            int low = 0;
+            int high = (blockIndex < 0 ? blocks : blockIndex) - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (skipDocs[mid] <= target) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (found < 0) {
+                position = -1;
+                return -1;
+            }
+            int size = decodeBlock(found);
+            blockIndex = found;
+            position = size - 1;
+            while (block[position] > target) {
+                position--;
+            }
+            return block[position];
+        }
+
+        private int decodeBlock(int index) {
+            int size = Math.min(SKIP_INTERVAL, count - index * SKIP_INTERVAL);
+            int offset = skipOffsets[index];
+            int doc = 0;
+            for (int i = 0; i < size; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[offset++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                // 块首的差值相对上一块，文档号直接取跳表中记录的值
+                doc = i == 0 ? skipDocs[index] : doc + delta;
+                block[i] = doc;
+            }
+            return size;
+        }
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(count);
+        out.writeInt(lastDoc);
+        out.writeInt(length);
+        out.write(data, 0, length);
+    }
+
+    static PostingList readFrom(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        int lastDoc = in.readInt();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new PostingList(data, count, lastDoc);
+    }
+
+    // 快照中不保存跳表，加载时顺序扫描一遍重建
+    private void rebuildSkips() {
+        int position = 0;
+        int doc = 0;
+        for (int i = 0; i < count; i++) {
+            int start = position;
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            doc = i == 0 ? delta : doc + delta;
+            if (i % SKIP_INTERVAL == 0) {
+                addSkip(i / SKIP_INTERVAL, doc, start);
+            }
+        }
+    }
+
+    private void addSkip(int index, int doc, int offset) {
+        if (index == skipDocs.length) {
+            skipDocs = Arrays.copyOf(skipDocs, index * 2);
+            skipOffsets = Arrays.copyOf(skipOffsets, index * 2);
+        }
+        skipDocs[index] = doc;
+        skipOffsets[index] = offset;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required > data.length) {
+            data = Arrays.copyOf(data, Math.max(required, data.length * 2));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package server;
+
+import common.Message.MessageType;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 流量限制。每个连接一个总桶，每个用户按消息类型各一个桶（同一用户的多个连接共享）。
+ * <pre>
+ * rateLimit.connection.perSecond / rateLimit.connection.burst
+ * rateLimit.user.&lt;消息类型&gt;.perSecond / .burst
+ * rateLimit.user.default.perSecond / .burst   未单独配置的类型
+ * </pre>
+ */
+public class RateLimiter {
+    private static final String TYPE_FIELD = "\"type\":\"";
+
+    private final double connectionPerSecond;
+    private final double connectionBurst;
+    private final Map<MessageType, double[]> userBudgets = new EnumMap<>(MessageType.class);
+    private final Map<String, Map<MessageType, TokenBucket>> userBuckets = new ConcurrentHashMap<>();
+
+    public RateLimiter(Properties config) {
+        this.connectionPerSecond = Double.parseDouble(config.getProperty("rateLimit.connection.perSecond", "200"));
+        this.connectionBurst = Double.parseDouble(config.getProperty("rateLimit.connection.burst", "400"));
+        double defaultPerSecond = Double.parseDouble(config.getProperty("rateLimit.user.default.perSecond", "10"));
+        double defaultBurst = Double.parseDouble(config.getProperty("rateLimit.user.default.burst", "20"));
+        for (MessageType type : MessageType.values()) {
+            String prefix = "rateLimit.user." + type.name();
+            userBudgets.put(type, new double[]{
+                    Double.parseDouble(config.getProperty(prefix + ".perSecond", String.valueOf(defaultPerSecond))),
+                    Double.parseDouble(config.getProperty(prefix + ".burst", String.valueOf(defaultBurst)))
+            });
+        }
+    }
+
+    public TokenBucket newConnectionBucket() {
+        return new TokenBucket(connectionPerSecond, connectionBurst);
+    }
+
+    public boolean tryAcquire(String username, MessageType type) {
+        Map<MessageType, TokenBucket> buckets = userBuckets.computeIfAbsent(username,
+                k -> new ConcurrentHashMap<>());
+        TokenBucket bucket = buckets.computeIfAbsent(type, t -> {
+            double[] budget = userBudgets.get(t);
+            return new TokenBucket(budget[0], budget[1]);
+        });
+        return bucket.tryAcquire();
+    }
+
+    public void removeUser(String username) {
+        userBuckets.remove(username);
+    }
+
+    /**
+     * 不做 JSON 解析，直接从原始行里找出消息类型；找不到或无法识别时返回 null。
+     * 内容中的引号在 JSON 中都会被转义，不会误匹配。
+     */
+    public static MessageType peekType(String json) {
+        int start = json.indexOf(TYPE_FIELD);
+        if (start < 0) {
+            return null;
+        }
+        start += TYPE_FIELD.length();
+        int end = json.indexOf('"', start);
+        if (end < 0) {
+            return null;
+        }
+        try {
+            return MessageType.valueOf(json.substring(start, end));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package server;
+
+import common.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 保留策略，取自 server.properties：
+ * <pre>
+ * retention.history.maxAgeDays   会话历史（及 latest.log、_history.dat）的最长保留天数，0 表示不按时间过期
+ * retention.history.maxCount     每个会话最多保留的条数，不超过 MAX_HISTORY_PER_USER
+ * retention.offline.maxAgeDays   离线消息的最长保留天数，0 表示不过期
+ * </pre>
+ */
+public class RetentionPolicy {
+    private final long historyMaxAgeMillis;
+    private final int historyMaxCount;
+    private final long offlineMaxAgeMillis;
+
+    public RetentionPolicy(long historyMaxAgeMillis, int historyMaxCount, long offlineMaxAgeMillis) {
+        this.historyMaxAgeMillis = historyMaxAgeMillis;
+        this.historyMaxCount = Math.max(1, Math.min(historyMaxCount, MessageHistory.MAX_HISTORY_PER_USER));
+        this.offlineMaxAgeMillis = offlineMaxAgeMillis;
+    }
+
+    public static RetentionPolicy fromConfig(Properties config) {
+        return new RetentionPolicy(
+                TimeUnit.DAYS.toMillis(Long.parseLong(config.getProperty("retention.history.maxAgeDays", "365"))),
+                Integer.parseInt(config.getProperty("retention.history.maxCount",
+                        String.valueOf(MessageHistory.MAX_HISTORY_PER_USER))),
+                TimeUnit.DAYS.toMillis(Long.parseLong(config.getProperty("retention.offline.maxAgeDays", "30"))));
+    }
+
+    public int getHistoryMaxCount() {
+        return historyMaxCount;
+    }
+
+    /**
+     * 早于该时刻的历史记录过期；不按时间过期时返回 Long.MIN_VALUE。
+     */
+    public long historyCutoff(long now) {
+        return historyMaxAgeMillis <= 0 ? Long.MIN_VALUE : now - historyMaxAgeMillis;
+    }
+
+    public long offlineCutoff(long now) {
+        return offlineMaxAgeMillis <= 0 ? Long.MIN_VALUE : now - offlineMaxAgeMillis;
+    }
+
+    /**
+     * 只凭会话的最早消息时间和条数判断 applyToConversation 是否会删除记录，结果与其一致。
+     */
+    public boolean mayExpire(long oldestTimestamp, long count, long now) {
+        return count > historyMaxCount || (count > 0 && oldestTimestamp < historyCutoff(now));
+    }
+
+    /**
+     * 对一个会话应用保留策略，没有需要删除的记录时返回 null。
+     */
+    public List<Message> applyToConversation(List<Message> messages, long now) {
+        long cutoff = historyCutoff(now);
+        List<Message> kept = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            if (message.getTimestamp() >= cutoff) {
+                kept.add(message);
+            }
+        }
+        if (kept.size() > historyMaxCount) {
+            kept = new ArrayList<>(kept.subList(kept.size() - historyMaxCount, kept.size()));
+        }
+        return kept.size() == messages.size() ? null : kept;
+    }
+}
@@ -0,0 +1,831 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntUnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * 增量倒排索引，由 MessageHistory.addMessage 喂入聊天消息。
+ * <ul>
+ *   <li>docs.dat：只追加的文档存储，每条消息一条记录，文档号即写入顺序</li>
+ *   <li>postings.dat：基础快照，包括文档偏移、所属会话、会话列表和按词排序的压缩倒排表</li>
+ *   <li>postings-&lt;起始文档号&gt;.dat：增量段，格式与基础快照相同，只含该段的文档和倒排</li>
+ *   <li>expired.dat：各会话按保留策略过期的文档号下界，查询时跳过下界之前的文档</li>
+ * </ul>
+ * 每 snapshotInterval 条消息在锁内切出一个增量段（只交换一个小的倒排表，O(1)），由后台线程写出；
+ * 增量段达到 {@link #MAX_SEGMENTS} 个时，后台线程按词归并文件，生成新的基础快照，全程不持有索引锁。
+ * 启动时加载基础快照和连续的增量段，再把之后追加到 docs.dat 的记录重新索引。
+ * 查询只读倒排表，并限定在请求者参与的会话内，不扫描历史记录。
+ */
+public class SearchIndex implements Closeable {
+    private static final Logger logger = Logger.getLogger(SearchIndex.class.getName());
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int MAX_SEGMENTS = 8;
+    private static final String SEGMENT_PREFIX = "postings-";
+
+    /**
+     * 切出的增量段。文档数组只在末尾追加、扩容时复制，[firstDoc, endDoc) 之间的内容不会再变，
+     * 倒排表在切出后也不再修改，因此后台线程可以不加锁地写出。
+     */
+    private static final class Segment {
+        final int firstDoc;
+        final int endDoc;
+        final long[] docOffsets;
+        final int[] docConversations;
+        final int firstConversation;
+        final List<String> conversations;
+        final Map<String, PostingList> postings;
+
+        Segment(int firstDoc, int endDoc, long[] docOffsets, int[] docConversations,
+                int firstConversation, List<String> conversations, Map<String, PostingList> postings) {
+            this.firstDoc = firstDoc;
+            this.endDoc = endDoc;
+            this.docOffsets = docOffsets;
+            this.docConversations = docConversations;
+            this.firstConversation = firstConversation;
+            this.conversations = conversations;
+            this.postings = postings;
+        }
+
+        // 文件格式：版本, 起止文档号, 每个文档的 (偏移, 会话号), 起始会话号与新增会话键, 按词排序的 (有无, 词, 倒排表)...
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(firstDoc);
+            out.writeInt(endDoc);
+            for (int i = firstDoc; i < endDoc; i++) {
+                out.writeLong(docOffsets[i]);
+                out.writeInt(docConversations[i]);
+            }
+            out.writeInt(firstConversation);
+            out.writeInt(conversations.size());
+            for (String key : conversations) {
+                out.writeUTF(key);
+            }
+            List<String> terms = new ArrayList<>(postings.keySet());
+            Collections.sort(terms);
+            for (String term : terms) {
+                out.writeBoolean(true);
+                out.writeUTF(term);
+                postings.get(term).writeTo(out);
+            }
+            out.writeBoolean(false);
+        }
+    }
+
+    /**
+     * 顺序读取一个快照文件；各部分必须按文件中的顺序读取。
+     */
+    private static final class SnapshotReader implements Closeable {
+        final Path file;
+        final DataInputStream in;
+        final int firstDoc;
+        final int endDoc;
+        String term;
+        PostingList list;
+
+        SnapshotReader(Path file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            try {
+                if (in.readInt() != SNAPSHOT_VERSION) {
+                    throw new IOException("索引快照版本不符: " + file);
+                }
+                this.firstDoc = in.readInt();
+                this.endDoc = in.readInt();
+                if (firstDoc < 0 || endDoc < firstDoc) {
+                    throw new IOException("索引快照文档范围无效: " + file);
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        boolean nextTerm() throws IOException {
+            if (!in.readBoolean()) {
+                term = null;
+                list = null;
+                return false;
+            }
+            term = in.readUTF();
+            list = PostingList.readFrom(in);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final class SegmentFile {
+        final Path path;
+        final int firstDoc;
+        final int endDoc;
+
+        SegmentFile(Path path, int firstDoc, int endDoc) {
+            this.path = path;
+            this.firstDoc = firstDoc;
+            this.endDoc = endDoc;
+        }
+    }
+
+    private final Path dir;
+    private final Path docsFile;
+    private final Path snapshotFile;
+    private final Path expiredFile;
+    private final int snapshotInterval;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, PostingList> postings = new HashMap<>();
+    private final Map<String, Integer> conversationIds = new HashMap<>();
+    private final List<String> conversations = new ArrayList<>();
+    // 每个用户参与的会话编号，查询时直接取用
+    private final Map<String, BitSet> conversationsByUser = new HashMap<>();
+    // 每个会话的文档号，用户的文档少于最短的词倒排表时由它驱动求交
+    private final List<PostingList> docsByConversation = new ArrayList<>();
+    // 每个会话中小于该文档号的文档已按保留策略过期
+    private int[] expiredBefore = new int[64];
+    // 已登记写出 expired.dat 且尚未开始写
+    private final AtomicBoolean expiredDirty = new AtomicBoolean();
+    private final FileChannel docs;
+    private long[] docOffsets = new long[1024];
+    private int[] docConversations = new int[1024];
+    private int docCount;
+    // 尚未切出的增量：从 deltaFirstDoc 开始的文档的倒排
+    private Map<String, PostingList> delta = new HashMap<>();
+    private int deltaFirstDoc;
+    private int deltaFirstConversation;
+    // 以下只由快照线程访问（构造和关闭时除外）
+    private final ExecutorService snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "search-snapshot");
+        t.setDaemon(true);
+        return t;
+    });
+    private final List<SegmentFile> segmentFiles = new ArrayList<>();
+    private int baseEndDoc;
+
+    public SearchIndex(Path dir, int snapshotInterval) throws IOException {
+        Files.createDirectories(dir);
+        this.dir = dir;
+        this.docsFile = dir.resolve("docs.dat");
+        this.snapshotFile = dir.resolve("postings.dat");
+        this.expiredFile = dir.resolve("expired.dat");
+        this.snapshotInterval = Math.max(1, snapshotInterval);
+        this.docs = FileChannel.open(docsFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long start = System.currentTimeMillis();
+        try {
+            loadSnapshots();
+            replayTail();
+            loadExpired();
+        } catch (IOException e) {
+            snapshotWriter.shutdownNow();
+            docs.close();
+            throw e;
+        }
+        logger.info("搜索索引已加载: " + docCount + " 条消息, " + postings.size() + " 个词, 耗时 "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    public static boolean isIndexable(Message message) {
+        return message.getFrom() != null && message.getTo() != null && message.getContent() != null
+                && (message.getType() == MessageType.CHAT || message.getType() == MessageType.OFFLINE_MESSAGE);
+    }
+
+    public void add(Message message) {
+        if (!isIndexable(message)) {
+            return;
+        }
+        Segment segment = null;
+        lock.writeLock().lock();
+        try {
+            long offset = docs.size();
+            writeDoc(message, offset);
+            index(message, offset);
+            if (docCount - deltaFirstDoc >= snapshotInterval) {
+                segment = cutSegment();
+            }
+        } catch (IOException e) {
+            logger.warning("写入搜索索引时出错: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (segment != null) {
+            submit(segment);
+        }
+    }
+
+    /**
+     * 在 username 参与的会话中搜索，按时间从新到旧返回最多 limit 条。
+     * 各词的倒排表从最短的开始倒序跳跃求交；用户各会话的文档合计比最短的倒排表还少时，
+     * 把这些会话的文档并集也作为一路参与求交并由它驱动，否则命中的文档按会话位图过滤。
+     * 通过后才读原文核对。
+     */
+    public List<Message> search(String username, String query, int limit) {
+        Set<String> terms = Tokenizer.tokenizeQuery(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        List<String> segments = Tokenizer.querySegments(query);
+
+        lock.readLock().lock();
+        try {
+            BitSet allowed = conversationsByUser.get(username);
+            if (allowed == null) {
+                return new ArrayList<>();
+            }
+            List<PostingList> lists = new ArrayList<>(terms.size());
+            for (String term : terms) {
+                PostingList list = postings.get(term);
+                if (list == null) {
+                    return new ArrayList<>();
+                }
+                lists.add(list);
+            }
+            lists.sort(Comparator.comparingInt(PostingList::size));
+            long userDocs = 0;
+            for (int c = allowed.nextSetBit(0); c >= 0; c = allowed.nextSetBit(c + 1)) {
+                userDocs += docsByConversation.get(c).size();
+            }
+            boolean scoped = userDocs < lists.get(0).size();
+            IntUnaryOperator[] cursors = new IntUnaryOperator[lists.size() + (scoped ? 1 : 0)];
+            int next = 0;
+            if (scoped) {
+                cursors[next++] = unionCursor(allowed);
+            }
+            for (PostingList list : lists) {
+                cursors[next++] = list.cursor()::retreat;
+            }
+
+            List<Message> results = new ArrayList<>();
+            int doc = cursors[0].applyAsInt(Integer.MAX_VALUE);
+            while (doc >= 0 && results.size() < limit) {
+                // 轮流把各游标退到不大于 doc 的位置，直到所有游标停在同一文档上
+                int agreed = 1;
+                int k = 1 % cursors.length;
+                while (agreed < cursors.length) {
+                    int d = cursors[k].applyAsInt(doc);
+                    if (d < 0) {
+                        return results;
+                    }
+                    if (d == doc) {
+                        agreed++;
+                    } else {
+                        doc = d;
+                        agreed = 1;
+                    }
+                    k = (k + 1) % cursors.length;
+                }
+                int conversation = docConversations[doc];
+                if ((scoped || allowed.get(conversation)) && doc >= expiredBefore[conversation]) {
+                    // 二字词组合可能误命中不相邻的片段，逐段核对原文
+                    Message message = readDoc(docOffsets[doc]);
+                    if (message != null && containsAll(message.getContent().toLowerCase(), segments)) {
+                        results.add(message);
+                    }
+                }
+                doc = doc == 0 ? -1 : cursors[0].applyAsInt(doc - 1);
+            }
+            return results;
+        } catch (IOException e) {
+            logger.warning("搜索时出错: " + e.getMessage());
+            return new ArrayList<>();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 用户各会话文档的并集：退到各会话游标中不大于 target 的最大文档
+    private IntUnaryOperator unionCursor(BitSet allowed) {
+        List<PostingList.Cursor> parts = new ArrayList<>();
+        for (int c = allowed.nextSetBit(0); c >= 0; c = allowed.nextSetBit(c + 1)) {
+            parts.add(docsByConversation.get(c).cursor());
+        }
+        return target -> {
+            int best = -1;
+            for (PostingList.Cursor part : parts) {
+                best = Math.max(best, part.retreat(target));
+            }
+            return best;
+        };
+    }
+
+    private static boolean containsAll(String content, List<String> segments) {
+        for (String segment : segments) {
+            if (!content.contains(segment)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 会话按保留策略裁剪后调用，retained 是保留下来的消息。比第一条保留消息更早的文档记为过期，
+     * 查询时不再读原文直接跳过；docs.dat 中的原文和倒排表中的文档号不回收。
+     * 须在该会话的投递条带上调用，与 add 串行。
+     */
+    public void expire(String key, List<Message> retained) {
+        int floor;
+        int conversation;
+        lock.readLock().lock();
+        try {
+            Integer id = conversationIds.get(key);
+            if (id == null) {
+                return;
+            }
+            conversation = id;
+            floor = firstRetainedDoc(conversation, retained);
+        } catch (IOException e) {
+            logger.warning("标记过期索引时出错: " + e.getMessage());
+            return;
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            if (floor <= expiredBefore[conversation]) {
+                return;
+            }
+            expiredBefore[conversation] = floor;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (expiredDirty.compareAndSet(false, true)) {
+            try {
+                snapshotWriter.execute(this::writeExpired);
+            } catch (RejectedExecutionException e) {
+                // 正在关闭，由 close 写出
+            }
+        }
+    }
+
+    /**
+     * 从会话最新的文档往回找第一条保留的消息，返回它的文档号；没有保留的消息时返回最新文档号加一。
+     * 保留的都是最新的若干条，往回读到比它更早的时间就可以停下，最多读保留条数左右的文档。
+     * 调用方须持有读锁。
+     */
+    private int firstRetainedDoc(int conversation, List<Message> retained) throws IOException {
+        PostingList.Cursor cursor = docsByConversation.get(conversation).cursor();
+        int doc = cursor.retreat(Integer.MAX_VALUE);
+        int floor = doc + 1;
+        if (retained.isEmpty()) {
+            return floor;
+        }
+        Message first = retained.get(0);
+        while (doc >= 0) {
+            Message message = readDoc(docOffsets[doc]);
+            if (message == null || message.getTimestamp() < first.getTimestamp()) {
+                break;
+            }
+            floor = doc;
+            if (Objects.equals(message.getId(), first.getId())) {
+                break;
+            }
+            doc = doc == 0 ? -1 : cursor.retreat(doc - 1);
+        }
+        return floor;
+    }
+
+    public int getDocCount() {
+        lock.readLock().lock();
+        try {
+            return docCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void index(Message message, long offset) {
+        int doc = docCount++;
+        if (doc == docOffsets.length) {
+            docOffsets = Arrays.copyOf(docOffsets, doc * 2);
+            docConversations = Arrays.copyOf(docConversations, doc * 2);
+        }
+        docOffsets[doc] = offset;
+        int conversation = conversationId(message.getFrom(), message.getTo());
+        docConversations[doc] = conversation;
+        docsByConversation.get(conversation).add(doc);
+        for (String term : Tokenizer.tokenize(message.getContent())) {
+            postings.computeIfAbsent(term, k -> new PostingList()).add(doc);
+            delta.computeIfAbsent(term, k -> new PostingList()).add(doc);
+        }
+    }
+
+    private int conversationId(String user1, String user2) {
+        String key = user1.compareTo(user2) < 0 ? user1 + ":" + user2 : user2 + ":" + user1;
+        Integer id = conversationIds.get(key);
+        if (id == null) {
+            id = addConversation(key);
+        }
+        return id;
+    }
+
+    private int addConversation(String key) {
+        int id = conversations.size();
+        conversations.add(key);
+        conversationIds.put(key, id);
+        if (id == expiredBefore.length) {
+            expiredBefore = Arrays.copyOf(expiredBefore, id * 2);
+        }
+        docsByConversation.add(new PostingList());
+        addParticipants(key, id);
+        return id;
+    }
+
+    private void addParticipants(String key, int id) {
+        int separator = key.indexOf(':');
+        conversationsByUser.computeIfAbsent(key.substring(0, separator), k -> new BitSet()).set(id);
+        conversationsByUser.computeIfAbsent(key.substring(separator + 1), k -> new BitSet()).set(id);
+    }
+
+    // 记录格式: 长度(int) + id、from、to、content + timestamp(long)
+    private void writeDoc(Message message, long offset) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        UserRecordWriter.writeString(out, message.getId());
+        UserRecordWriter.writeString(out, message.getFrom());
+        UserRecordWriter.writeString(out, message.getTo());
+        UserRecordWriter.writeString(out, message.getContent());
+        out.writeLong(message.getTimestamp());
+        out.flush();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        buffer.putInt(0, bytes.size() - 4);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += docs.write(buffer, position);
+        }
+    }
+
+    private Message readDoc(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        if (!readFully(header, offset)) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(header.getInt(0));
+        if (!readFully(body, offset + 4)) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+        String id = UserRecordReader.readString(in);
+        Message message = new Message(UserRecordReader.readString(in), UserRecordReader.readString(in),
+                UserRecordReader.readString(in), MessageType.CHAT);
+        message.setId(id);
+        message.setTimestamp(in.readLong());
+        return message;
+    }
+
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = docs.read(buffer, position);
+            if (read < 0) {
+                return false;
+            }
+            position += read;
+        }
+        return true;
+    }
+
+    /**
+     * 加载基础快照和紧接其后的增量段。已并入基础快照的旧段和不连续的段直接删除，
+     * 其中的文档随后由 replayTail 从 docs.dat 重新索引。任何文件损坏都丢弃全部快照，从头重建。
+     */
+    private void loadSnapshots() throws IOException {
+        TreeMap<Integer, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*.dat")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - 4)), file);
+                } catch (NumberFormatException e) {
+                    Files.delete(file);
+                }
+            }
+        }
+        try {
+            if (Files.exists(snapshotFile)) {
+                try (SnapshotReader reader = new SnapshotReader(snapshotFile)) {
+                    load(reader);
+                }
+            }
+            baseEndDoc = docCount;
+            for (Path file : segments.values()) {
+                boolean loaded = false;
+                try (SnapshotReader reader = new SnapshotReader(file)) {
+                    if (reader.firstDoc == docCount) {
+                        load(reader);
+                        segmentFiles.add(new SegmentFile(file, reader.firstDoc, reader.endDoc));
+                        loaded = true;
+                    }
+                }
+                if (!loaded) {
+                    Files.delete(file);
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("索引快照损坏，将重建索引: " + e.getMessage());
+            postings.clear();
+            conversations.clear();
+            conversationIds.clear();
+            conversationsByUser.clear();
+            docsByConversation.clear();
+            Arrays.fill(expiredBefore, 0);
+            docCount = 0;
+            baseEndDoc = 0;
+            segmentFiles.clear();
+            Files.deleteIfExists(snapshotFile);
+            for (Path file : segments.values()) {
+                Files.deleteIfExists(file);
+            }
+        }
+        deltaFirstDoc = docCount;
+        deltaFirstConversation = conversations.size();
+    }
+
+    private void load(SnapshotReader reader) throws IOException {
+        DataInputStream in = reader.in;
+        for (int doc = reader.firstDoc; doc < reader.endDoc; doc++) {
+            if (doc == docOffsets.length) {
+                docOffsets = Arrays.copyOf(docOffsets, doc * 2);
+                docConversations = Arrays.copyOf(docConversations, doc * 2);
+            }
+            docOffsets[doc] = in.readLong();
+            docConversations[doc] = in.readInt();
+        }
+        if (in.readInt() != conversations.size()) {
+            throw new IOException("索引快照的会话编号不连续: " + reader.file);
+        }
+        int conversationCount = in.readInt();
+        for (int i = 0; i < conversationCount; i++) {
+            addConversation(in.readUTF());
+        }
+        for (int doc = reader.firstDoc; doc < reader.endDoc; doc++) {
+            if (docConversations[doc] < 0 || docConversations[doc] >= conversations.size()) {
+                throw new IOException("索引快照的会话编号无效: " + reader.file);
+            }
+            docsByConversation.get(docConversations[doc]).add(doc);
+        }
+        docCount = reader.endDoc;
+        while (reader.nextTerm()) {
+            PostingList existing = postings.get(reader.term);
+            if (existing == null) {
+                postings.put(reader.term, reader.list);
+            } else {
+                existing.addAll(reader.list);
+            }
+        }
+    }
+
+    private void replayTail() throws IOException {
+        long offset = docCount == 0 ? 0 : nextOffset(docOffsets[docCount - 1]);
+        long size = docs.size();
+        while (offset < size) {
+            Message message = readDoc(offset);
+            if (message == null) {
+                // 崩溃时写了一半的记录，截掉
+                docs.truncate(offset);
+                break;
+            }
+            index(message, offset);
+            offset = nextOffset(offset);
+            if (docCount - deltaFirstDoc >= snapshotInterval) {
+                submit(cutSegment());
+            }
+        }
+    }
+
+    private long nextOffset(long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(header, offset);
+        return offset + 4 + header.getInt(0);
+    }
+
+    // 调用方须持有写锁
+    private Segment cutSegment() {
+        Segment segment = new Segment(deltaFirstDoc, docCount, docOffsets, docConversations, deltaFirstConversation,
+                new ArrayList<>(conversations.subList(deltaFirstConversation, conversations.size())), delta);
+        delta = new HashMap<>();
+        deltaFirstDoc = docCount;
+        deltaFirstConversation = conversations.size();
+        return segment;
+    }
+
+    private void submit(Segment segment) {
+        try {
+            snapshotWriter.execute(() -> persist(segment));
+        } catch (RejectedExecutionException e) {
+            // 正在关闭；这一段的文档下次启动时从 docs.dat 重新索引
+        }
+    }
+
+    private void persist(Segment segment) {
+        try {
+            Path file = dir.resolve(SEGMENT_PREFIX + segment.firstDoc + ".dat");
+            writeAtomically(file, segment::writeTo);
+            segmentFiles.add(new SegmentFile(file, segment.firstDoc, segment.endDoc));
+            if (segmentFiles.size() >= MAX_SEGMENTS) {
+                merge();
+            }
+        } catch (IOException e) {
+            logger.warning("写出索引增量段失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 把基础快照和紧接其后的增量段按文件归并成新的基础快照。各文件的词已排序，
+     * 同一个词的倒排表按文件顺序（即文档号顺序）拼接，内存中同时只有每个文件的当前词。
+     */
+    private void merge() throws IOException {
+        long start = System.currentTimeMillis();
+        int end = baseEndDoc;
+        int merged = 0;
+        while (merged < segmentFiles.size() && segmentFiles.get(merged).firstDoc == end) {
+            end = segmentFiles.get(merged++).endDoc;
+        }
+        if (merged == 0) {
+            return;
+        }
+        List<SnapshotReader> readers = new ArrayList<>();
+        try {
+            if (Files.exists(snapshotFile)) {
+                readers.add(new SnapshotReader(snapshotFile));
+            }
+            for (SegmentFile segment : segmentFiles.subList(0, merged)) {
+                readers.add(new SnapshotReader(segment.path));
+            }
+            int endDoc = end;
+            writeAtomically(snapshotFile, out -> mergeInto(readers, endDoc, out));
+        } finally {
+            for (SnapshotReader reader : readers) {
+                reader.close();
+            }
+        }
+        List<SegmentFile> done = segmentFiles.subList(0, merged);
+        for (SegmentFile segment : done) {
+            Files.deleteIfExists(segment.path);
+        }
+        done.clear();
+        baseEndDoc = end;
+        logger.info("索引快照已合并: " + end + " 条消息, 耗时 " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static void mergeInto(List<SnapshotReader> readers, int endDoc, DataOutputStream out) throws IOException {
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeInt(0);
+        out.writeInt(endDoc);
+        for (SnapshotReader reader : readers) {
+            for (int doc = reader.firstDoc; doc < reader.endDoc; doc++) {
+                out.writeLong(reader.in.readLong());
+                out.writeInt(reader.in.readInt());
+            }
+        }
+        List<String> keys = new ArrayList<>();
+        for (SnapshotReader reader : readers) {
+            reader.in.readInt();
+            int count = reader.in.readInt();
+            for (int i = 0; i < count; i++) {
+                keys.add(reader.in.readUTF());
+            }
+        }
+        out.writeInt(0);
+        out.writeInt(keys.size());
+        for (String key : keys) {
+            out.writeUTF(key);
+        }
+        // 按 (当前词, 文件顺序) 排序的多路归并
+        PriorityQueue<Integer> heads = new PriorityQueue<>(Comparator
+                .comparing((Integer i) -> readers.get(i).term).thenComparing(i -> i));
+        for (int i = 0; i < readers.size(); i++) {
+            if (readers.get(i).nextTerm()) {
+                heads.add(i);
+            }
+        }
+        while (!heads.isEmpty()) {
+            int first = heads.poll();
+            String term = readers.get(first).term;
+            PostingList list = readers.get(first).list;
+            List<Integer> advanced = new ArrayList<>();
+            advanced.add(first);
+            while (!heads.isEmpty() && readers.get(heads.peek()).term.equals(term)) {
+                int i = heads.poll();
+                if (list == readers.get(first).list) {
+                    PostingList combined = new PostingList();
+                    combined.addAll(list);
+                    list = combined;
+                }
+                list.addAll(readers.get(i).list);
+                advanced.add(i);
+            }
+            out.writeBoolean(true);
+            out.writeUTF(term);
+            list.writeTo(out);
+            for (int i : advanced) {
+                if (readers.get(i).nextTerm()) {
+                    heads.add(i);
+                }
+            }
+        }
+        out.writeBoolean(false);
+    }
+
+    // 格式：条数, 每个会话的 (会话键, 过期文档号下界)。文档号取自 docs.dat 的顺序，索引重建后仍然有效
+    private void loadExpired() {
+        if (!Files.exists(expiredFile)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(expiredFile)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                int floor = in.readInt();
+                Integer id = conversationIds.get(key);
+                if (id != null) {
+                    // docs.dat 被截短时不能让下界盖住之后新写入的文档
+                    expiredBefore[id] = Math.min(floor, docCount);
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("读取过期索引失败，已过期的消息可能出现在搜索结果中: " + e.getMessage());
+        }
+    }
+
+    private void writeExpired() {
+        expiredDirty.set(false);
+        Map<String, Integer> floors = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            for (int id = 0; id < conversations.size(); id++) {
+                if (expiredBefore[id] > 0) {
+                    floors.put(conversations.get(id), expiredBefore[id]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            writeAtomically(expiredFile, out -> {
+                out.writeInt(floors.size());
+                for (Map.Entry<String, Integer> entry : floors.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue());
+                }
+            });
+        } catch (IOException e) {
+            logger.warning("写出过期索引失败: " + e.getMessage());
+        }
+    }
+
+    @FunctionalInterface
+    private interface SnapshotWork {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private static void writeAtomically(Path file, SnapshotWork work) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            work.writeTo(out);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 等后台写完已切出的段，再把剩余的增量写成最后一段。
+     */
+    @Override
+    public void close() throws IOException {
+        snapshotWriter.shutdown();
+        try {
+            snapshotWriter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (expiredDirty.get()) {
+            writeExpired();
+        }
+        lock.writeLock().lock();
+        try {
+            if (docCount > deltaFirstDoc) {
+                persist(cutSegment());
+            }
+            docs.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
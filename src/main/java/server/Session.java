@@ -0,0 +1,202 @@
+package server;
+
+import common.JsonUtil;
+import common.Message;
+import common.Message.MessageType;
+import common.RetransmitBuffer;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+
+/**
+ * 一个登录会话。会话比 TCP 连接活得久：连接断开后会话进入分离状态，
+ * 期间发给该用户的消息继续进入重传缓冲区，客户端带着令牌重连即可从最后确认的序号续传。
+ * 再也无法投递的帧（分离期间被挤出缓冲区的、会话关闭后才发出的）交给 orphaned 处理。
+ * <p>
+ * 写套接字可能阻塞，因此不在会话锁内进行：在会话锁内分配序号、取得当前连接，释放后再写。
+ * 写出另由 writeLock 串行，保证同一连接上的帧按序号顺序出现；锁的顺序总是先 writeLock 后会话锁，
+ * 写阻塞时 accept、detach、retire 等只需会话锁的操作不受影响。
+ */
+public class Session {
+    static final int ACK_INTERVAL = 32;
+
+    private final String token;
+    private final String username;
+    private final RetransmitBuffer outbound;
+    private final Consumer<String> orphaned;
+    private final Object writeLock = new Object();
+    private PrintWriter out;
+    private long lastReceivedSeq;
+    private long lastAckSent;
+    private ScheduledFuture<?> expiry;
+    private boolean closed;
+
+    Session(String token, String username, int bufferSize, Consumer<String> orphaned) {
+        this.token = token;
+        this.username = username;
+        this.orphaned = orphaned;
+        // 连接在线时被挤出的帧已经写出过，只有分离期间挤出的需要另行保存
+        this.outbound = new RetransmitBuffer(bufferSize, json -> {
+            if (out == null) {
+                orphaned.accept(json);
+            }
+        });
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * 发送一条需要可靠投递的消息；分离状态下只缓存不写出。
+     */
+    public void send(Message message) {
+        synchronized (writeLock) {
+            String json;
+            PrintWriter target;
+            synchronized (this) {
+                if (closed) {
+                    orphaned.accept(JsonUtil.toJson(message));
+                    return;
+                }
+                json = outbound.stamp(message, lastReceivedSeq);
+                lastAckSent = lastReceivedSeq;
+                target = out;
+            }
+            // 写出前连接若已分离，帧已在重传缓冲区中，写到旧连接上无害
+            if (target != null) {
+                target.println(json);
+            }
+        }
+    }
+
+    /**
+     * 发送不分配序号的控制帧。
+     */
+    public void sendControl(Message message) {
+        String json = JsonUtil.toJson(message);
+        synchronized (writeLock) {
+            PrintWriter target;
+            synchronized (this) {
+                target = out;
+            }
+            if (target != null) {
+                target.println(json);
+            }
+        }
+    }
+
+    /**
+     * 记录收到的客户端帧，返回 false 表示这是重传的重复帧应忽略。
+     */
+    public boolean accept(Message message) {
+        long ack;
+        synchronized (this) {
+            if (message.getAck() > 0) {
+                outbound.acknowledge(message.getAck());
+            }
+            long seq = message.getSeq();
+            if (seq == 0) {
+                return true;
+            }
+            if (seq <= lastReceivedSeq) {
+                return false;
+            }
+            lastReceivedSeq = seq;
+            if (lastReceivedSeq - lastAckSent < ACK_INTERVAL) {
+                return true;
+            }
+            ack = lastReceivedSeq;
+            lastAckSent = ack;
+        }
+        Message frame = new Message(null, username, "", MessageType.ACK);
+        frame.setAck(ack);
+        sendControl(frame);
+        return true;
+    }
+
+    synchronized void attach(PrintWriter out) {
+        this.out = out;
+        cancelExpiry();
+    }
+
+    /**
+     * 用新连接接管会话：先回复 RESUME（携带服务端已收到的序号），再重发客户端未确认的帧。
+     * 持有 writeLock 期间其他帧不会插到重发的帧之前。
+     */
+    boolean resume(PrintWriter out, long clientAck) {
+        synchronized (writeLock) {
+            Message reply = new Message(null, username, token, MessageType.RESUME);
+            List<String> frames;
+            synchronized (this) {
+                if (closed || !outbound.canResumeFrom(clientAck)) {
+                    return false;
+                }
+                outbound.acknowledge(clientAck);
+                this.out = out;
+                cancelExpiry();
+                reply.setAck(lastReceivedSeq);
+                frames = outbound.framesAfter(clientAck);
+                lastAckSent = lastReceivedSeq;
+            }
+            out.println(JsonUtil.toJson(reply));
+            for (String frame : frames) {
+                out.println(frame);
+            }
+            return true;
+        }
+    }
+
+    synchronized boolean detach(PrintWriter out, ScheduledFuture<?> expiry) {
+        if (this.out != out) {
+            // 已被新连接接管
+            expiry.cancel(false);
+            return false;
+        }
+        this.out = null;
+        cancelExpiry();
+        this.expiry = expiry;
+        return true;
+    }
+
+    /**
+     * 宽限期到期时调用：仍处于分离状态则关闭会话并返回未确认的帧，否则返回 null。
+     */
+    synchronized List<String> expireIfDetached() {
+        if (closed || out != null) {
+            return null;
+        }
+        return retire();
+    }
+
+    /**
+     * 关闭会话并返回已发出但客户端尚未确认的帧；已经关闭过则返回空列表，保证这些帧只被取走一次。
+     */
+    synchronized List<String> retire() {
+        if (closed) {
+            return Collections.emptyList();
+        }
+        close();
+        return outbound.framesAfter(0);
+    }
+
+    synchronized void close() {
+        closed = true;
+        out = null;
+        cancelExpiry();
+    }
+
+    private void cancelExpiry() {
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+    }
+}
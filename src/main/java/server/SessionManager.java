@@ -0,0 +1,114 @@
+package server;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+public class SessionManager {
+    private static final Logger logger = Logger.getLogger(SessionManager.class.getName());
+
+    private final Map<String, Session> sessionsByToken = new ConcurrentHashMap<>();
+    private final Map<String, Session> sessionsByUser = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService expiryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-expiry");
+        t.setDaemon(true);
+        return t;
+    });
+    private final long graceMillis;
+    private final int bufferSize;
+    private final Consumer<String> orphaned;
+
+    /**
+     * @param orphaned 会话失效时客户端尚未确认的帧逐个交给它，由服务器转存为离线消息
+     */
+    public SessionManager(long graceMillis, int bufferSize, Consumer<String> orphaned) {
+        this.graceMillis = graceMillis;
+        this.bufferSize = bufferSize;
+        this.orphaned = orphaned;
+    }
+
+    /**
+     * 完整登录时创建新会话，同一用户的旧会话随之失效，其未确认的帧转存后随离线消息送达新会话。
+     */
+    public Session create(String username, PrintWriter out) {
+        Session session = new Session(UUID.randomUUID().toString(), username, bufferSize, orphaned);
+        session.attach(out);
+        Session previous = sessionsByUser.put(username, session);
+        if (previous != null) {
+            sessionsByToken.remove(previous.getToken());
+            rescue(previous.retire());
+        }
+        sessionsByToken.put(session.getToken(), session);
+        return session;
+    }
+
+    /**
+     * 尝试用令牌恢复会话，令牌无效或缓冲区已无法覆盖客户端的确认点时返回 null。
+     */
+    public Session resume(String token, long clientAck, PrintWriter out) {
+        Session session = token == null ? null : sessionsByToken.get(token);
+        if (session == null) {
+            return null;
+        }
+        if (!session.resume(out, clientAck)) {
+            logger.info("会话无法续传，需要重新登录: " + session.getUsername());
+            List<String> unacknowledged = session.retire();
+            remove(session);
+            rescue(unacknowledged);
+            return null;
+        }
+        return session;
+    }
+
+    public Session find(String token) {
+        return token == null ? null : sessionsByToken.get(token);
+    }
+
+    /**
+     * 连接断开后保留会话一段宽限期，到期仍未恢复则执行 onExpire。
+     */
+    public void detach(Session session, PrintWriter out, Consumer<Session> onExpire) {
+        ScheduledFuture<?> expiry = expiryScheduler.schedule(() -> {
+            List<String> unacknowledged = session.expireIfDetached();
+            if (unacknowledged != null) {
+                remove(session);
+                rescue(unacknowledged);
+                onExpire.accept(session);
+            }
+        }, graceMillis, TimeUnit.MILLISECONDS);
+        session.detach(out, expiry);
+    }
+
+    /**
+     * 客户端主动登出：会话立即失效，未确认的帧和过期时一样转存为离线消息。
+     */
+    public void logout(Session session) {
+        List<String> unacknowledged = session.retire();
+        remove(session);
+        rescue(unacknowledged);
+    }
+
+    private void rescue(List<String> frames) {
+        for (String frame : frames) {
+            orphaned.accept(frame);
+        }
+    }
+
+    public boolean remove(Session session) {
+        session.close();
+        sessionsByUser.remove(session.getUsername(), session);
+        return sessionsByToken.remove(session.getToken(), session);
+    }
+
+    public void shutdown() {
+        expiryScheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,127 @@
+package server;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 后台整理线程，按 retention.compactIntervalMinutes 周期执行：
+ * <ol>
+ *   <li>检查各会话，有过期或超出条数的记录时把裁剪任务交给该会话的投递条带，与在线写入串行</li>
+ *   <li>删除过期的离线消息</li>
+ *   <li>删掉 latest.log 开头过期的行</li>
+ *   <li>由存储后端回收自身文件中的冗余数据</li>
+ * </ol>
+ * 线程优先级最低，所有文件读写按 retention.compactBytesPerSecond 限速。
+ * 停止时不中断线程（中断会关闭正在使用的 FileChannel），只在步骤之间检查停止标志。
+ */
+public final class StorageCompactor implements Runnable {
+    private static final Logger logger = Logger.getLogger(StorageCompactor.class.getName());
+
+    private final ChatServer server;
+    private final MessageHistory messageHistory;
+    private final ChatStorage storage;
+    private final DeliveryEngine deliveryEngine;
+    private final RetentionPolicy policy;
+    private final TokenBucket ioBudget;
+    private final long intervalMillis;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public StorageCompactor(ChatServer server, MessageHistory messageHistory, ChatStorage storage,
+                            DeliveryEngine deliveryEngine, RetentionPolicy policy,
+                            long bytesPerSecond, long intervalMillis) {
+        this.server = server;
+        this.messageHistory = messageHistory;
+        this.storage = storage;
+        this.deliveryEngine = deliveryEngine;
+        this.policy = policy;
+        // 桶容量为一秒的量，避免空闲后一次突发太多 IO
+        this.ioBudget = new TokenBucket(bytesPerSecond, bytesPerSecond);
+        this.intervalMillis = intervalMillis;
+        this.thread = new Thread(this, "storage-compactor");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            synchronized (this) {
+                try {
+                    wait(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (!running) {
+                return;
+            }
+            try {
+                compactOnce();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "存储整理失败", e);
+            }
+        }
+    }
+
+    void compactOnce() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+
+        Set<String> keys = new HashSet<>(storage.conversationKeys());
+        int trimmed = 0;
+        int skipped = 0;
+        for (String key : keys) {
+            if (!running) {
+                return;
+            }
+            long[] summary = storage.conversationSummary(key);
+            boolean expire;
+            if (summary != null) {
+                // 存储记有最早时间和条数时不读会话内容
+                expire = policy.mayExpire(summary[0], summary[1], now);
+                skipped += expire ? 0 : 1;
+            } else {
+                // 按一个满会话约 25 KB 估算读取量
+                ioBudget.acquire(MessageHistory.MAX_HISTORY_PER_USER * 256);
+                expire = messageHistory.needsRetention(key, policy, now);
+            }
+            if (expire && deliveryEngine.submit(key, () -> messageHistory.applyRetention(key, policy, now))) {
+                trimmed++;
+            }
+        }
+
+        int expired = server.expireOfflineMessages(policy.offlineCutoff(now), ioBudget);
+        long logBytes = running ? messageHistory.compactLog(policy.historyCutoff(now), ioBudget) : 0;
+        if (running) {
+            storage.compact(policy, ioBudget);
+        }
+        logger.info(String.format("存储整理完成: 裁剪 %d 个会话 (%d 个无需读取), 删除 %d 条过期离线消息, 日志回收 %d KB, 耗时 %d ms",
+                trimmed, skipped, expired, logBytes / 1024, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    /**
+     * 通知线程停止并等待当前步骤结束，最多等待 timeoutMillis。
+     */
+    public void stop(long timeoutMillis) {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
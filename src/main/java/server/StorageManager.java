@@ -1,19 +1,29 @@
 package server;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import common.JsonUtil;
 import common.Message;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 public class StorageManager {
 
     private static final String BASE_DIR = "user_data";
     private static final Map<String, Set<String>> userFilesCache = new ConcurrentHashMap<>();
+    // 导出与整理互斥，避免整理替换文件时丢掉刚追加的内容
+    private static final Object HISTORY_FILE_LOCK = new Object();
+    // 整理导出文件时每次读写和限速的块大小
+    private static final int COMPACT_CHUNK = 64 * 1024;
 
     public static void initialize() {
         File baseDir = new File(BASE_DIR);
@@ -33,16 +43,185 @@ public class StorageManager {
         }
     }
 
-    public static void saveChatHistory(String username, List<Message> chatHistory) throws IOException {
-        String json = JsonUtil.toJson(chatHistory);
+    /**
+     * 每个用户只导出一次；已导出时不调用 chatHistory，避免每条消息都去收集该用户的全部会话。
+     * 只向已存在的导出文件追加，不会新建文件。
+     */
+    public static void saveChatHistory(String username, Supplier<List<Message>> chatHistory) throws IOException {
         File chatHistoryFile = new File(BASE_DIR, username + "_history.dat");
         if (isFileAlreadySaved(username, chatHistoryFile.getName())) {
             return;
         }
-        Files.write(chatHistoryFile.toPath(), json.getBytes(), StandardOpenOption.APPEND);
+        if (!chatHistoryFile.exists()) {
+            // 没有导出文件的用户同样记为已处理，不必每条消息都收集一遍历史
+            updateUserFilesCache(username, chatHistoryFile.getName());
+            return;
+        }
+        String json = JsonUtil.toJson(chatHistory.get());
+        synchronized (HISTORY_FILE_LOCK) {
+            Files.write(chatHistoryFile.toPath(), json.getBytes(), StandardOpenOption.APPEND);
+        }
         updateUserFilesCache(username, chatHistoryFile.getName());
     }
 
+    /**
+     * 读取 _history.dat。文件是多次追加的 JSON 数组首尾相接，用宽松模式逐个读取。
+     */
+    public static List<Message> readChatHistory(Path file) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(file)) {
+            readChatHistory(in, messages::add);
+        }
+        return messages;
+    }
+
+    private interface MessageVisitor {
+        void visit(Message message) throws IOException;
+    }
+
+    private static void readChatHistory(InputStream in, MessageVisitor visitor) throws IOException {
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)))) {
+            reader.setLenient(true);
+            while (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Message message = JsonUtil.fromJson(reader, Message.class);
+                    if (message != null) {
+                        visitor.visit(message);
+                    }
+                }
+                reader.endArray();
+            }
+        }
+    }
+
+    /**
+     * 重写 _history.dat：合并多次导出中重复的消息（保留第一次出现的），只保留满足 keep 的记录，写成一个 JSON 数组。
+     * 文件逐块流式读写，每块按 ioBudget 限速，内存中只保留已见过的消息号。
+     * 先扫描一遍统计可删除的记录，没有时不重写；读取在锁外进行，读取后文件又被追加时放弃本次整理。
+     *
+     * @return 删除的记录数
+     */
+    public static int compactChatHistory(Path file, Predicate<Message> keep, TokenBucket ioBudget)
+            throws IOException, InterruptedException {
+        long size = Files.size(file);
+        int[] counts = new int[2];
+        try {
+            Set<String> seen = new HashSet<>();
+            try (InputStream in = new BudgetedInputStream(Files.newInputStream(file), size, ioBudget)) {
+                readChatHistory(in, message -> {
+                    counts[0]++;
+                    if (isRetained(message, keep, seen)) {
+                        counts[1]++;
+                    }
+                });
+            }
+            if (counts[1] == counts[0]) {
+                return 0;
+            }
+
+            seen.clear();
+            Path temp = file.resolveSibling(file.getFileName() + ".compact");
+            try {
+                try (InputStream in = new BudgetedInputStream(Files.newInputStream(file), size, ioBudget);
+                     Writer out = new BufferedWriter(new OutputStreamWriter(
+                             new BudgetedOutputStream(Files.newOutputStream(temp), ioBudget), StandardCharsets.UTF_8),
+                             COMPACT_CHUNK)) {
+                    out.write('[');
+                    boolean[] first = {true};
+                    readChatHistory(in, message -> {
+                        if (isRetained(message, keep, seen)) {
+                            if (!first[0]) {
+                                out.write(',');
+                            }
+                            first[0] = false;
+                            out.write(JsonUtil.toJson(message));
+                        }
+                    });
+                    out.write(']');
+                }
+                synchronized (HISTORY_FILE_LOCK) {
+                    if (Files.size(file) != size) {
+                        return 0;
+                    }
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException("整理历史导出文件时被中断: " + file);
+        }
+        return counts[0] - counts[1];
+    }
+
+    private static boolean isRetained(Message message, Predicate<Message> keep, Set<String> seen) {
+        return keep.test(message) && (message.getId() == null || seen.add(message.getId()));
+    }
+
+    /**
+     * 最多读取 limit 字节（文件此后追加的内容不读），每次读取按实际字节数向 ioBudget 取令牌。
+     */
+    private static final class BudgetedInputStream extends FilterInputStream {
+        private final TokenBucket ioBudget;
+        private long remaining;
+
+        BudgetedInputStream(InputStream in, long limit, TokenBucket ioBudget) {
+            super(new BufferedInputStream(in, COMPACT_CHUNK));
+            this.remaining = limit;
+            this.ioBudget = ioBudget;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+                charge(ioBudget, read);
+            }
+            return read;
+        }
+    }
+
+    private static final class BudgetedOutputStream extends FilterOutputStream {
+        private final TokenBucket ioBudget;
+
+        BudgetedOutputStream(OutputStream out, TokenBucket ioBudget) {
+            super(out);
+            this.ioBudget = ioBudget;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            charge(ioBudget, 1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            charge(ioBudget, len);
+            out.write(b, off, len);
+        }
+    }
+
+    private static void charge(TokenBucket ioBudget, int bytes) throws InterruptedIOException {
+        try {
+            ioBudget.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("限速等待时被中断");
+        }
+    }
+
     private static boolean isFileAlreadySaved(String username, String fileName) {
         return userFilesCache.getOrDefault(username, Collections.emptySet()).contains(fileName);
     }
@@ -0,0 +1,49 @@
+package server;
+
+/**
+ * 令牌桶：以固定速率补充令牌，最多积累 capacity 个，允许短时突发。
+ */
+public class TokenBucket {
+    private final double capacity;
+    private final double refillPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double perSecond, double capacity) {
+        this.capacity = capacity;
+        this.refillPerNano = perSecond / 1_000_000_000d;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    /**
+     * 阻塞直到取得 permits 个令牌。一次可以取超过 capacity 的量，欠下的令牌由之后的等待补上，
+     * 适合按字节数限制后台 IO。
+     */
+    public void acquire(double permits) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= permits;
+            waitNanos = tokens < 0 ? (long) (-tokens / refillPerNano) : 0;
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerNano);
+        lastRefill = now;
+    }
+}
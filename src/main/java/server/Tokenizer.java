@@ -0,0 +1,120 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 搜索分词：中日韩文字按单字和相邻二字切分，其他语言按字母数字组成的词切分，统一转小写。
+ */
+public final class Tokenizer {
+
+    private Tokenizer() {
+    }
+
+    public static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) {
+            return tokens;
+        }
+        StringBuilder word = new StringBuilder();
+        int previousCjk = -1;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+
+            if (isCjk(codePoint)) {
+                flushWord(word, tokens);
+                String single = new String(Character.toChars(codePoint));
+                tokens.add(single);
+                if (previousCjk >= 0) {
+                    tokens.add(new String(Character.toChars(previousCjk)) + single);
+                }
+                previousCjk = codePoint;
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                previousCjk = -1;
+                word.appendCodePoint(Character.toLowerCase(codePoint));
+            } else {
+                previousCjk = -1;
+                flushWord(word, tokens);
+            }
+        }
+        flushWord(word, tokens);
+        return tokens;
+    }
+
+    /**
+     * 查询时只需要最能缩小范围的词：CJK 连续两字以上时用二字词，单字才用单字。
+     */
+    public static Set<String> tokenizeQuery(String query) {
+        Set<String> all = tokenize(query);
+        Set<String> selective = new LinkedHashSet<>();
+        for (String token : all) {
+            if (token.codePointCount(0, token.length()) == 1 && isCjk(token.codePointAt(0))
+                    && hasBigramContaining(all, token)) {
+                continue;
+            }
+            selective.add(token);
+        }
+        return selective;
+    }
+
+    /**
+     * 查询中需要在原文里逐段核对的片段：每段连续的中日韩文字和每个词，小写。
+     * 各段分别核对，词序不同（"world hello"）也能匹配。
+     */
+    public static List<String> querySegments(String query) {
+        List<String> segments = new ArrayList<>();
+        StringBuilder cjk = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < query.length(); ) {
+            int codePoint = query.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (isCjk(codePoint)) {
+                flushSegment(word, segments);
+                cjk.appendCodePoint(codePoint);
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                flushSegment(cjk, segments);
+                word.appendCodePoint(Character.toLowerCase(codePoint));
+            } else {
+                flushSegment(cjk, segments);
+                flushSegment(word, segments);
+            }
+        }
+        flushSegment(cjk, segments);
+        flushSegment(word, segments);
+        return segments;
+    }
+
+    private static void flushSegment(StringBuilder segment, List<String> segments) {
+        if (segment.length() > 0) {
+            segments.add(segment.toString());
+            segment.setLength(0);
+        }
+    }
+
+    private static boolean hasBigramContaining(Set<String> tokens, String single) {
+        for (String token : tokens) {
+            if (token.length() > single.length() && isCjk(token.codePointAt(0)) && token.contains(single)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void flushWord(StringBuilder word, Set<String> tokens) {
+        if (word.length() > 0) {
+            tokens.add(word.toString());
+            word.setLength(0);
+        }
+    }
+
+    static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
@@ -0,0 +1,76 @@
+package server;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * 读取 JFR 录制文件，按阶段输出 chat.MessageTrace 事件的延迟分布。
+ * 用法: java server.TraceAnalyzer recording.jfr
+ * 录制示例: java -XX:StartFlightRecording=filename=chat.jfr,settings=profile server.ChatServer
+ */
+public class TraceAnalyzer {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("用法: TraceAnalyzer 录制文件.jfr");
+            System.exit(1);
+        }
+        Map<String, long[]> samples = new LinkedHashMap<>();
+        Map<String, Integer> types = new TreeMap<>();
+        List<long[]> rows = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(Paths.get(args[0]))) {
+            if (!MessageTraceEvent.NAME.equals(event.getEventType().getName())) {
+                continue;
+            }
+            long[] row = new long[MessageTraceEvent.STAGES.length + 1];
+            for (int i = 0; i < MessageTraceEvent.STAGES.length; i++) {
+                row[i] = event.getLong(MessageTraceEvent.STAGES[i]);
+            }
+            row[MessageTraceEvent.STAGES.length] = event.getDuration().toNanos();
+            rows.add(row);
+            types.merge(String.valueOf(event.getString("messageType")), 1, Integer::sum);
+        }
+        if (rows.isEmpty()) {
+            System.out.println("录制中没有 " + MessageTraceEvent.NAME + " 事件");
+            return;
+        }
+
+        for (int column = 0; column <= MessageTraceEvent.STAGES.length; column++) {
+            long[] values = new long[rows.size()];
+            for (int i = 0; i < rows.size(); i++) {
+                values[i] = rows.get(i)[column];
+            }
+            Arrays.sort(values);
+            samples.put(column < MessageTraceEvent.STAGES.length ? MessageTraceEvent.STAGES[column] : "total", values);
+        }
+
+        System.out.printf("共 %d 条追踪, 类型分布 %s%n", rows.size(), types);
+        System.out.printf("%-8s %10s %10s %10s %10s %10s %7s%n", "阶段", "平均(us)", "p50(us)", "p90(us)", "p99(us)", "最大(us)", "占比");
+        double total = mean(samples.get("total"));
+        for (Map.Entry<String, long[]> entry : samples.entrySet()) {
+            long[] values = entry.getValue();
+            double mean = mean(values);
+            System.out.printf("%-8s %10.1f %10.1f %10.1f %10.1f %10.1f %6.1f%%%n", entry.getKey(),
+                    mean / 1000, percentile(values, 50) / 1000.0, percentile(values, 90) / 1000.0,
+                    percentile(values, 99) / 1000.0, values[values.length - 1] / 1000.0,
+                    total == 0 ? 0 : mean * 100 / total);
+        }
+    }
+
+    private static double mean(long[] sorted) {
+        double sum = 0;
+        for (long value : sorted) {
+            sum += value;
+        }
+        return sum / sorted.length;
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
@@ -0,0 +1,33 @@
+package server;
+
+import common.Message;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 单个用户的持久化状态：好友列表和待投递的离线消息。
+ */
+public class UserData {
+    private final Set<String> friends;
+    private final List<Message> offlineMessages;
+
+    public UserData() {
+        this(new LinkedHashSet<>(), new ArrayList<>());
+    }
+
+    public UserData(Set<String> friends, List<Message> offlineMessages) {
+        this.friends = friends;
+        this.offlineMessages = offlineMessages;
+    }
+
+    public Set<String> getFriends() {
+        return friends;
+    }
+
+    public List<Message> getOfflineMessages() {
+        return offlineMessages;
+    }
+}
@@ -0,0 +1,91 @@
+package server;
+
+import common.Message;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * 读写 &lt;用户名&gt;.dat。写入总是使用新的二进制格式；读取时兼容旧的 Java 序列化格式，
+ * 未迁移的文件也能正常加载。
+ */
+public final class UserDataFile {
+    private static final int JAVA_SERIALIZATION_MAGIC = 0xACED;
+
+    private UserDataFile() {
+    }
+
+    public static Path pathFor(String username) {
+        return Paths.get(username + ".dat");
+    }
+
+    public static UserData read(Path file) throws IOException {
+        if (!Files.exists(file) || Files.size(file) == 0) {
+            return new UserData();
+        }
+        if (isLegacy(file)) {
+            return readLegacy(file);
+        }
+        try (UserRecordReader reader = new UserRecordReader(Files.newInputStream(file), Files.size(file))) {
+            return reader.readAll();
+        }
+    }
+
+    /**
+     * 先写临时文件再原子替换，写到一半崩溃不会损坏原文件。
+     * 每次写入使用各自的临时文件，同时写同一用户的线程不会互相覆盖或移走对方的临时文件。
+     */
+    public static void write(Path file, UserData userData) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (UserRecordWriter writer = new UserRecordWriter(Files.newOutputStream(tmp))) {
+                writer.write(userData);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public static boolean isLegacy(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            return in.readUnsignedShort() == JAVA_SERIALIZATION_MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    static UserData readLegacy(Path file) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(Files.newInputStream(file))) {
+            Object object = ois.readObject();
+            if (!(object instanceof Map)) {
+                throw new IOException("不是旧版用户数据: " + file);
+            }
+            Map<?, ?> userData = (Map<?, ?>) object;
+            if (!userData.containsKey("friends") && !userData.containsKey("offlineMessages")) {
+                throw new IOException("不是旧版用户数据: " + file);
+            }
+            UserData result = new UserData();
+            if (userData.get("friends") instanceof Collection) {
+                for (Object friend : (Collection<?>) userData.get("friends")) {
+                    result.getFriends().add(String.valueOf(friend));
+                }
+            }
+            if (userData.get("offlineMessages") instanceof Collection) {
+                for (Object message : (Collection<?>) userData.get("offlineMessages")) {
+                    if (message instanceof Message) {
+                        result.getOfflineMessages().add((Message) message);
+                    }
+                }
+            }
+            return result;
+        } catch (ClassNotFoundException e) {
+            throw new IOException("旧版用户数据无法解析: " + file, e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * 一次性迁移工具：把目录下旧的 Java 序列化格式的用户 .dat 文件并行转换为新的二进制格式，
+ * 原文件保留为 .dat.bak。
+ * <p>
+ * 用法: java server.UserDataMigrator [目录，默认当前目录] [线程数，默认 CPU 核数]
+ */
+public class UserDataMigrator {
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(args.length > 0 ? args[0] : ".");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        List<Path> candidates = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> p.getFileName().toString().endsWith(".dat"))
+                    .filter(p -> !p.getFileName().toString().equals("message_history.dat"))
+                    .forEach(candidates::add);
+        }
+
+        AtomicInteger migrated = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        long start = System.nanoTime();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (Path file : candidates) {
+            futures.add(executor.submit(() -> {
+                try {
+                    if (migrate(file)) {
+                        migrated.incrementAndGet();
+                    } else {
+                        skipped.incrementAndGet();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failed.incrementAndGet();
+                    System.err.println("迁移失败: " + file + ", " + e.getMessage());
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("迁移完成: 成功 %d, 跳过 %d, 失败 %d, 耗时 %d ms%n",
+                migrated.get(), skipped.get(), failed.get(), elapsedMillis);
+    }
+
+    /**
+     * 返回 false 表示文件已是新格式或为空，无需迁移。
+     */
+    static boolean migrate(Path file) throws IOException {
+        if (Files.size(file) == 0 || !UserDataFile.isLegacy(file)) {
+            return false;
+        }
+        UserData userData = UserDataFile.readLegacy(file);
+        Files.copy(file, file.resolveSibling(file.getFileName() + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+        UserDataFile.write(file, userData);
+        return true;
+    }
+}
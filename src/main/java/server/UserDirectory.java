@@ -0,0 +1,148 @@
+package server;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * 全部注册用户的前缀索引，用于查找用户和输入补全。
+ * 每个用户建两个检索键：小写用户名，以及名字含汉字时的拼音首字母（"张三" → "zs"）。
+ * 两类检索键各自排序后放在平行数组里，查询是二分查找加至多 limit 步的顺序扫描。
+ * 注册是低频操作，写入时重建数组，查询不加锁。
+ */
+public class UserDirectory {
+    // GB2312 一级汉字按拼音排序，各声母在区位码中的起点；没有 i、u、v 开头的读音
+    private static final int[] INITIAL_BOUNDARIES = {1601, 1637, 1833, 2078, 2274, 2302, 2433, 2594, 2787, 3106,
+            3212, 3472, 3635, 3722, 3730, 3858, 4027, 4086, 4390, 4558, 4684, 4925, 5249, 5590};
+    private static final char[] INITIALS = "abcdefghjklmnopqrstwxyz".toCharArray();
+    private static final Charset GB2312 = Charset.forName("GB2312");
+
+    /**
+     * 排好序的 (检索键, 用户名) 平行数组。
+     */
+    private static final class Index {
+        final String[] keys;
+        final String[] users;
+
+        Index(List<String[]> entries) {
+            entries.sort(Comparator.<String[], String>comparing(e -> e[0]).thenComparing(e -> e[1]));
+            keys = new String[entries.size()];
+            users = new String[entries.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = entries.get(i)[0];
+                users[i] = entries.get(i)[1];
+            }
+        }
+
+        void collect(String prefix, int limit, List<String> result) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid].compareTo(prefix) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int i = low; i < keys.length && result.size() < limit && keys[i].startsWith(prefix); i++) {
+                if (!result.contains(users[i])) {
+                    result.add(users[i]);
+                }
+            }
+        }
+    }
+
+    private final List<String[]> nameEntries = new ArrayList<>();
+    private final List<String[]> initialEntries = new ArrayList<>();
+    private final Set<String> registered = new HashSet<>();
+    private volatile Index names = new Index(new ArrayList<>());
+    private volatile Index initials = new Index(new ArrayList<>());
+
+    public synchronized void addAll(Collection<String> usernames) {
+        boolean changed = false;
+        for (String username : usernames) {
+            if (username == null || username.isEmpty() || !registered.add(username)) {
+                continue;
+            }
+            String lower = username.toLowerCase(Locale.ROOT);
+            nameEntries.add(new String[]{lower, username});
+            String initial = initialsOf(lower);
+            if (initial != null) {
+                initialEntries.add(new String[]{initial, username});
+            }
+            changed = true;
+        }
+        if (changed) {
+            names = new Index(new ArrayList<>(nameEntries));
+            initials = new Index(new ArrayList<>(initialEntries));
+        }
+    }
+
+    public void add(String username) {
+        synchronized (this) {
+            if (registered.contains(username)) {
+                return;
+            }
+        }
+        addAll(Collections.singletonList(username));
+    }
+
+    public synchronized int size() {
+        return registered.size();
+    }
+
+    /**
+     * 返回前缀匹配的前 limit 个用户：先按用户名匹配，不足时再按拼音首字母补充。
+     * 同一类匹配内按字典序，较短的（更接近完整匹配的）名字排在前面。
+     */
+    public List<String> search(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        if (prefix == null || limit <= 0) {
+            return result;
+        }
+        String normalized = prefix.trim().toLowerCase(Locale.ROOT);
+        if (normalized.isEmpty()) {
+            return result;
+        }
+        names.collect(normalized, limit, result);
+        initials.collect(normalized, limit, result);
+        return result;
+    }
+
+    /**
+     * 汉字换成拼音首字母，其他字符原样保留；不含可识别汉字时返回 null。
+     * 只覆盖 GB2312 一级汉字（常用字），生僻字保留原字。
+     */
+    static String initialsOf(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        boolean converted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            char initial = c >= 0x4E00 && c <= 0x9FFF ? initialOf(c) : 0;
+            if (initial != 0) {
+                sb.append(initial);
+                converted = true;
+            } else {
+                sb.append(c);
+            }
+        }
+        return converted ? sb.toString() : null;
+    }
+
+    private static char initialOf(char c) {
+        byte[] bytes = String.valueOf(c).getBytes(GB2312);
+        if (bytes.length != 2) {
+            return 0;
+        }
+        int code = ((bytes[0] & 0xFF) - 160) * 100 + ((bytes[1] & 0xFF) - 160);
+        if (code < INITIAL_BOUNDARIES[0] || code >= INITIAL_BOUNDARIES[INITIAL_BOUNDARIES.length - 1]) {
+            return 0;
+        }
+        for (int i = INITIALS.length - 1; i >= 0; i--) {
+            if (code >= INITIAL_BOUNDARIES[i]) {
+                return INITIALS[i];
+            }
+        }
+        return 0;
+    }
+}
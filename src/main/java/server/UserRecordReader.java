@@ -0,0 +1,154 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * 用户数据文件的流式读取器，格式见 {@link UserRecordWriter}。
+ * 每条记录都会校验 CRC，缺少结尾记录视为文件损坏。
+ * 长度字段在分配缓冲区之前先检查上限和文件剩余字节数，损坏的长度只会报错，不会申请巨大的数组。
+ */
+public class UserRecordReader implements Closeable {
+    // 单条记录负载的上限，远大于正常的好友名或离线消息
+    static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final DataInputStream in;
+    // 文件中尚未读取的字节数，不知道文件大小时为 Long.MAX_VALUE
+    private long remaining;
+    private final int version;
+    private final CRC32 crc = new CRC32();
+    private byte type = -1;
+    private DataInputStream payload;
+    private boolean finished;
+
+    public UserRecordReader(InputStream in) throws IOException {
+        this(in, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param size 输入的总字节数，用来在读取前检查记录长度
+     */
+    public UserRecordReader(InputStream in, long size) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.remaining = size - UserRecordWriter.MAGIC.length - 1;
+        byte[] magic = new byte[UserRecordWriter.MAGIC.length];
+        this.in.readFully(magic);
+        if (!Arrays.equals(magic, UserRecordWriter.MAGIC)) {
+            throw new IOException("不是用户数据文件");
+        }
+        this.version = this.in.readUnsignedByte();
+        if (version > UserRecordWriter.VERSION) {
+            throw new IOException("不支持的用户数据版本: " + version);
+        }
+    }
+
+    /**
+     * 前进到下一条记录，读到结尾记录时返回 false。
+     */
+    public boolean next() throws IOException {
+        if (finished) {
+            return false;
+        }
+        byte recordType;
+        byte[] bytes;
+        try {
+            recordType = in.readByte();
+            int length = in.readInt();
+            remaining -= 5;
+            // 负载之后还有 4 字节 CRC
+            if (length < 0 || length > MAX_RECORD_SIZE || length > remaining - 4) {
+                throw new IOException("记录长度无效: " + length);
+            }
+            remaining -= length + 4;
+            bytes = new byte[length];
+            in.readFully(bytes);
+            crc.reset();
+            crc.update(recordType);
+            crc.update(bytes);
+            if (in.readInt() != (int) crc.getValue()) {
+                throw new IOException("用户数据校验失败");
+            }
+        } catch (EOFException e) {
+            throw new IOException("用户数据文件被截断", e);
+        }
+        if (recordType == UserRecordWriter.RECORD_END) {
+            finished = true;
+            return false;
+        }
+        type = recordType;
+        payload = new DataInputStream(new ByteArrayInputStream(bytes));
+        return true;
+    }
+
+    public boolean isFriend() {
+        return type == UserRecordWriter.RECORD_FRIEND;
+    }
+
+    public boolean isOfflineMessage() {
+        return type == UserRecordWriter.RECORD_OFFLINE_MESSAGE;
+    }
+
+    public String readFriend() throws IOException {
+        return readString(payload, payload.available());
+    }
+
+    public Message readOfflineMessage() throws IOException {
+        String id = readString(payload, payload.available());
+        String from = readString(payload, payload.available());
+        String to = readString(payload, payload.available());
+        String content = readString(payload, payload.available());
+        String typeName = readString(payload, payload.available());
+        long timestamp = payload.readLong();
+
+        Message message = new Message(id, from, to, content, typeName == null ? null : MessageType.valueOf(typeName));
+        message.setTimestamp(timestamp);
+        return message;
+    }
+
+    public UserData readAll() throws IOException {
+        UserData userData = new UserData();
+        while (next()) {
+            if (isFriend()) {
+                userData.getFriends().add(readFriend());
+            } else if (isOfflineMessage()) {
+                userData.getOfflineMessages().add(readOfflineMessage());
+            }
+            // 未知类型的记录是新版本加入的，跳过即可
+        }
+        return userData;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return readString(in, MAX_RECORD_SIZE);
+    }
+
+    /**
+     * @param maxLength 长度字段允许的最大值，超过时视为数据损坏
+     */
+    static String readString(DataInputStream in, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > maxLength) {
+            throw new IOException("字符串长度无效: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
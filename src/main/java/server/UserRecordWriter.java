@@ -0,0 +1,97 @@
+package server;
+
+import common.Message;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * 用户数据文件的流式写入器。
+ * <pre>
+ * 文件头: "UDAT"(4 字节) + 版本(1 字节)
+ * 记录:   类型(1 字节) + 负载长度(int) + 负载 + CRC32(int，覆盖类型和负载)
+ * 结尾:   END 记录，用来识别被截断的文件
+ * </pre>
+ */
+public class UserRecordWriter implements Closeable {
+    static final byte[] MAGIC = {'U', 'D', 'A', 'T'};
+    static final int VERSION = 1;
+
+    static final byte RECORD_END = 0;
+    static final byte RECORD_FRIEND = 1;
+    static final byte RECORD_OFFLINE_MESSAGE = 2;
+
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream payload = new DataOutputStream(payloadBytes);
+    private final CRC32 crc = new CRC32();
+    private boolean closed;
+
+    public UserRecordWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.write(MAGIC);
+        this.out.writeByte(VERSION);
+    }
+
+    public void writeFriend(String friend) throws IOException {
+        writeString(payload, friend);
+        writeRecord(RECORD_FRIEND);
+    }
+
+    public void writeOfflineMessage(Message message) throws IOException {
+        writeString(payload, message.getId());
+        writeString(payload, message.getFrom());
+        writeString(payload, message.getTo());
+        writeString(payload, message.getContent());
+        // 按名称保存类型，枚举调整顺序不影响旧文件
+        writeString(payload, message.getType() == null ? null : message.getType().name());
+        payload.writeLong(message.getTimestamp());
+        writeRecord(RECORD_OFFLINE_MESSAGE);
+    }
+
+    public void write(UserData userData) throws IOException {
+        for (String friend : userData.getFriends()) {
+            writeFriend(friend);
+        }
+        for (Message message : userData.getOfflineMessages()) {
+            writeOfflineMessage(message);
+        }
+    }
+
+    private void writeRecord(byte type) throws IOException {
+        payload.flush();
+        crc.reset();
+        crc.update(type);
+        crc.update(payloadBytes.toByteArray());
+        out.writeByte(type);
+        out.writeInt(payloadBytes.size());
+        payloadBytes.writeTo(out);
+        out.writeInt((int) crc.getValue());
+        payloadBytes.reset();
+    }
+
+    // 长度为 -1 表示 null；不用 writeUTF，避免 64KB 的长度限制
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeRecord(RECORD_END);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 启动预热：把所有已持久化用户的好友关系和离线队列并行装入内存。
+ * 每个用户只加载一次；预热尚未轮到的用户提前登录时，由登录线程当场加载（插队），
+ * 正在加载中的则等待其完成。
+ */
+public class UserStateLoader {
+    private static final Logger logger = Logger.getLogger(UserStateLoader.class.getName());
+
+    private final ChatStorage storage;
+    private final Loader loader;
+    private final Map<String, CompletableFuture<Void>> states = new ConcurrentHashMap<>();
+
+    interface Loader {
+        void load(String username);
+    }
+
+    public UserStateLoader(ChatStorage storage, Loader loader) {
+        this.storage = storage;
+        this.loader = loader;
+    }
+
+    /**
+     * 确保用户状态已装入内存，必要时在当前线程加载。
+     */
+    public void ensureLoaded(String username) {
+        if (username == null) {
+            return;
+        }
+        CompletableFuture<Void> existing = states.get(username);
+        if (existing == null) {
+            CompletableFuture<Void> mine = new CompletableFuture<>();
+            existing = states.putIfAbsent(username, mine);
+            if (existing == null) {
+                runLoad(username, mine);
+                return;
+            }
+        }
+        try {
+            existing.join();
+        } catch (CompletionException e) {
+            // 加载失败已在 runLoad 里记录，这里按空状态继续
+        }
+    }
+
+    private void runLoad(String username, CompletableFuture<Void> future) {
+        try {
+            loader.load(username);
+            future.complete(null);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "加载用户状态失败: " + username, e);
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 用 threads 个线程并行加载全部用户，阻塞到完成为止。
+     */
+    public void warmUp(int threads) {
+        long start = System.nanoTime();
+        List<String> users;
+        try {
+            users = new ArrayList<>(storage.listUsers());
+        } catch (IOException e) {
+            logger.warning("读取用户列表失败，跳过预热: " + e.getMessage());
+            return;
+        }
+        logger.info("开始预热用户状态: " + users.size() + " 个用户, " + threads + " 个线程");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "warmup");
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger done = new AtomicInteger();
+        int step = Math.max(1, users.size() / 10);
+        try {
+            List<Future<?>> futures = new ArrayList<>(users.size());
+            for (String username : users) {
+                futures.add(pool.submit(() -> {
+                    ensureLoaded(username);
+                    int finished = done.incrementAndGet();
+                    if (finished % step == 0 && finished < users.size()) {
+                        logger.info(String.format("预热进度: %d/%d", finished, users.size()));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logger.log(Level.WARNING, "预热任务失败", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warning("预热被中断");
+        } finally {
+            pool.shutdownNow();
+        }
+        logger.info(String.format("预热完成: %d 个用户, 耗时 %d ms",
+                done.get(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+}
@@ -0,0 +1,65 @@
+package server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 给套接字写入加上期限。SO_TIMEOUT 只约束读，对端不读时写会一直阻塞；
+ * 这里每次写入前在时间轮上登记一个超时，写入超过期限仍未返回就调用 onExpire（通常是关闭套接字）。
+ * 写入很快返回时超时在下一个刻度之前就被取消，时间轮直接丢弃。期限不大于 0 时不检查。
+ */
+class WriteDeadlineOutputStream extends FilterOutputStream {
+    private final HashedTimingWheel timingWheel;
+    private final long deadlineMillis;
+    private final Runnable onExpire;
+
+    WriteDeadlineOutputStream(OutputStream out, HashedTimingWheel timingWheel, long deadlineMillis, Runnable onExpire) {
+        super(out);
+        this.timingWheel = timingWheel;
+        this.deadlineMillis = deadlineMillis;
+        this.onExpire = onExpire;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        HashedTimingWheel.Timeout deadline = arm();
+        try {
+            out.write(b);
+        } finally {
+            disarm(deadline);
+        }
+    }
+
+    // FilterOutputStream 默认逐字节写，这里整块交给底层流
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        HashedTimingWheel.Timeout deadline = arm();
+        try {
+            out.write(b, off, len);
+        } finally {
+            disarm(deadline);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        HashedTimingWheel.Timeout deadline = arm();
+        try {
+            out.flush();
+        } finally {
+            disarm(deadline);
+        }
+    }
+
+    private HashedTimingWheel.Timeout arm() {
+        return deadlineMillis > 0 ? timingWheel.newTimeout(onExpire, deadlineMillis, TimeUnit.MILLISECONDS) : null;
+    }
+
+    private static void disarm(HashedTimingWheel.Timeout deadline) {
+        if (deadline != null) {
+            deadline.cancel();
+        }
+    }
+}
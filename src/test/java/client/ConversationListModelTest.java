@@ -0,0 +1,77 @@
+package client;
+
+import org.junit.jupiter.api.Test;
+
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ConversationListModelTest {
+
+    @Test
+    void keepsOnlyTheNewestLines() {
+        ConversationListModel model = new ConversationListModel(3);
+        model.addAll(List.of("a", "b"));
+        model.addAll(List.of("c", "d"));
+
+        assertEquals(3, model.getSize());
+        assertEquals("b", model.getElementAt(0));
+        assertEquals("d", model.getElementAt(2));
+    }
+
+    @Test
+    void batchLargerThanCapacityKeepsItsTail() {
+        ConversationListModel model = new ConversationListModel(2);
+        model.add("old");
+        model.addAll(List.of("1", "2", "3", "4"));
+
+        assertEquals(List.of("3", "4"), contents(model));
+    }
+
+    @Test
+    void firesOneRemovalAndOneAdditionPerBatch() {
+        ConversationListModel model = new ConversationListModel(4);
+        model.addAll(List.of("a", "b", "c"));
+        List<String> events = new ArrayList<>();
+        model.addListDataListener(new ListDataListener() {
+            @Override
+            public void intervalAdded(ListDataEvent e) {
+                events.add("+" + e.getIndex0() + ".." + e.getIndex1());
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent e) {
+                events.add("-" + e.getIndex0() + ".." + e.getIndex1());
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent e) {
+                events.add("~");
+            }
+        });
+
+        model.addAll(List.of("d", "e", "f"));
+
+        assertEquals(List.of("-0..1", "+1..3"), events);
+        assertEquals(List.of("c", "d", "e", "f"), contents(model));
+    }
+
+    @Test
+    void rejectsOutOfRangeIndex() {
+        ConversationListModel model = new ConversationListModel(2);
+        model.add("a");
+        assertThrows(IndexOutOfBoundsException.class, () -> model.getElementAt(1));
+    }
+
+    private static List<String> contents(ConversationListModel model) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < model.getSize(); i++) {
+            lines.add(model.getElementAt(i));
+        }
+        return lines;
+    }
+}
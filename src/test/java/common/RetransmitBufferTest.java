@@ -0,0 +1,94 @@
+package common;
+
+import common.Message.MessageType;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetransmitBufferTest {
+
+    private static Message chat(String content) {
+        return new Message("alice", "bob", content, MessageType.CHAT);
+    }
+
+    private static List<String> contents(List<String> frames) {
+        List<String> result = new ArrayList<>();
+        for (String frame : frames) {
+            result.add(JsonUtil.fromJson(frame, Message.class).getContent());
+        }
+        return result;
+    }
+
+    @Test
+    void stampsConsecutiveSequenceNumbersOnCopies() {
+        RetransmitBuffer buffer = new RetransmitBuffer(8);
+        Message original = chat("hi");
+
+        Message first = JsonUtil.fromJson(buffer.stamp(original, 5), Message.class);
+        Message second = JsonUtil.fromJson(buffer.stamp(chat("again"), 6), Message.class);
+
+        assertEquals(1, first.getSeq());
+        assertEquals(5, first.getAck());
+        assertEquals(2, second.getSeq());
+        assertEquals(0, original.getSeq());
+    }
+
+    @Test
+    void cumulativeAckDropsAcknowledgedFrames() {
+        RetransmitBuffer buffer = new RetransmitBuffer(8);
+        for (int i = 1; i <= 4; i++) {
+            buffer.stamp(chat("m" + i), 0);
+        }
+
+        buffer.acknowledge(2);
+
+        assertEquals(2, buffer.size());
+        assertEquals(List.of("m3", "m4"), contents(buffer.framesAfter(0)));
+    }
+
+    @Test
+    void staleOrFutureAcksAreIgnored() {
+        RetransmitBuffer buffer = new RetransmitBuffer(8);
+        buffer.stamp(chat("m1"), 0);
+        buffer.stamp(chat("m2"), 0);
+        buffer.acknowledge(1);
+
+        buffer.acknowledge(0);
+        buffer.acknowledge(99);
+
+        assertEquals(List.of("m2"), contents(buffer.framesAfter(0)));
+    }
+
+    @Test
+    void resumesOnlyWhileEveryFrameAfterTheAckIsRetained() {
+        List<String> evicted = new ArrayList<>();
+        RetransmitBuffer buffer = new RetransmitBuffer(2, evicted::add);
+        for (int i = 1; i <= 4; i++) {
+            buffer.stamp(chat("m" + i), 0);
+        }
+
+        assertEquals(List.of("m1", "m2"), contents(evicted));
+        assertTrue(buffer.canResumeFrom(2));
+        assertTrue(buffer.canResumeFrom(3));
+        assertFalse(buffer.canResumeFrom(1));
+        assertTrue(buffer.canResumeFrom(4));
+        assertFalse(buffer.canResumeFrom(5));
+        assertEquals(List.of("m4"), contents(buffer.framesAfter(3)));
+    }
+
+    @Test
+    void emptyBufferResumesFromTheLastSentFrame() {
+        RetransmitBuffer buffer = new RetransmitBuffer(4);
+        buffer.stamp(chat("m1"), 0);
+        buffer.acknowledge(1);
+
+        assertTrue(buffer.canResumeFrom(1));
+        assertFalse(buffer.canResumeFrom(0));
+        assertTrue(buffer.framesAfter(1).isEmpty());
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversationCacheTest {
+    private static final int SEGMENTS = 16;
+
+    private MemoryChatStorage storage;
+    private List<String> keys;
+    private long messageBytes;
+
+    @BeforeEach
+    void setUp() {
+        storage = new MemoryChatStorage();
+        // 淘汰按段进行，挑出落在同一段的会话
+        keys = new ArrayList<>();
+        for (int i = 0; keys.size() < 4; i++) {
+            String key = "u" + i + ":v";
+            if (Math.floorMod(key.hashCode(), SEGMENTS) == 0) {
+                keys.add(key);
+                storage.saveConversation(key, Collections.singletonList(message(key, 0)));
+            }
+        }
+        messageBytes = ConversationCache.estimate(message(keys.get(0), 0));
+    }
+
+    private static Message message(String key, int n) {
+        Message message = new Message(key + "#" + n, "u", "v", "0123456789", MessageType.CHAT);
+        message.setTimestamp(n);
+        return message;
+    }
+
+    // 每段能放下 entries 条消息
+    private ConversationCache cacheHolding(int entries) {
+        return new ConversationCache(storage, SEGMENTS * (entries * messageBytes + messageBytes / 2));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedWhenOverBudget() {
+        ConversationCache cache = cacheHolding(2);
+        cache.get(keys.get(0));
+        cache.get(keys.get(1));
+        // 访问 0 后，1 成为最久未用
+        cache.get(keys.get(0));
+        cache.get(keys.get(2));
+
+        assertEquals(Set.of(keys.get(0), keys.get(2)), cache.cachedKeys());
+        assertTrue(cache.getStats().contains("淘汰 1"));
+    }
+
+    @Test
+    void readDoesNotPopulateCache() {
+        ConversationCache cache = cacheHolding(2);
+        cache.get(keys.get(0));
+        cache.get(keys.get(1));
+
+        assertEquals(1, cache.read(keys.get(2)).size());
+        assertFalse(cache.contains(keys.get(2)));
+        assertEquals(Set.of(keys.get(0), keys.get(1)), cache.cachedKeys());
+    }
+
+    @Test
+    void appendGrowthEvictsOthersButKeepsTheAppendedConversation() {
+        ConversationCache cache = cacheHolding(2);
+        String hot = keys.get(0);
+        cache.get(keys.get(1));
+        cache.get(hot);
+
+        List<Message> snapshot = cache.appendAll(hot, Arrays.asList(message(hot, 1), message(hot, 2)), 10);
+
+        assertEquals(3, snapshot.size());
+        // 超出预算的会话本身刚被写入，不淘汰
+        assertEquals(Set.of(hot), cache.cachedKeys());
+    }
+
+    @Test
+    void appendTrimsToMax() {
+        ConversationCache cache = cacheHolding(4);
+        String key = keys.get(0);
+        for (int i = 1; i <= 5; i++) {
+            cache.append(key, message(key, i), 3);
+        }
+
+        List<Message> messages = cache.read(key);
+        assertEquals(Arrays.asList(key + "#3", key + "#4", key + "#5"),
+                Arrays.asList(messages.get(0).getId(), messages.get(1).getId(), messages.get(2).getId()));
+    }
+
+    @Test
+    void replaceOnlyTouchesCachedConversations() {
+        ConversationCache cache = cacheHolding(2);
+        String cached = keys.get(0);
+        String uncached = keys.get(1);
+        cache.get(cached);
+
+        cache.replace(cached, Collections.emptyList());
+        cache.replace(uncached, Collections.emptyList());
+
+        assertTrue(cache.read(cached).isEmpty());
+        assertFalse(cache.contains(uncached));
+        assertEquals(1, cache.read(uncached).size());
+    }
+}
@@ -0,0 +1,142 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConversationStoreTest {
+    @TempDir
+    Path dir;
+
+    private ConversationStore open() throws IOException {
+        return new ConversationStore(dir.resolve("h.seg"), dir.resolve("h.idx"));
+    }
+
+    private static List<Message> messages(String from, String to, int count, long firstTimestamp) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Message message = new Message(from, to, from + "-" + i, MessageType.CHAT);
+            message.setTimestamp(firstTimestamp + i);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        List<String> contents = new ArrayList<>();
+        for (Message message : messages) {
+            contents.add(message.getContent());
+        }
+        return contents;
+    }
+
+    @Test
+    void latestSnapshotWinsAfterReopen() throws IOException {
+        try (ConversationStore store = open()) {
+            store.save("alice:bob", messages("alice", "bob", 2, 100));
+            store.save("alice:bob", messages("bob", "alice", 3, 200));
+        }
+        try (ConversationStore store = open()) {
+            assertEquals(List.of("bob-0", "bob-1", "bob-2"), contents(store.load("alice:bob")));
+            assertArrayEquals(new long[]{200, 3}, store.summary("alice:bob"));
+            assertNull(store.summary("carol:dave"));
+        }
+    }
+
+    @Test
+    void saveAllIndexesEveryParticipant() throws IOException {
+        Map<String, List<Message>> batch = new LinkedHashMap<>();
+        batch.put("alice:bob", messages("alice", "bob", 1, 1));
+        batch.put("alice:carol", messages("carol", "alice", 2, 1));
+        try (ConversationStore store = open()) {
+            store.saveAll(batch);
+            assertEquals(Set.of("alice:bob", "alice:carol"), store.keysOf("alice"));
+            assertEquals(Set.of("alice:carol"), store.keysOf("carol"));
+        }
+        try (ConversationStore store = open()) {
+            assertEquals(Set.of("alice:bob"), store.keysOf("bob"));
+            assertTrue(store.keysOf("nobody").isEmpty());
+            assertEquals(2, store.load("alice:carol").size());
+        }
+    }
+
+    @Test
+    void tornIndexTailIsIgnored() throws IOException {
+        try (ConversationStore store = open()) {
+            store.save("alice:bob", messages("alice", "bob", 1, 1));
+        }
+        try (OutputStream out = Files.newOutputStream(dir.resolve("h.idx"), StandardOpenOption.APPEND)) {
+            // 崩溃时只写了半条目录记录
+            out.write(new byte[]{0, 9, 'c', 'a', 'r'});
+        }
+        try (ConversationStore store = open()) {
+            assertEquals(Set.of("alice:bob"), store.keys());
+            store.save("carol:dave", messages("carol", "dave", 1, 1));
+        }
+    }
+
+    @Test
+    void compactionKeepsOnlyLatestSnapshots() throws IOException, InterruptedException {
+        try (ConversationStore store = open()) {
+            for (int round = 0; round < 40; round++) {
+                store.save("alice:bob", messages("alice", "bob", 300, round));
+            }
+            store.save("carol:dave", messages("carol", "dave", 5, 7));
+            long before = Files.size(dir.resolve("h.seg"));
+
+            long reclaimed = store.compact(new TokenBucket(Double.MAX_VALUE, Double.MAX_VALUE));
+
+            assertTrue(reclaimed > 0);
+            assertEquals(before - reclaimed, Files.size(dir.resolve("h.seg")));
+            assertEquals(300, store.load("alice:bob").size());
+            store.save("carol:dave", messages("dave", "carol", 1, 9));
+        }
+        try (ConversationStore store = open()) {
+            assertEquals(List.of("alice-0"), contents(store.load("alice:bob")).subList(0, 1));
+            assertEquals(List.of("dave-0"), contents(store.load("carol:dave")));
+            assertArrayEquals(new long[]{39, 300}, store.summary("alice:bob"));
+        }
+    }
+
+    @Test
+    void unfinishedCompactionIsDiscardedOnOpen() throws IOException {
+        try (ConversationStore store = open()) {
+            store.save("alice:bob", messages("alice", "bob", 1, 1));
+        }
+        // 新数据文件尚未替换时崩溃：两个 .compact 文件都在
+        Files.write(dir.resolve("h.seg.compact"), new byte[]{1, 2, 3});
+        Files.write(dir.resolve("h.idx.compact"), new byte[]{4, 5, 6});
+        try (ConversationStore store = open()) {
+            assertEquals(1, store.load("alice:bob").size());
+        }
+        assertFalse(Files.exists(dir.resolve("h.seg.compact")));
+        assertFalse(Files.exists(dir.resolve("h.idx.compact")));
+    }
+
+    @Test
+    void secondOpenOfTheSameFilesFails() throws IOException {
+        try (ConversationStore store = open()) {
+            assertThrows(IOException.class, this::open);
+        }
+        open().close();
+    }
+}
@@ -0,0 +1,104 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeliveryEngineTest {
+
+    @Test
+    void tasksWithTheSameKeyRunInSubmissionOrder() throws InterruptedException {
+        DeliveryEngine engine = new DeliveryEngine(4, 16);
+        Map<String, List<Integer>> seen = new HashMap<>();
+        for (int k = 0; k < 10; k++) {
+            seen.put("k" + k, new ArrayList<>());
+        }
+        for (int i = 0; i < 200; i++) {
+            String key = "k" + (i % 10);
+            int value = i;
+            engine.submit(key, () -> seen.get(key).add(value));
+        }
+        engine.shutdown(5, TimeUnit.SECONDS);
+
+        for (int k = 0; k < 10; k++) {
+            List<Integer> values = seen.get("k" + k);
+            assertEquals(20, values.size());
+            for (int i = 1; i < values.size(); i++) {
+                assertTrue(values.get(i - 1) < values.get(i));
+            }
+        }
+    }
+
+    @Test
+    void stripeIsStableAndInRange() {
+        DeliveryEngine engine = new DeliveryEngine(3, 4);
+        try {
+            for (String key : new String[]{"alice:bob", "carol:dave", "", "🙂:x"}) {
+                int stripe = engine.stripeFor(key);
+                assertTrue(stripe >= 0 && stripe < engine.getStripeCount());
+                assertEquals(stripe, engine.stripeFor(key));
+            }
+        } finally {
+            engine.shutdown(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void failingTaskDoesNotStopTheStripe() throws InterruptedException {
+        DeliveryEngine engine = new DeliveryEngine(1, 4);
+        CountDownLatch ran = new CountDownLatch(1);
+        engine.submit("a", () -> {
+            throw new IllegalStateException("boom");
+        });
+        engine.submit("a", ran::countDown);
+
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        engine.shutdown(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void submitAfterShutdownIsRejected() {
+        DeliveryEngine engine = new DeliveryEngine(1, 4);
+        engine.shutdown(1, TimeUnit.SECONDS);
+
+        assertFalse(engine.submit("a", () -> { }));
+    }
+
+    @Test
+    void interruptedSubmitOnAFullQueueIsReported() throws InterruptedException {
+        DeliveryEngine engine = new DeliveryEngine(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        engine.submit("a", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        // 队列容量为 1：这一个入队，下一个会阻塞
+        assertTrue(engine.submit("a", () -> { }));
+
+        boolean[] accepted = {true};
+        Thread submitter = new Thread(() -> accepted[0] = engine.submit("a", () -> { }));
+        submitter.start();
+        Thread.sleep(100);
+        submitter.interrupt();
+        submitter.join(2000);
+
+        assertFalse(accepted[0]);
+        release.countDown();
+        engine.shutdown(1, TimeUnit.SECONDS);
+    }
+}
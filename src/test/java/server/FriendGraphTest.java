@@ -0,0 +1,95 @@
+package server;
+
+import common.FriendSuggestion;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FriendGraphTest {
+
+    private static List<String> names(List<FriendSuggestion> suggestions) {
+        List<String> names = new ArrayList<>();
+        for (FriendSuggestion suggestion : suggestions) {
+            names.add(suggestion.getUsername() + "=" + suggestion.getMutualCount());
+        }
+        return names;
+    }
+
+    @Test
+    void edgesAreUndirectedAndDeduplicated() {
+        FriendGraph graph = new FriendGraph();
+
+        assertTrue(graph.addEdge("alice", "bob"));
+        assertFalse(graph.addEdge("bob", "alice"));
+        assertFalse(graph.addEdge("alice", "alice"));
+        assertFalse(graph.addEdge("alice", null));
+    }
+
+    @Test
+    void mutualFriendsIsTheSortedIntersection() {
+        FriendGraph graph = new FriendGraph();
+        // 加边顺序打乱，id 顺序与用户名顺序不同
+        for (String friend : new String[]{"zoe", "carol", "mike", "dave"}) {
+            graph.addEdge("alice", friend);
+        }
+        for (String friend : new String[]{"dave", "erin", "zoe", "carol"}) {
+            graph.addEdge("bob", friend);
+        }
+
+        assertEquals(List.of("carol", "dave", "zoe"), graph.mutualFriends("alice", "bob"));
+        assertEquals(graph.mutualFriends("alice", "bob"), graph.mutualFriends("bob", "alice"));
+        assertTrue(graph.mutualFriends("alice", "nobody").isEmpty());
+        assertTrue(graph.mutualFriends("mike", "erin").isEmpty());
+    }
+
+    @Test
+    void suggestionsRankBySharedFriendsAndExcludeExistingFriends() {
+        FriendGraph graph = new FriendGraph();
+        graph.addEdge("alice", "bob");
+        graph.addEdge("alice", "carol");
+        graph.addEdge("bob", "dave");
+        graph.addEdge("carol", "dave");
+        graph.addEdge("carol", "erin");
+        graph.addEdge("bob", "carol");
+
+        assertEquals(List.of("dave=2", "erin=1"), names(graph.suggestions("alice", 10)));
+        assertEquals(List.of("dave=2"), names(graph.suggestions("alice", 1)));
+    }
+
+    @Test
+    void newEdgeInvalidatesCachedSuggestions() {
+        FriendGraph graph = new FriendGraph();
+        graph.addEdge("alice", "bob");
+        graph.addEdge("bob", "carol");
+        assertEquals(List.of("carol=1"), names(graph.suggestions("alice", 10)));
+
+        // carol 成为 alice 的好友后不再被推荐；bob 的新好友出现在 alice 的推荐里
+        graph.addEdge("alice", "carol");
+        graph.addEdge("bob", "dave");
+        assertEquals(List.of("dave=1"), names(graph.suggestions("alice", 10)));
+    }
+
+    @Test
+    void largeGraphsCountTheSameInParallel() {
+        FriendGraph graph = new FriendGraph();
+        // 二度遍历超过并行阈值
+        for (int i = 0; i < 100; i++) {
+            graph.addEdge("hub", "f" + i);
+            for (int j = 0; j < 60; j++) {
+                graph.addEdge("f" + i, "c" + j);
+            }
+        }
+
+        List<FriendSuggestion> suggestions = graph.suggestions("hub", 100);
+        assertEquals(50, suggestions.size());
+        for (FriendSuggestion suggestion : suggestions) {
+            assertEquals(100, suggestion.getMutualCount());
+        }
+        assertEquals("c0", suggestions.get(0).getUsername());
+    }
+}
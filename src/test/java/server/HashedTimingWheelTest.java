@@ -0,0 +1,113 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashedTimingWheelTest {
+    // 4 个槽、每槽 10ms，一圈 40ms
+    private final HashedTimingWheel wheel = new HashedTimingWheel(10, TimeUnit.MILLISECONDS, 4, Runnable::run);
+
+    @AfterEach
+    void stop() {
+        wheel.stop();
+    }
+
+    @Test
+    void neverFiresBeforeTheDeadline() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        long[] elapsedMillis = new long[1];
+
+        wheel.newTimeout(() -> {
+            elapsedMillis[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            fired.countDown();
+        }, 25, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(elapsedMillis[0] >= 25, "fired after " + elapsedMillis[0] + " ms");
+    }
+
+    @Test
+    void delaysLongerThanOneRevolutionWaitForTheirRound() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        long[] elapsedMillis = new long[1];
+
+        // 130ms 跨过三圈多，槽号与 10ms 的任务相同
+        wheel.newTimeout(() -> {
+            elapsedMillis[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            fired.countDown();
+        }, 130, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(elapsedMillis[0] >= 130, "fired after " + elapsedMillis[0] + " ms");
+    }
+
+    @Test
+    void firesInDeadlineOrderAcrossSlots() throws InterruptedException {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        for (int delay : new int[]{90, 10, 50}) {
+            wheel.newTimeout(() -> {
+                order.add(delay);
+                done.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(10, 50, 90), order);
+    }
+
+    @Test
+    void cancelledTimeoutsNeverRun() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch later = new CountDownLatch(1);
+        HashedTimingWheel.Timeout cancelled = wheel.newTimeout(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+        HashedTimingWheel.Timeout cancelledLater = wheel.newTimeout(runs::incrementAndGet, 60, TimeUnit.MILLISECONDS);
+        wheel.newTimeout(later::countDown, 100, TimeUnit.MILLISECONDS);
+
+        cancelled.cancel();
+        Thread.sleep(30);
+        // 已经进入槽里的任务取消后同样不会执行
+        cancelledLater.cancel();
+
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+        assertTrue(cancelled.isCancelled());
+    }
+
+    @Test
+    void failingExecutorDoesNotStopTheWheel() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        HashedTimingWheel rejecting = new HashedTimingWheel(10, TimeUnit.MILLISECONDS, 4, task -> {
+            if (task instanceof Marker) {
+                throw new IllegalStateException("rejected");
+            }
+            task.run();
+        });
+        try {
+            rejecting.newTimeout(new Marker(), 10, TimeUnit.MILLISECONDS);
+            rejecting.newTimeout(fired::countDown, 30, TimeUnit.MILLISECONDS);
+            assertTrue(fired.await(2, TimeUnit.SECONDS));
+        } finally {
+            rejecting.stop();
+        }
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    private static final class Marker implements Runnable {
+        @Override
+        public void run() {
+        }
+    }
+}
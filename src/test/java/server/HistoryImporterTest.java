@@ -0,0 +1,60 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryImporterTest {
+
+    private static HistoryImporter.Keyed keyed(String from, String to, String content, long timestamp) {
+        Message message = new Message(null, from, to, content, MessageType.CHAT);
+        message.setTimestamp(timestamp);
+        return HistoryImporter.withKeys(Collections.singletonList(message)).get(0);
+    }
+
+    @Test
+    void tailsReportOnlyNewMessages() {
+        HistoryImporter.ConversationTails tails = new HistoryImporter.ConversationTails(10);
+
+        assertTrue(tails.add(keyed("alice", "bob", "你好", 60_000)));
+        // 同一分钟、同样内容的同一来源第一次出现，键相同
+        assertFalse(tails.add(keyed("alice", "bob", "你好", 60_000)));
+        assertFalse(tails.add(keyed(null, "bob", "你好", 60_000)));
+        assertEquals(1, tails.size());
+    }
+
+    @Test
+    void loadSavesConversationsInBatches() throws IOException {
+        List<Integer> batchSizes = new ArrayList<>();
+        MemoryChatStorage storage = new MemoryChatStorage() {
+            @Override
+            public void saveConversations(Map<String, List<Message>> conversations) {
+                batchSizes.add(conversations.size());
+                for (Map.Entry<String, List<Message>> entry : conversations.entrySet()) {
+                    saveConversation(entry.getKey(), entry.getValue());
+                }
+            }
+        };
+        HistoryImporter.ConversationTails tails = new HistoryImporter.ConversationTails(10);
+        for (int i = 0; i < 300; i++) {
+            tails.add(keyed("u" + i, "hub", "消息" + i, 60_000));
+        }
+
+        int loaded = new HistoryImporter(ForkJoinPool.commonPool()).load(storage, tails);
+
+        assertEquals(300, loaded);
+        assertEquals(300, storage.conversationKeys().size());
+        assertEquals(List.of(256, 44), batchSizes);
+    }
+}
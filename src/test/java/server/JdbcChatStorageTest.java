@@ -0,0 +1,138 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JdbcChatStorageTest {
+    private JdbcChatStorage storage;
+
+    @BeforeEach
+    void open() throws IOException {
+        // 每个用例一个独立的内存库
+        storage = new JdbcChatStorage("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1", "sa", "", 2);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        storage.close();
+    }
+
+    private static List<Message> messages(String from, String to, int first, int count) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = first; i < first + count; i++) {
+            Message message = new Message("m" + i, from, to, "内容" + i, MessageType.CHAT);
+            message.setTimestamp(1000L + i);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        List<String> ids = new ArrayList<>();
+        for (Message message : messages) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    void loadKeepsStoredIdAndTimestamp() throws IOException {
+        storage.saveConversation("alice:bob", messages("alice", "bob", 0, 3));
+
+        List<Message> loaded = storage.loadConversation("alice:bob");
+        assertEquals(Arrays.asList("m0", "m1", "m2"), ids(loaded));
+        Message first = loaded.get(0);
+        assertEquals("alice", first.getFrom());
+        assertEquals("bob", first.getTo());
+        assertEquals("内容0", first.getContent());
+        assertEquals(MessageType.CHAT, first.getType());
+        assertEquals(1000L, first.getTimestamp());
+        assertTrue(storage.containsConversation("alice:bob"));
+        assertFalse(storage.containsConversation("alice:carol"));
+    }
+
+    @Test
+    void slidingWindowTrimsHeadAndAppendsTail() throws IOException {
+        storage.saveConversation("alice:bob", messages("alice", "bob", 0, 5));
+        // 挤掉开头两条，追加三条
+        storage.saveConversation("alice:bob", messages("alice", "bob", 2, 6));
+
+        assertEquals(Arrays.asList("m2", "m3", "m4", "m5", "m6", "m7"), ids(storage.loadConversation("alice:bob")));
+        assertArrayEquals(new long[]{1002L, 6}, storage.conversationSummary("alice:bob"));
+    }
+
+    @Test
+    void mismatchedHistoryIsRewritten() throws IOException {
+        storage.saveConversation("alice:bob", messages("alice", "bob", 0, 3));
+        storage.saveConversation("alice:bob", messages("alice", "bob", 10, 2));
+
+        assertEquals(Arrays.asList("m10", "m11"), ids(storage.loadConversation("alice:bob")));
+    }
+
+    @Test
+    void summaryOfMissingConversationIsNull() {
+        assertNull(storage.conversationSummary("nobody:else"));
+    }
+
+    @Test
+    void saveConversationsWritesEveryConversation() throws IOException {
+        Map<String, List<Message>> batch = new LinkedHashMap<>();
+        batch.put("alice:bob", messages("alice", "bob", 0, 2));
+        batch.put("bob:carol", messages("bob", "carol", 2, 2));
+        storage.saveConversations(batch);
+
+        assertEquals(Set.of("alice:bob", "bob:carol"), storage.conversationKeys());
+        assertEquals(Set.of("alice:bob"), storage.conversationKeys("alice"));
+        assertEquals(Set.of("alice:bob", "bob:carol"), storage.conversationKeys("bob"));
+        assertEquals(Set.of(), storage.conversationKeys("dave"));
+    }
+
+    @Test
+    void offlineMessagesAreReplaced() throws IOException {
+        storage.saveOfflineMessages("bob", messages("alice", "bob", 0, 3));
+        storage.saveOfflineMessages("bob", messages("alice", "bob", 3, 1));
+
+        List<Message> loaded = storage.loadOfflineMessages("bob");
+        assertEquals(Arrays.asList("m3"), ids(loaded));
+        assertEquals("bob", loaded.get(0).getTo());
+        assertEquals(1003L, loaded.get(0).getTimestamp());
+        assertTrue(storage.loadOfflineMessages("carol").isEmpty());
+    }
+
+    @Test
+    void friendsAndUsers() throws IOException {
+        storage.saveFriends("alice", new LinkedHashSet<>(Arrays.asList("bob", "carol")));
+        storage.saveFriends("alice", new LinkedHashSet<>(Arrays.asList("carol")));
+        storage.registerUser("alice");
+        storage.registerUser("alice");
+        storage.registerUser("bob");
+
+        assertEquals(Set.of("carol"), storage.loadFriends("alice"));
+        assertEquals(Set.of("alice", "bob"), storage.listUsers());
+    }
+
+    @Test
+    void badUrlIsReportedAsIOException() {
+        assertThrows(IOException.class, () -> new JdbcChatStorage("jdbc:unknown:x", "sa", "", 1));
+    }
+}
@@ -0,0 +1,104 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PostingListTest {
+
+    private static PostingList of(int... docs) {
+        PostingList list = new PostingList();
+        for (int doc : docs) {
+            list.add(doc);
+        }
+        return list;
+    }
+
+    // 从最新往旧逐个取出全部文档
+    private static List<Integer> descending(PostingList list) {
+        List<Integer> docs = new ArrayList<>();
+        PostingList.Cursor cursor = list.cursor();
+        int doc = cursor.retreat(Integer.MAX_VALUE);
+        while (doc >= 0) {
+            docs.add(doc);
+            doc = doc == 0 ? -1 : cursor.retreat(doc - 1);
+        }
+        return docs;
+    }
+
+    @Test
+    void encodesDeltasAsVarints() {
+        PostingList list = of(0, 1, 128, 128 + 16384);
+
+        // 0 和 1 各 1 字节，差值 127 需 1 字节，差值 16384 需 3 字节
+        assertEquals(6, list.byteSize());
+        assertEquals(List.of(16512, 128, 1, 0), descending(list));
+    }
+
+    @Test
+    void ignoresDocsThatAreNotIncreasing() {
+        PostingList list = of(5, 5, 3, 9);
+
+        assertEquals(2, list.size());
+        assertEquals(List.of(9, 5), descending(list));
+    }
+
+    @Test
+    void retreatSkipsWholeBlocks() {
+        PostingList list = new PostingList();
+        for (int doc = 0; doc < PostingList.SKIP_INTERVAL * 5; doc++) {
+            list.add(doc * 3);
+        }
+        PostingList.Cursor cursor = list.cursor();
+
+        assertEquals(1917, cursor.retreat(Integer.MAX_VALUE));
+        // 跨越多个块，落到块中间不大于目标的文档上
+        assertEquals(999, cursor.retreat(1000));
+        assertEquals(999, cursor.retreat(999));
+        assertEquals(384, cursor.retreat(385));
+        assertEquals(0, cursor.retreat(2));
+        assertEquals(-1, cursor.retreat(-1));
+    }
+
+    @Test
+    void retreatBelowTheFirstDocReturnsMinusOne() {
+        PostingList.Cursor cursor = of(10, 20).cursor();
+
+        assertEquals(-1, cursor.retreat(9));
+        assertEquals(-1, cursor.retreat(5));
+    }
+
+    @Test
+    void roundTripsAndRebuildsSkips() throws IOException {
+        PostingList list = new PostingList();
+        for (int doc = 7; doc < 100_000; doc += 37) {
+            list.add(doc);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        list.writeTo(new DataOutputStream(bytes));
+
+        PostingList read = PostingList.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(list.size(), read.size());
+        assertEquals(descending(list), descending(read));
+        assertEquals(49_994, read.cursor().retreat(50_010));
+    }
+
+    @Test
+    void addAllAppendsInOrder() {
+        PostingList list = of(1, 4);
+        list.addAll(of(2, 4, 300, 301));
+
+        assertEquals(List.of(301, 300, 4, 1), descending(list));
+        list.add(302);
+        assertEquals(302, list.cursor().retreat(Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,58 @@
+package server;
+
+import common.JsonUtil;
+import common.Message;
+import common.Message.MessageType;
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    private static RateLimiter limiter() {
+        Properties config = new Properties();
+        config.setProperty("rateLimit.user.default.perSecond", "0.001");
+        config.setProperty("rateLimit.user.default.burst", "1");
+        config.setProperty("rateLimit.user.CHAT.perSecond", "0.001");
+        config.setProperty("rateLimit.user.CHAT.burst", "2");
+        return new RateLimiter(config);
+    }
+
+    @Test
+    void budgetsArePerUserAndPerType() {
+        RateLimiter limiter = limiter();
+
+        assertTrue(limiter.tryAcquire("alice", MessageType.CHAT));
+        assertTrue(limiter.tryAcquire("alice", MessageType.CHAT));
+        assertFalse(limiter.tryAcquire("alice", MessageType.CHAT));
+
+        assertTrue(limiter.tryAcquire("alice", MessageType.SEARCH));
+        assertFalse(limiter.tryAcquire("alice", MessageType.SEARCH));
+        assertTrue(limiter.tryAcquire("bob", MessageType.CHAT));
+    }
+
+    @Test
+    void removeUserResetsTheBudget() {
+        RateLimiter limiter = limiter();
+        limiter.tryAcquire("alice", MessageType.SEARCH);
+        assertFalse(limiter.tryAcquire("alice", MessageType.SEARCH));
+
+        limiter.removeUser("alice");
+
+        assertTrue(limiter.tryAcquire("alice", MessageType.SEARCH));
+    }
+
+    @Test
+    void peekTypeIgnoresTypeTextInsideContent() {
+        String json = JsonUtil.toJson(new Message("alice", "bob", "\"type\":\"LOGIN\"", MessageType.CHAT));
+
+        assertEquals(MessageType.CHAT, RateLimiter.peekType(json));
+        assertNull(RateLimiter.peekType("{\"type\":\"NO_SUCH_TYPE\"}"));
+        assertNull(RateLimiter.peekType("{}"));
+    }
+}
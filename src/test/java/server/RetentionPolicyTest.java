@@ -0,0 +1,64 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetentionPolicyTest {
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long NOW = 100 * DAY;
+
+    private static List<Message> messages(long... timestamps) {
+        List<Message> messages = new ArrayList<>();
+        for (long timestamp : timestamps) {
+            Message message = new Message("alice", "bob", "m" + timestamp, MessageType.CHAT);
+            message.setTimestamp(timestamp);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    @Test
+    void dropsMessagesOlderThanMaxAge() {
+        RetentionPolicy policy = new RetentionPolicy(10 * DAY, 100, 0);
+        List<Message> kept = policy.applyToConversation(messages(NOW - 20 * DAY, NOW - 11 * DAY, NOW - DAY), NOW);
+
+        assertEquals(1, kept.size());
+        assertEquals(NOW - DAY, kept.get(0).getTimestamp());
+        assertTrue(policy.mayExpire(NOW - 20 * DAY, 3, NOW));
+    }
+
+    @Test
+    void keepsNewestMaxCount() {
+        RetentionPolicy policy = new RetentionPolicy(0, 2, 0);
+        List<Message> kept = policy.applyToConversation(messages(1, 2, 3), NOW);
+
+        assertEquals(List.of(2L, 3L), List.of(kept.get(0).getTimestamp(), kept.get(1).getTimestamp()));
+        assertTrue(policy.mayExpire(1, 3, NOW));
+    }
+
+    @Test
+    void nothingToDropReturnsNullAndSummaryAgrees() {
+        RetentionPolicy policy = new RetentionPolicy(10 * DAY, 5, 0);
+
+        assertNull(policy.applyToConversation(messages(NOW - DAY, NOW), NOW));
+        assertFalse(policy.mayExpire(NOW - DAY, 2, NOW));
+    }
+
+    @Test
+    void zeroAgeMeansNoTimeCutoff() {
+        RetentionPolicy policy = new RetentionPolicy(0, 5, 0);
+
+        assertEquals(Long.MIN_VALUE, policy.historyCutoff(NOW));
+        assertEquals(Long.MIN_VALUE, policy.offlineCutoff(NOW));
+    }
+}
@@ -0,0 +1,190 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTest {
+    @TempDir
+    Path dir;
+
+    private static Message chat(String from, String to, String content) {
+        return new Message(from, to, content, MessageType.CHAT);
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        List<String> contents = new ArrayList<>();
+        for (Message message : messages) {
+            contents.add(message.getContent());
+        }
+        return contents;
+    }
+
+    private int segmentFiles() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "postings-*.dat")) {
+            for (Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    void searchesOnlyTheRequestersConversationsNewestFirst() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, 1000)) {
+            index.add(chat("alice", "bob", "明天开会"));
+            index.add(chat("carol", "dave", "明天开会吗"));
+            index.add(chat("bob", "alice", "开会改到后天"));
+            index.add(chat("alice", "erin", "Meeting 开会 notes"));
+
+            assertEquals(List.of("Meeting 开会 notes", "开会改到后天", "明天开会"),
+                    contents(index.search("alice", "开会", 10)));
+            assertEquals(List.of("明天开会吗"), contents(index.search("dave", "明天开会", 10)));
+            assertEquals(List.of("Meeting 开会 notes", "开会改到后天"), contents(index.search("alice", "开会", 2)));
+            assertTrue(index.search("nobody", "开会", 10).isEmpty());
+        }
+    }
+
+    @Test
+    void smallUserScopeDrivesTheIntersection() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, 1000)) {
+            for (int i = 0; i < 500; i++) {
+                index.add(chat("u" + (i % 7), "v" + (i % 5), "hello number " + i));
+            }
+            index.add(chat("alice", "bob", "hello from alice"));
+            index.add(chat("alice", "carol", "nothing here"));
+            for (int i = 0; i < 200; i++) {
+                index.add(chat("u1", "v1", "hello again " + i));
+            }
+
+            assertEquals(List.of("hello from alice"), contents(index.search("alice", "hello", 10)));
+            assertEquals(List.of("nothing here"), contents(index.search("carol", "here nothing", 10)));
+        }
+    }
+
+    @Test
+    void bigramHitsAreVerifiedAgainstTheText() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, 1000)) {
+            index.add(chat("alice", "bob", "北京大学"));
+            index.add(chat("alice", "bob", "北京 和 京大"));
+
+            assertEquals(List.of("北京大学"), contents(index.search("alice", "北京大", 10)));
+        }
+    }
+
+    @Test
+    void reopensFromSegmentsAndMergesThemInTheBackground() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, 3)) {
+            for (int i = 0; i < 40; i++) {
+                index.add(chat("alice", i % 2 == 0 ? "bob" : "carol", "message " + i));
+            }
+        }
+        assertTrue(Files.exists(dir.resolve("postings.dat")));
+        assertTrue(segmentFiles() < 8, "segments: " + segmentFiles());
+
+        try (SearchIndex index = new SearchIndex(dir, 3)) {
+            assertEquals(40, index.getDocCount());
+            assertEquals(List.of("message 39", "message 37"), contents(index.search("carol", "message", 2)));
+            assertEquals(20, index.search("bob", "message", 100).size());
+            index.add(chat("bob", "carol", "message after reopen"));
+        }
+        try (SearchIndex index = new SearchIndex(dir, 3)) {
+            assertEquals(41, index.getDocCount());
+            assertEquals(List.of("message after reopen"), contents(index.search("bob", "reopen", 10)));
+        }
+    }
+
+    @Test
+    void corruptSnapshotIsRebuiltFromTheDocuments() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, 2)) {
+            for (int i = 0; i < 5; i++) {
+                index.add(chat("alice", "bob", "hello " + i));
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "postings*.dat")) {
+            for (Path file : files) {
+                Files.write(file, new byte[]{0, 0, 0, 2, 0, 0});
+            }
+        }
+
+        try (SearchIndex index = new SearchIndex(dir, 2)) {
+            assertEquals(5, index.getDocCount());
+            assertEquals(5, index.search("bob", "hello", 10).size());
+        }
+    }
+
+    @Test
+    void tornDocumentAtTheEndIsTruncated() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, 1000)) {
+            index.add(chat("alice", "bob", "first"));
+        }
+        long size = Files.size(dir.resolve("docs.dat"));
+        Files.write(dir.resolve("docs.dat"), new byte[]{0, 0, 0, 50, 1, 2}, StandardOpenOption.APPEND);
+
+        try (SearchIndex index = new SearchIndex(dir, 1000)) {
+            assertEquals(1, index.getDocCount());
+            index.add(chat("alice", "bob", "second"));
+            assertEquals(List.of("second"), contents(index.search("alice", "second", 10)));
+        }
+        assertTrue(Files.size(dir.resolve("docs.dat")) > size);
+    }
+
+    @Test
+    void expiredMessagesAreNoLongerFoundAfterRestart() throws IOException {
+        List<Message> sent = new ArrayList<>();
+        try (SearchIndex index = new SearchIndex(dir, 3)) {
+            for (int i = 0; i < 6; i++) {
+                Message message = chat("alice", "bob", "开会 " + i);
+                message.setTimestamp(1000 + i);
+                sent.add(message);
+                index.add(message);
+            }
+            index.add(chat("alice", "carol", "开会 其他会话"));
+
+            // 保留策略删掉了前四条
+            index.expire("alice:bob", sent.subList(4, 6));
+            assertEquals(List.of("开会 其他会话", "开会 5", "开会 4"), contents(index.search("alice", "开会", 10)));
+            assertEquals(List.of("开会 5", "开会 4"), contents(index.search("bob", "开会", 10)));
+        }
+        try (SearchIndex index = new SearchIndex(dir, 3)) {
+            assertEquals(List.of("开会 5", "开会 4"), contents(index.search("bob", "开会", 10)));
+            // 过期之后的新消息照常可查
+            index.add(chat("bob", "alice", "开会 6"));
+            assertEquals(List.of("开会 6", "开会 5", "开会 4"), contents(index.search("bob", "开会", 10)));
+            // 全部过期
+            index.expire("alice:bob", new ArrayList<>());
+            assertTrue(index.search("bob", "开会", 10).isEmpty());
+        }
+    }
+
+    @Test
+    void expireStopsAtTheFirstRetainedMessageWithEqualTimestamps() throws IOException {
+        try (SearchIndex index = new SearchIndex(dir, 1000)) {
+            List<Message> sent = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                Message message = chat("alice", "bob", "同一毫秒 " + i);
+                message.setTimestamp(5000);
+                sent.add(message);
+                index.add(message);
+            }
+            index.expire("alice:bob", sent.subList(1, 3));
+            assertEquals(List.of("同一毫秒 2", "同一毫秒 1"), contents(index.search("alice", "毫秒", 10)));
+            // 下界只会前移
+            index.expire("alice:bob", sent);
+            assertEquals(2, index.search("alice", "毫秒", 10).size());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package server;
+
+import common.JsonUtil;
+import common.Message;
+import common.Message.MessageType;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SessionManagerTest {
+    private final List<String> orphaned = new ArrayList<>();
+    private final SessionManager sessions = new SessionManager(60_000, 16, orphaned::add);
+
+    @AfterEach
+    void shutdown() {
+        sessions.shutdown();
+    }
+
+    private static Message chat(String content) {
+        return new Message("alice", "bob", content, MessageType.CHAT);
+    }
+
+    @Test
+    void logoutRescuesUnacknowledgedFrames() {
+        Session session = sessions.create("bob", new PrintWriter(new StringWriter()));
+        session.send(chat("m1"));
+        session.send(chat("m2"));
+        Message ack = new Message("bob", null, "", MessageType.ACK);
+        ack.setAck(1);
+        session.accept(ack);
+
+        sessions.logout(session);
+
+        assertEquals(1, orphaned.size());
+        assertEquals("m2", JsonUtil.fromJson(orphaned.get(0), Message.class).getContent());
+        assertNull(sessions.find(session.getToken()));
+    }
+
+    @Test
+    void newLoginRetiresThePreviousSession() {
+        Session first = sessions.create("bob", new PrintWriter(new StringWriter()));
+        first.send(chat("m1"));
+
+        Session second = sessions.create("bob", new PrintWriter(new StringWriter()));
+
+        assertEquals(1, orphaned.size());
+        assertNull(sessions.find(first.getToken()));
+        assertNotNull(sessions.find(second.getToken()));
+    }
+
+    @Test
+    void resumeReplaysFramesAfterTheClientAck() {
+        Session session = sessions.create("bob", new PrintWriter(new StringWriter()));
+        session.send(chat("m1"));
+        session.send(chat("m2"));
+        StringWriter replay = new StringWriter();
+
+        Session resumed = sessions.resume(session.getToken(), 1, new PrintWriter(replay, true));
+
+        assertNotNull(resumed);
+        String[] lines = replay.toString().split("\\R");
+        assertEquals(MessageType.RESUME, JsonUtil.fromJson(lines[0], Message.class).getType());
+        assertEquals("m2", JsonUtil.fromJson(lines[1], Message.class).getContent());
+        assertEquals(2, lines.length);
+    }
+}
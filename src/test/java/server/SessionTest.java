@@ -0,0 +1,88 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+import org.junit.jupiter.api.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionTest {
+
+    /**
+     * 第一次写入时阻塞，直到 release 被放开，模拟对端不读的套接字。
+     */
+    private static final class StalledWriter extends Writer {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    void blockedWriteDoesNotHoldTheSessionLock() throws InterruptedException {
+        List<String> orphaned = new ArrayList<>();
+        SessionManager sessions = new SessionManager(60_000, 16, orphaned::add);
+        StalledWriter stalled = new StalledWriter();
+        PrintWriter out = new PrintWriter(stalled, true);
+        Session session = sessions.create("bob", out);
+
+        Thread writer = new Thread(() -> session.send(new Message("alice", "bob", "m1", MessageType.CHAT)));
+        writer.start();
+        assertTrue(stalled.writing.await(2, TimeUnit.SECONDS));
+
+        // 写线程卡在套接字上时，读线程收帧、连接断开和会话关闭都不等它
+        Message frame = new Message("bob", "alice", "hi", MessageType.CHAT);
+        frame.setSeq(1);
+        assertTrue(session.accept(frame));
+        sessions.detach(session, out, expired -> { });
+        List<String> unacked = session.retire();
+        assertEquals(1, unacked.size());
+
+        stalled.release.countDown();
+        writer.join(2000);
+        sessions.shutdown();
+        assertTrue(orphaned.isEmpty());
+    }
+
+    @Test
+    void resumeReplaysBeforeLaterFrames() {
+        Session session = new Session("token", "bob", 16, json -> { });
+        session.attach(new PrintWriter(new StringWriter()));
+        session.send(new Message("alice", "bob", "m1", MessageType.CHAT));
+
+        StringWriter replay = new StringWriter();
+        assertTrue(session.resume(new PrintWriter(replay, true), 0));
+        session.send(new Message("alice", "bob", "m2", MessageType.CHAT));
+
+        String[] lines = replay.toString().split("\\R");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].contains("RESUME"));
+        assertTrue(lines[1].contains("m1"));
+        assertTrue(lines[2].contains("m2"));
+    }
+}
@@ -0,0 +1,43 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+    @Test
+    void allowsABurstUpToCapacity() {
+        TokenBucket bucket = new TokenBucket(0.001, 3);
+
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void refillsAtTheConfiguredRate() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+
+        Thread.sleep(50);
+
+        assertTrue(bucket.tryAcquire());
+        // 容量为 1，等待再久也只积累一个令牌
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void acquireBeyondCapacityWaitsForTheDebt() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000, 10);
+
+        long start = System.nanoTime();
+        bucket.acquire(60);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(elapsedMillis >= 40, "waited " + elapsedMillis + " ms");
+    }
+}
@@ -0,0 +1,53 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenizerTest {
+
+    @Test
+    void cjkTextYieldsSinglesAndAdjacentBigrams() {
+        assertEquals(Set.of("你", "好", "吗", "你好", "好吗"), Tokenizer.tokenize("你好吗"));
+    }
+
+    @Test
+    void bigramsDoNotSpanNonCjkCharacters() {
+        Set<String> tokens = Tokenizer.tokenize("你好 世界");
+
+        assertTrue(tokens.contains("你好"));
+        assertTrue(tokens.contains("世界"));
+        assertEquals(6, tokens.size());
+    }
+
+    @Test
+    void latinWordsAreLowercasedAndSplitOnPunctuation() {
+        assertEquals(Set.of("hello", "world2", "x"), Tokenizer.tokenize("Hello, WORLD2! x"));
+    }
+
+    @Test
+    void mixedScriptsSplitAtTheBoundary() {
+        assertEquals(Set.of("java", "很", "好", "很好"), Tokenizer.tokenize("Java很好"));
+    }
+
+    @Test
+    void queryKeepsBigramsInsteadOfTheirSingles() {
+        assertEquals(Set.of("你好", "好吗"), Tokenizer.tokenizeQuery("你好吗"));
+        // 只有一个字时没有二字词可用
+        assertEquals(Set.of("好", "ok"), Tokenizer.tokenizeQuery("好 OK"));
+    }
+
+    @Test
+    void querySegmentsSeparateCjkRunsAndWords() {
+        assertEquals(List.of("明天", "meeting", "见"), Tokenizer.querySegments("明天Meeting 见"));
+    }
+
+    @Test
+    void nullTextHasNoTokens() {
+        assertTrue(Tokenizer.tokenize(null).isEmpty());
+    }
+}
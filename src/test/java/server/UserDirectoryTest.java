@@ -0,0 +1,61 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserDirectoryTest {
+
+    @Test
+    void initialsOfChineseNames() {
+        assertEquals("zs", UserDirectory.initialsOf("张三"));
+        assertEquals("wxm", UserDirectory.initialsOf("王小明"));
+        // 非汉字原样保留
+        assertEquals("ls2", UserDirectory.initialsOf("李四2"));
+        assertNull(UserDirectory.initialsOf("alice"));
+    }
+
+    @Test
+    void charactersOutsideLevelOneAreKept() {
+        // 「龘」不在 GB2312 一级汉字中
+        assertNull(UserDirectory.initialsOf("龘"));
+        assertEquals("z龘", UserDirectory.initialsOf("张龘"));
+    }
+
+    @Test
+    void namesMatchBeforeInitials() {
+        UserDirectory directory = new UserDirectory();
+        directory.addAll(Arrays.asList("张三", "zhao", "Zack", "赵四", "alice"));
+
+        List<String> result = directory.search("Z", 10);
+
+        assertEquals(Arrays.asList("Zack", "zhao", "张三", "赵四"), result);
+    }
+
+    @Test
+    void userMatchingBothKeysIsListedOnce() {
+        UserDirectory directory = new UserDirectory();
+        directory.addAll(Arrays.asList("zs张", "张三"));
+
+        assertEquals(Arrays.asList("zs张", "张三"), directory.search("zs", 10));
+    }
+
+    @Test
+    void searchRespectsLimitAndIgnoresBlankPrefix() {
+        UserDirectory directory = new UserDirectory();
+        for (int i = 0; i < 20; i++) {
+            directory.add("user" + i);
+        }
+        directory.add("user1");
+
+        assertEquals(20, directory.size());
+        assertEquals(5, directory.search("user", 5).size());
+        assertTrue(directory.search("  ", 5).isEmpty());
+        assertTrue(directory.search("nobody", 5).isEmpty());
+    }
+}
@@ -0,0 +1,120 @@
+package server;
+
+import common.Message;
+import common.Message.MessageType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UserRecordTest {
+    // 文件头 5 字节，之后第一条记录：类型 1 字节 + 长度 4 字节
+    private static final int FIRST_LENGTH_OFFSET = 6;
+
+    private static byte[] encode(UserData userData) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (UserRecordWriter writer = new UserRecordWriter(bytes)) {
+            writer.write(userData);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static UserData decode(byte[] bytes) throws IOException {
+        try (UserRecordReader reader = new UserRecordReader(new ByteArrayInputStream(bytes), bytes.length)) {
+            return reader.readAll();
+        }
+    }
+
+    private static UserData sample() {
+        UserData userData = new UserData();
+        userData.getFriends().add("bob");
+        userData.getFriends().add("卡罗尔");
+        Message message = new Message("id-1", "bob", "alice", "你好", MessageType.OFFLINE_MESSAGE);
+        message.setTimestamp(1234L);
+        userData.getOfflineMessages().add(message);
+        userData.getOfflineMessages().add(new Message("id-2", "bob", "alice", null, null));
+        return userData;
+    }
+
+    @Test
+    void roundTripsFriendsAndOfflineMessages() throws IOException {
+        UserData read = decode(encode(sample()));
+
+        assertEquals(sample().getFriends(), read.getFriends());
+        assertEquals(2, read.getOfflineMessages().size());
+        Message first = read.getOfflineMessages().get(0);
+        assertEquals("id-1", first.getId());
+        assertEquals("你好", first.getContent());
+        assertEquals(MessageType.OFFLINE_MESSAGE, first.getType());
+        assertEquals(1234L, first.getTimestamp());
+        Message second = read.getOfflineMessages().get(1);
+        assertNull(second.getContent());
+        assertNull(second.getType());
+    }
+
+    @Test
+    void flippedPayloadBitFailsTheCrc() throws IOException {
+        byte[] bytes = encode(sample());
+        bytes[FIRST_LENGTH_OFFSET + 4 + 4] ^= 0x01;
+
+        IOException e = assertThrows(IOException.class, () -> decode(bytes));
+        assertEquals("用户数据校验失败", e.getMessage());
+    }
+
+    @Test
+    void corruptLengthIsRejectedBeforeAllocating() throws IOException {
+        byte[] bytes = encode(sample());
+        ByteBuffer.wrap(bytes).putInt(FIRST_LENGTH_OFFSET, Integer.MAX_VALUE - 8);
+
+        IOException e = assertThrows(IOException.class, () -> decode(bytes));
+        assertTrue(e.getMessage().startsWith("记录长度无效"));
+    }
+
+    @Test
+    void lengthPastTheEndOfFileIsRejected() throws IOException {
+        byte[] bytes = encode(sample());
+        ByteBuffer.wrap(bytes).putInt(FIRST_LENGTH_OFFSET, bytes.length);
+
+        assertThrows(IOException.class, () -> decode(bytes));
+    }
+
+    @Test
+    void missingEndRecordMeansTruncated() throws IOException {
+        byte[] bytes = encode(sample());
+        // 去掉 9 字节的 END 记录
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 9);
+
+        IOException e = assertThrows(IOException.class, () -> decode(truncated));
+        assertEquals("用户数据文件被截断", e.getMessage());
+    }
+
+    @Test
+    void rejectsForeignFiles() {
+        byte[] bytes = {'N', 'O', 'P', 'E', 1};
+        assertThrows(IOException.class, () -> decode(bytes));
+    }
+
+    @Test
+    void userDataFileReplacesAtomically(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("alice.dat");
+        UserDataFile.write(file, sample());
+        UserData empty = new UserData();
+        UserDataFile.write(file, empty);
+
+        assertTrue(UserDataFile.read(file).getFriends().isEmpty());
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteDeadlineOutputStreamTest {
+    private final HashedTimingWheel wheel = new HashedTimingWheel(10, TimeUnit.MILLISECONDS, 16, Runnable::run);
+
+    @AfterEach
+    void stop() {
+        wheel.stop();
+    }
+
+    @Test
+    void stalledWriteTriggersExpiry() {
+        CountDownLatch closed = new CountDownLatch(1);
+        // 像套接字一样：写阻塞到被关闭，然后抛出异常
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("socket closed");
+            }
+        };
+        OutputStream out = new WriteDeadlineOutputStream(stalled, wheel, 50, closed::countDown);
+
+        long start = System.nanoTime();
+        assertThrows(IOException.class, () -> out.write(new byte[]{1}, 0, 1));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+    }
+
+    @Test
+    void fastWritesNeverExpire() throws IOException, InterruptedException {
+        AtomicInteger expired = new AtomicInteger();
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = new WriteDeadlineOutputStream(sink, wheel, 20, expired::incrementAndGet);
+
+        for (int i = 0; i < 1000; i++) {
+            out.write(new byte[]{(byte) i, 2}, 0, 2);
+            out.flush();
+        }
+        Thread.sleep(100);
+
+        assertEquals(0, expired.get());
+        assertEquals(2000, sink.size());
+        assertArrayEquals(new byte[]{0, 2}, new byte[]{sink.toByteArray()[0], sink.toByteArray()[1]});
+    }
+}